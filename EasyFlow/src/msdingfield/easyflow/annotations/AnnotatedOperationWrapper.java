@@ -1,135 +1,229 @@
 package msdingfield.easyflow.annotations;
 
-import java.lang.reflect.Constructor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
-import java.util.Map;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.lang.reflect.Modifier;
+import java.util.List;
 
+import msdingfield.easyflow.core.ContextLayout;
 import msdingfield.easyflow.core.FlowContext;
 import msdingfield.easyflow.core.FlowEvaluator;
 import msdingfield.easyflow.core.FlowOperation;
+import msdingfield.easyflow.support.OperationFailedException;
+import msdingfield.easyflow.support.TaskDefinitionException;
 
-import com.google.common.collect.Maps;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
 
+/** Adapts a class annotated with @Task to a FlowOperation.
+ *
+ * All fields, the constructor and the operation method are resolved once by
+ * the Builder into MethodHandles so that executing the operation does no
+ * reflective lookups.
+ */
 public class AnnotatedOperationWrapper extends FlowOperation {
 
+	private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+	private static final MethodType OPERATION_TYPE = MethodType.methodType(void.class, Object.class);
+	private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+	private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
 	private final Class<?> target;
-	private final Constructor<?> constructor;
-	private final Method operation;
-	
+
+	/** Creates a new task instance, type ()Object. */
+	private final MethodHandle constructor;
+
+	/** Invokes the @Operation method, type (Object)void. */
+	private final MethodHandle operation;
+
+	private final String[] inputNames;
+
+	/** Assigns each @Input field, type (Object,Object)void. */
+	private final MethodHandle[] inputSetters;
+
+	private final String[] outputNames;
+
+	/** Reads each @Output field, type (Object)Object. */
+	private final MethodHandle[] outputGetters;
+
+	/** Slots of the inputs & outputs in the most recently seen context layout. */
+	private volatile Slots slots = null;
+
 	protected AnnotatedOperationWrapper(final Builder builder) {
 		super(builder);
 		this.target = builder.target;
 		this.constructor = builder.constructor;
 		this.operation = builder.operation;
+		this.inputNames = builder.inputNames.toArray(new String[0]);
+		this.inputSetters = builder.inputSetters.toArray(new MethodHandle[0]);
+		this.outputNames = builder.outputNames.toArray(new String[0]);
+		this.outputGetters = builder.outputGetters.toArray(new MethodHandle[0]);
 	}
 
 	@Override
 	public void execute(final FlowContext context) {
-		
+
 			try {
+				final Slots slots = getSlots(context.getLayout());
 				TaskHolder holder = null;
 				if (!context.hasAttribute(target)) {
-					final Object obj = constructor.newInstance();
+					final Object obj = (Object) constructor.invokeExact();
 					context.putAttribute(target, new TaskHolder(obj));
-					for (final String inputName : getInputs().keySet()) {
-						setInput(obj, inputName, context);
+					for (int i = 0; i < inputSetters.length; ++i) {
+						setInput(obj, i, slots.inputs[i], context);
 					}
 				}
 				holder = (TaskHolder) context.getAttribute(target);
+
+				holder.invoke(context, slots);
 				
-				holder.invoke(context);
-			} catch (InstantiationException | IllegalAccessException
-					| IllegalArgumentException | InvocationTargetException
-					| NoSuchFieldException | SecurityException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				// Keep the task only while it waits to be resumed
+				if (!FlowEvaluator.isResumePending()) {
+					context.removeAttribute(target);
+				}
+			} catch (final Throwable e) {
+				context.removeAttribute(target);
+				Throwables.throwIfUnchecked(e);
+				throw new OperationFailedException(target.getName() + " failed.", e);
 			}
 	}
 
-	private void getOutput(Object obj, String outputName, FlowContext context) throws IllegalArgumentException, IllegalAccessException, NoSuchFieldException, SecurityException {
-		Object attribute = target.getField(outputName).get(obj);
-		context.putAttribute(outputName, attribute);
+	private void getOutput(final Object obj, final int index, final int slot, final FlowContext context) throws Throwable {
+		final Object attribute = (Object) outputGetters[index].invokeExact(obj);
+		if (slot >= 0) {
+			context.putSlot(slot, attribute);
+		} else {
+			context.putAttribute(outputNames[index], attribute);
+		}
+	}
+
+	private void setInput(final Object obj, final int index, final int slot, final FlowContext context) throws Throwable {
+		final Object attribute;
+		if (slot >= 0) {
+			assert context.hasSlot(slot);
+			attribute = context.getSlot(slot);
+		} else {
+			assert context.hasAttribute(inputNames[index]);
+			attribute = context.getAttribute(inputNames[index]);
+		}
+		inputSetters[index].invokeExact(obj, attribute);
 	}
 
-	private void setInput(Object obj, String inputName, FlowContext context) throws NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
-		assert context.hasAttribute(inputName);
-		final Object attribute = context.getAttribute(inputName);
-		target.getField(inputName).set(obj, attribute);
+	private Slots getSlots(final ContextLayout layout) {
+		Slots current = slots;
+		if (current == null || current.layout != layout) {
+			current = new Slots(layout);
+			slots = current;
+		}
+		return current;
 	}
 
 	public static AnnotatedOperationWrapper of(final Class<?> clazz) {
 		return new Builder(clazz).newAnnotatedOperationWrapper();
 	}
-	
+
+	/** Input & output slot indexes for one context layout. */
+	private final class Slots {
+		public final ContextLayout layout;
+		public final int[] inputs;
+		public final int[] outputs;
+
+		public Slots(final ContextLayout layout) {
+			this.layout = layout;
+			this.inputs = layout.slotsOf(Lists.newArrayList(inputNames));
+			this.outputs = layout.slotsOf(Lists.newArrayList(outputNames));
+		}
+	}
+
 	private class TaskHolder {
 		public final Object task;
-		
+
 		public TaskHolder(final Object task) {
 			this.task = task;
 		}
-		
-		public void invoke(final FlowContext context) {
 
-			try {
-				operation.invoke(task);
-				
-				for (final String outputName : getOutputs().keySet()) {
-					getOutput(task, outputName, context);
-				}
-			} catch (IllegalAccessException | IllegalArgumentException
-					| InvocationTargetException | NoSuchFieldException
-					| SecurityException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+		public void invoke(final FlowContext context, final Slots slots) throws Throwable {
+			operation.invokeExact(task);
+
+			for (int i = 0; i < outputGetters.length; ++i) {
+				getOutput(task, i, slots.outputs[i], context);
 			}
 		}
 	}
-	
+
 	private static class Builder extends BuilderBase {
+		private final MethodHandles.Lookup lookup = MethodHandles.lookup();
 		private Class<?> target = null;
-		private Constructor<?> constructor = null;
-		private Method operation = null;
-		
+		private MethodHandle constructor = null;
+		private MethodHandle operation = null;
+		private final List<String> inputNames = Lists.newArrayList();
+		private final List<MethodHandle> inputSetters = Lists.newArrayList();
+		private final List<String> outputNames = Lists.newArrayList();
+		private final List<MethodHandle> outputGetters = Lists.newArrayList();
+
 		public Builder(final Class<?> target) {
 			this.target = target;
 
-			Field[] fields = target.getDeclaredFields();
-			for (Field field : fields) {
-				Input input = field.getAnnotation(Input.class);
-				if (input != null) {
-					Class<?> type = field.getType();
-					String name = field.getName();
-					addInput(name, type);
+			try {
+				Field[] fields = target.getDeclaredFields();
+				for (Field field : fields) {
+					Input input = field.getAnnotation(Input.class);
+					if (input != null) {
+						Class<?> type = field.getType();
+						String name = field.getName();
+						addInput(name, type);
+						inputNames.add(name);
+						inputSetters.add(lookup.unreflectSetter(accessible(field)).asType(SETTER_TYPE));
+					}
+
+					Output output = field.getAnnotation(Output.class);
+					if (output != null) {
+						Class<?> type = field.getType();
+						String name = field.getName();
+						if (ListenableFuture.class.isAssignableFrom(type)) {
+							addAsyncOutput(name, TaskAdapters.futureValueType(target, name));
+						} else {
+							addOutput(name, type);
+						}
+						outputNames.add(name);
+						outputGetters.add(lookup.unreflectGetter(accessible(field)).asType(GETTER_TYPE));
+					}
 				}
-				
-				Output output = field.getAnnotation(Output.class);
-				if (output != null) {
-					Class<?> type = field.getType();
-					String name = field.getName();
-					addOutput(name, type);
+
+				constructor = lookup.unreflectConstructor(target.getConstructor()).asType(CONSTRUCTOR_TYPE);
+
+				for (Method method : target.getDeclaredMethods()) {
+					Operation op = method.getAnnotation(Operation.class);
+					if (op != null) {
+						operation = lookup.unreflect(accessible(method)).asType(OPERATION_TYPE);
+					}
 				}
+			} catch (final NoSuchMethodException | IllegalAccessException | SecurityException e) {
+				throw new TaskDefinitionException(target.getName() + " cannot be used as a task.", e);
 			}
-			
-			try {
-				constructor = target.getConstructor();
-			} catch (NoSuchMethodException | SecurityException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+
+			if (operation == null) {
+				throw new TaskDefinitionException(target.getName() + " has no @Operation method.");
 			}
-			
-			for (Method method : target.getDeclaredMethods()) {
-				Operation op = method.getAnnotation(Operation.class);
-				if (op != null) {
-					operation = method;
-				}
+
+			setInline(TaskAdapters.isInline(target));
+			setCache(TaskAdapters.newCache(target));
+			setPool(TaskAdapters.poolOf(target));
+		}
+
+		private static <T extends AccessibleObject & Member> T accessible(final T member) {
+			if (!Modifier.isPublic(member.getModifiers()) || !Modifier.isPublic(member.getDeclaringClass().getModifiers())) {
+				member.setAccessible(true);
 			}
+			return member;
 		}
-		
+
 		public AnnotatedOperationWrapper newAnnotatedOperationWrapper() {
 			return new AnnotatedOperationWrapper(this);
 		}
@@ -0,0 +1,134 @@
+package msdingfield.easyflow.annotations;
+
+import msdingfield.easyflow.core.ContextLayout;
+import msdingfield.easyflow.core.FlowContext;
+import msdingfield.easyflow.core.FlowEvaluator;
+import msdingfield.easyflow.core.FlowOperation;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/** Base class of the adapters generated for @Task classes by TaskAdapterProcessor.
+ *
+ * A generated adapter creates the task, assigns its fields and calls its
+ * operation method directly, without reflection.  This class provides the
+ * same task state handling as AnnotatedOperationWrapper and resolves the
+ * context slots of the inputs & outputs.
+ *
+ * @param <T> The @Task class.
+ */
+public abstract class GeneratedTaskOperation<T> extends FlowOperation {
+
+	private final Class<T> target;
+
+	private final String[] inputNames;
+
+	private final String[] outputNames;
+
+	/** Slots of the inputs & outputs in the most recently seen context layout. */
+	private volatile Slots slots = null;
+
+	protected GeneratedTaskOperation(final Class<T> target,
+			final String[] inputNames, final Class<?>[] inputTypes,
+			final String[] outputNames, final Class<?>[] outputTypes) {
+		super(new TaskBuilder(target, inputNames, inputTypes, outputNames, outputTypes));
+		this.target = target;
+		this.inputNames = inputNames.clone();
+		this.outputNames = outputNames.clone();
+	}
+
+	@Override
+	public final void execute(final FlowContext context) {
+		final Slots slots = getSlots(context.getLayout());
+		if (!context.hasAttribute(target)) {
+			// Only keep tasks whose inputs could all be set
+			final T task = newTask();
+			setInputs(task, context, slots.inputs);
+			context.putAttribute(target, task);
+		}
+		final T task = target.cast(context.getAttribute(target));
+		try {
+			invoke(task);
+			getOutputs(task, context, slots.outputs);
+		} catch (final RuntimeException e) {
+			context.removeAttribute(target);
+			throw e;
+		}
+		
+		// Keep the task only while it waits to be resumed
+		if (!FlowEvaluator.isResumePending()) {
+			context.removeAttribute(target);
+		}
+	}
+
+	/** Create a new instance of the task. */
+	protected abstract T newTask();
+
+	/** Assign every @Input field using input(). */
+	protected abstract void setInputs(final T task, final FlowContext context, final int[] slots);
+
+	/** Call the @Operation method. */
+	protected abstract void invoke(final T task);
+
+	/** Write every @Output field using output(). */
+	protected abstract void getOutputs(final T task, final FlowContext context, final int[] slots);
+
+	/** Read the value of the index'th input. */
+	protected final Object input(final FlowContext context, final int[] slots, final int index) {
+		final int slot = slots[index];
+		return slot >= 0 ? context.getSlot(slot) : context.getAttribute(inputNames[index]);
+	}
+
+	/** Write the value of the index'th output. */
+	protected final void output(final FlowContext context, final int[] slots, final int index, final Object value) {
+		final int slot = slots[index];
+		if (slot >= 0) {
+			context.putSlot(slot, value);
+		} else {
+			context.putAttribute(outputNames[index], value);
+		}
+	}
+
+	private Slots getSlots(final ContextLayout layout) {
+		Slots current = slots;
+		if (current == null || current.layout != layout) {
+			current = new Slots(layout);
+			slots = current;
+		}
+		return current;
+	}
+
+	/** Describes the task's inputs, outputs & @Task attributes. */
+	private static class TaskBuilder extends BuilderBase {
+		public TaskBuilder(final Class<?> target,
+				final String[] inputNames, final Class<?>[] inputTypes,
+				final String[] outputNames, final Class<?>[] outputTypes) {
+			for (int i = 0; i < inputNames.length; ++i) {
+				addInput(inputNames[i], inputTypes[i]);
+			}
+			for (int i = 0; i < outputNames.length; ++i) {
+				if (ListenableFuture.class.isAssignableFrom(outputTypes[i])) {
+					addAsyncOutput(outputNames[i], TaskAdapters.futureValueType(target, outputNames[i]));
+				} else {
+					addOutput(outputNames[i], outputTypes[i]);
+				}
+			}
+			setInline(TaskAdapters.isInline(target));
+			setCache(TaskAdapters.newCache(target));
+			setPool(TaskAdapters.poolOf(target));
+		}
+	}
+
+	/** Input & output slot indexes for one context layout. */
+	private final class Slots {
+		public final ContextLayout layout;
+		public final int[] inputs;
+		public final int[] outputs;
+
+		public Slots(final ContextLayout layout) {
+			this.layout = layout;
+			this.inputs = layout.slotsOf(Lists.newArrayList(inputNames));
+			this.outputs = layout.slotsOf(Lists.newArrayList(outputNames));
+		}
+	}
+}
@@ -10,21 +10,33 @@ import com.google.common.collect.Lists;
 import com.google.common.reflect.ClassPath;
 
 public class SystemBuilder {
+	/** Whether to use adapters generated by TaskAdapterProcessor when available. */
+	private static volatile boolean useGeneratedAdapters = true;
+
+	/** Enable or disable generated adapters.
+	 *
+	 * When disabled, or when no adapter was generated for a class, tasks are
+	 * wrapped by the reflective AnnotatedOperationWrapper.
+	 */
+	public static void setUseGeneratedAdapters(final boolean enabled) {
+		useGeneratedAdapters = enabled;
+	}
+
 	public static FlowSystem from(final Class<?> ...classes) {
 		final Collection<FlowOperation> operations = Lists.newArrayList();
 		for (final Class<?> clazz : classes) {
-			operations.add(AnnotatedOperationWrapper.of(clazz));
+			operations.add(TaskAdapters.newOperation(clazz, useGeneratedAdapters));
 		}
 		return new FlowSystem(operations);
 	}
-	
+
 	public static FlowSystem from(final String pkg) throws IOException {
 		final Collection<FlowOperation> operations = Lists.newArrayList();
 		ClassPath classPath = ClassPath.from(SystemBuilder.class.getClassLoader());
 		for (final ClassPath.ClassInfo info : classPath.getTopLevelClassesRecursive(pkg)) {
 			Class<?> class1 = info.load();
 			if (class1.isAnnotationPresent(Task.class)) {
-				operations.add(AnnotatedOperationWrapper.of(class1));
+				operations.add(TaskAdapters.newOperation(class1, useGeneratedAdapters));
 			}
 		}
 		return new FlowSystem(operations);
@@ -9,4 +9,24 @@ import java.lang.annotation.Target;
 @Target(ElementType.TYPE)
 public @interface Task {
 
+	/** Whether the task is cheap enough to always run inline on the thread
+	 * which made it ready.
+	 */
+	boolean inline() default false;
+
+	/** Maximum number of cached outputs, 0 if the task isn't cacheable.
+	 *
+	 * Only deterministic tasks, whose outputs depend solely on their inputs,
+	 * should be cached.
+	 */
+	long cacheSize() default 0;
+
+	/** Milliseconds cached outputs live, 0 for no expiry. */
+	long cacheExpireAfterWriteMillis() default 0;
+
+	/** Name of the pool which runs the task, empty for the evaluation's executor.
+	 *
+	 * See FlowExecutors.newBulkhead.
+	 */
+	String pool() default "";
 }
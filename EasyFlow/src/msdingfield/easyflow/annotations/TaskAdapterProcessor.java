@@ -0,0 +1,222 @@
+package msdingfield.easyflow.annotations;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+import msdingfield.easyflow.support.OperationFailedException;
+
+import com.google.common.collect.Lists;
+
+/** Generates a GeneratedTaskOperation subclass for every @Task class.
+ *
+ * The adapter for a class pkg.Outer.Inner is named pkg.Outer_Inner_FlowAdapter
+ * (see TaskAdapters).  Classes whose members cannot be reached from generated
+ * code in the same package, for example private fields, are skipped with a
+ * note and fall back to AnnotatedOperationWrapper at runtime.
+ */
+@SupportedAnnotationTypes("msdingfield.easyflow.annotations.Task")
+public class TaskAdapterProcessor extends AbstractProcessor {
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment roundEnv) {
+		for (final Element element : roundEnv.getElementsAnnotatedWith(Task.class)) {
+			if (element.getKind() == ElementKind.CLASS) {
+				final TypeElement task = (TypeElement) element;
+				try {
+					generate(task);
+				} catch (final IOException e) {
+					processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not generate flow adapter: " + e, task);
+				}
+			}
+		}
+		return false;
+	}
+
+	private void generate(final TypeElement task) throws IOException {
+		final List<VariableElement> inputs = Lists.newArrayList();
+		final List<VariableElement> outputs = Lists.newArrayList();
+		ExecutableElement operation = null;
+		boolean hasConstructor = false;
+
+		for (final VariableElement field : ElementFilter.fieldsIn(task.getEnclosedElements())) {
+			if (field.getAnnotation(Input.class) != null) {
+				inputs.add(field);
+			}
+			if (field.getAnnotation(Output.class) != null) {
+				outputs.add(field);
+			}
+		}
+		for (final ExecutableElement method : ElementFilter.methodsIn(task.getEnclosedElements())) {
+			if (method.getAnnotation(Operation.class) != null) {
+				operation = method;
+			}
+		}
+		for (final ExecutableElement constructor : ElementFilter.constructorsIn(task.getEnclosedElements())) {
+			if (constructor.getParameters().isEmpty() && constructor.getModifiers().contains(Modifier.PUBLIC)) {
+				hasConstructor = true;
+			}
+		}
+
+		final List<Element> members = Lists.<Element>newArrayList(inputs);
+		members.addAll(outputs);
+		if (operation != null) {
+			members.add(operation);
+		}
+		if (operation == null || !operation.getParameters().isEmpty() || !hasConstructor
+				|| !isReachable(task) || !allReachable(members)) {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, "No flow adapter generated, the reflective wrapper will be used.", task);
+			return;
+		}
+
+		final String packageName = processingEnv.getElementUtils().getPackageOf(task).getQualifiedName().toString();
+		final String taskName = task.getQualifiedName().toString();
+		final String adapterName = adapterSimpleName(task);
+		final String qualifiedName = packageName.isEmpty() ? adapterName : packageName + "." + adapterName;
+
+		try (final PrintWriter out = new PrintWriter(processingEnv.getFiler().createSourceFile(qualifiedName, task).openWriter())) {
+			if (!packageName.isEmpty()) {
+				out.printf("package %s;\n\n", packageName);
+			}
+			out.printf("/** Generated by %s, do not edit. */\n", TaskAdapterProcessor.class.getName());
+			out.printf("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+			out.printf("public final class %s extends %s<%s> {\n\n", adapterName, GeneratedTaskOperation.class.getName(), taskName);
+
+			out.printf("\tpublic %s() {\n", adapterName);
+			out.printf("\t\tsuper(%s.class,\n", taskName);
+			out.printf("\t\t\t\tnew String[] {%s}, new Class<?>[] {%s},\n", names(inputs), types(inputs));
+			out.printf("\t\t\t\tnew String[] {%s}, new Class<?>[] {%s});\n", names(outputs), types(outputs));
+			out.printf("\t}\n\n");
+
+			out.printf("\t@Override\n");
+			out.printf("\tprotected %s newTask() {\n", taskName);
+			out.printf("\t\treturn new %s();\n", taskName);
+			out.printf("\t}\n\n");
+
+			out.printf("\t@Override\n");
+			out.printf("\tprotected void setInputs(final %s task, final msdingfield.easyflow.core.FlowContext context, final int[] slots) {\n", taskName);
+			for (int i = 0; i < inputs.size(); ++i) {
+				final VariableElement input = inputs.get(i);
+				out.printf("\t\ttask.%s = %s;\n", input.getSimpleName(), cast(input.asType(), String.format("input(context, slots, %d)", i)));
+			}
+			out.printf("\t}\n\n");
+
+			out.printf("\t@Override\n");
+			out.printf("\tprotected void invoke(final %s task) {\n", taskName);
+			if (operation.getThrownTypes().isEmpty()) {
+				out.printf("\t\ttask.%s();\n", operation.getSimpleName());
+			} else {
+				// Checked exceptions are wrapped like AnnotatedOperationWrapper does
+				out.printf("\t\ttry {\n");
+				out.printf("\t\t\ttask.%s();\n", operation.getSimpleName());
+				out.printf("\t\t} catch (final RuntimeException e) {\n");
+				out.printf("\t\t\tthrow e;\n");
+				out.printf("\t\t} catch (final Exception e) {\n");
+				out.printf("\t\t\tthrow new %s(\"%s failed.\", e);\n", OperationFailedException.class.getName(),
+						processingEnv.getElementUtils().getBinaryName(task));
+				out.printf("\t\t}\n");
+			}
+			out.printf("\t}\n\n");
+
+			out.printf("\t@Override\n");
+			out.printf("\tprotected void getOutputs(final %s task, final msdingfield.easyflow.core.FlowContext context, final int[] slots) {\n", taskName);
+			for (int i = 0; i < outputs.size(); ++i) {
+				out.printf("\t\toutput(context, slots, %d, task.%s);\n", i, outputs.get(i).getSimpleName());
+			}
+			out.printf("\t}\n");
+			out.printf("}\n");
+		}
+	}
+
+	/** Simple name of the adapter, nested class names are joined with '_'. */
+	private static String adapterSimpleName(final TypeElement task) {
+		String name = task.getSimpleName().toString();
+		Element enclosing = task.getEnclosingElement();
+		while (!(enclosing instanceof PackageElement)) {
+			name = enclosing.getSimpleName() + "_" + name;
+			enclosing = enclosing.getEnclosingElement();
+		}
+		return name + TaskAdapters.ADAPTER_SUFFIX;
+	}
+
+	/** A class is reachable if it and all enclosing classes are non-private & nested classes are static. */
+	private static boolean isReachable(final TypeElement task) {
+		Element element = task;
+		while (!(element instanceof PackageElement)) {
+			final Set<Modifier> modifiers = element.getModifiers();
+			if (modifiers.contains(Modifier.PRIVATE)) {
+				return false;
+			}
+			if (!(element.getEnclosingElement() instanceof PackageElement) && !modifiers.contains(Modifier.STATIC)) {
+				return false;
+			}
+			element = element.getEnclosingElement();
+		}
+		return true;
+	}
+
+	private static boolean allReachable(final List<Element> members) {
+		for (final Element member : members) {
+			final Set<Modifier> modifiers = member.getModifiers();
+			if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.STATIC)
+					|| (member.getKind() == ElementKind.FIELD && modifiers.contains(Modifier.FINAL))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String names(final List<VariableElement> fields) {
+		final StringBuilder sb = new StringBuilder();
+		for (final VariableElement field : fields) {
+			sb.append(sb.length() == 0 ? "" : ", ").append('"').append(field.getSimpleName()).append('"');
+		}
+		return sb.toString();
+	}
+
+	private String types(final List<VariableElement> fields) {
+		final StringBuilder sb = new StringBuilder();
+		for (final VariableElement field : fields) {
+			sb.append(sb.length() == 0 ? "" : ", ").append(erasure(field.asType())).append(".class");
+		}
+		return sb.toString();
+	}
+
+	/** Expression converting an Object expression to the type of a field. */
+	private String cast(final TypeMirror type, final String expression) {
+		if (type.getKind().isPrimitive()) {
+			final TypeElement boxed = processingEnv.getTypeUtils().boxedClass(processingEnv.getTypeUtils().getPrimitiveType(type.getKind()));
+			return String.format("((%s) %s).%sValue()", boxed.getQualifiedName(), expression, type.toString());
+		}
+		return String.format("(%s) %s", erasure(type), expression);
+	}
+
+	private String erasure(final TypeMirror type) {
+		if (type.getKind() == TypeKind.DECLARED || type.getKind() == TypeKind.ARRAY || type.getKind() == TypeKind.TYPEVAR) {
+			return processingEnv.getTypeUtils().erasure(type).toString();
+		}
+		return type.toString();
+	}
+}
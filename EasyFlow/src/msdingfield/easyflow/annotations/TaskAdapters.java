@@ -0,0 +1,113 @@
+package msdingfield.easyflow.annotations;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.concurrent.TimeUnit;
+
+import msdingfield.easyflow.core.FlowOperation;
+import msdingfield.easyflow.core.OutputCache;
+import msdingfield.easyflow.support.TaskDefinitionException;
+
+/** Creates FlowOperations for task classes.
+ *
+ * The adapter generated by TaskAdapterProcessor is used when it exists,
+ * otherwise the class is wrapped by AnnotatedOperationWrapper.
+ */
+final class TaskAdapters {
+
+	/** Appended to the task's simple name to form the adapter's name. */
+	static final String ADAPTER_SUFFIX = "_FlowAdapter";
+
+	/** Create an operation for a task class.
+	 *
+	 * @param clazz The task class.
+	 * @param useGenerated Whether to look for a generated adapter.
+	 */
+	static FlowOperation newOperation(final Class<?> clazz, final boolean useGenerated) {
+		if (useGenerated) {
+			final Class<?> adapter = findAdapter(clazz);
+			if (adapter != null) {
+				try {
+					return (FlowOperation) adapter.getConstructor().newInstance();
+				} catch (InstantiationException | IllegalAccessException
+						| InvocationTargetException | NoSuchMethodException e) {
+					throw new TaskDefinitionException("Could not create adapter " + adapter.getName() + ".", e);
+				}
+			}
+		}
+		return AnnotatedOperationWrapper.of(clazz);
+	}
+
+	/** Get the name of the adapter generated for a task class. */
+	static String adapterNameFor(final Class<?> clazz) {
+		String name = clazz.getSimpleName();
+		for (Class<?> enclosing = clazz.getEnclosingClass(); enclosing != null; enclosing = enclosing.getEnclosingClass()) {
+			name = enclosing.getSimpleName() + "_" + name;
+		}
+		final Package pkg = clazz.getPackage();
+		final String packageName = pkg == null ? "" : pkg.getName();
+		return (packageName.isEmpty() ? "" : packageName + ".") + name + ADAPTER_SUFFIX;
+	}
+
+	/** Check whether a task class is marked as inline by its @Task annotation. */
+	static boolean isInline(final Class<?> clazz) {
+		final Task task = clazz.getAnnotation(Task.class);
+		return task != null && task.inline();
+	}
+
+	/** Get the pool named by a task class's @Task annotation, null if none. */
+	static String poolOf(final Class<?> clazz) {
+		final Task task = clazz.getAnnotation(Task.class);
+		return task == null || task.pool().isEmpty() ? null : task.pool();
+	}
+
+	/** Create the output cache configured by a task class's @Task annotation.
+	 *
+	 * @return The cache or null if the task isn't cacheable.
+	 */
+	static OutputCache newCache(final Class<?> clazz) {
+		final Task task = clazz.getAnnotation(Task.class);
+		if (task == null || task.cacheSize() <= 0) {
+			return null;
+		}
+		return OutputCache.builder()
+				.setMaximumSize(task.cacheSize())
+				.setExpireAfterWrite(task.cacheExpireAfterWriteMillis(), TimeUnit.MILLISECONDS)
+				.newOutputCache();
+	}
+
+	/** Get the value type of a ListenableFuture field of a task class.
+	 *
+	 * @return The erasure of the type argument, Object if it isn't known.
+	 */
+	static Class<?> futureValueType(final Class<?> clazz, final String fieldName) {
+		final Type type;
+		try {
+			type = clazz.getDeclaredField(fieldName).getGenericType();
+		} catch (final NoSuchFieldException e) {
+			throw new TaskDefinitionException(clazz.getName() + " has no field " + fieldName + ".", e);
+		}
+		if (type instanceof ParameterizedType) {
+			final Type argument = ((ParameterizedType) type).getActualTypeArguments()[0];
+			if (argument instanceof Class<?>) {
+				return (Class<?>) argument;
+			}
+			if (argument instanceof ParameterizedType) {
+				return (Class<?>) ((ParameterizedType) argument).getRawType();
+			}
+		}
+		return Object.class;
+	}
+
+	private static Class<?> findAdapter(final Class<?> clazz) {
+		try {
+			final Class<?> adapter = Class.forName(adapterNameFor(clazz), true, clazz.getClassLoader());
+			return GeneratedTaskOperation.class.isAssignableFrom(adapter) ? adapter : null;
+		} catch (final ClassNotFoundException e) {
+			return null;
+		}
+	}
+
+	private TaskAdapters() {}
+}
@@ -0,0 +1,404 @@
+package msdingfield.easyflow.core;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import msdingfield.easyflow.support.EvaluationRejectedException;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/** Limits the evaluations which run at once.
+ *
+ * Evaluations started through a controller are admitted while fewer than
+ * maxInFlight of them are running and fewer than maxQueuedOperations of their
+ * operations wait in the executor's queue.  Otherwise the policy decides:
+ *
+ * REJECT fails the evaluation right away.
+ *
+ * WAIT queues the evaluation until there is capacity, for at most maxWait.
+ * Waiting evaluations are admitted highest priority first, then in the order
+ * they arrived.  When maxWaiting evaluations are already waiting, new ones are
+ * rejected.
+ *
+ * SHED_LOWEST_PRIORITY queues like WAIT, but when maxWaiting evaluations are
+ * already waiting the lowest priority one, possibly the new one, is rejected.
+ *
+ * Queued operations are counted in the evaluation's executor and in the
+ * pools of the options and of the system's operations.  Operations of nested
+ * systems in bulkheads which neither names aren't counted.
+ *
+ * Evaluations which are not admitted fail with an EvaluationRejectedException.
+ * The controller never blocks the calling thread.  This class is thread safe.
+ *
+ * @author Matt
+ *
+ */
+public final class AdmissionController {
+
+	/** What to do with an evaluation when there is no capacity. */
+	public enum Policy {
+		REJECT, WAIT, SHED_LOWEST_PRIORITY
+	}
+
+	private final int maxInFlight;
+
+	private final int maxQueuedOperations;
+
+	private final int maxWaiting;
+
+	private final long maxWaitNanos;
+
+	private final Policy policy;
+
+	/** Scheduler which enforces maxWait, null for the shared one. */
+	private final ScheduledExecutorService scheduler;
+
+	/** Number of admitted evaluations which haven't completed.  Guarded by this. */
+	private int inFlight = 0;
+
+	/** Evaluations waiting for capacity, the next to admit first.  Guarded by this. */
+	private final TreeSet<Waiter> waiting = new TreeSet<Waiter>(new Comparator<Waiter>() {
+		@Override
+		public int compare(final Waiter a, final Waiter b) {
+			if (a.priority != b.priority) {
+				return a.priority > b.priority ? -1 : 1;
+			}
+			return Long.compare(a.sequence, b.sequence);
+		}
+	});
+
+	/** Arrival order of waiting evaluations.  Guarded by this. */
+	private long sequence = 0L;
+
+	/** Operations of admitted evaluations passed to an executor which haven't started. */
+	private final AtomicInteger queuedOperations = new AtomicInteger();
+
+	private final AtomicLong admittedCount = new AtomicLong();
+
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	private final AtomicLong shedCount = new AtomicLong();
+
+	private final AtomicLong timedOutCount = new AtomicLong();
+
+	private AdmissionController(final Builder builder) {
+		this.maxInFlight = builder.maxInFlight;
+		this.maxQueuedOperations = builder.maxQueuedOperations;
+		this.maxWaiting = builder.maxWaiting;
+		this.maxWaitNanos = builder.maxWaitNanos;
+		this.policy = builder.policy;
+		this.scheduler = builder.scheduler;
+	}
+
+	/** Evaluate a system given a context once admitted.
+	 *
+	 * @return A future which fails with EvaluationRejectedException if the
+	 *   evaluation isn't admitted.
+	 */
+	public ListenableFuture<Void> evaluate(final FlowSystem system, final FlowContext context) {
+		return evaluate(system, context, EvaluationOptions.DEFAULT, 0);
+	}
+
+	/** Evaluate a system given a context & evaluation options once admitted.
+	 *
+	 * @param system System of operations to evaluate.
+	 * @param context The context in which to evaluate.
+	 * @param options Options controlling the evaluation.
+	 * @param priority Evaluations with a higher priority are admitted first.
+	 * @return A future which fails with EvaluationRejectedException if the
+	 *   evaluation isn't admitted.
+	 */
+	public ListenableFuture<Void> evaluate(final FlowSystem system, final FlowContext context, final EvaluationOptions options, final int priority) {
+		final Waiter waiter = new Waiter(system, context, options, priority);
+		Waiter shed = null;
+		boolean admitted = false;
+		boolean rejected = false;
+		synchronized (this) {
+			if (waiting.isEmpty() && hasCapacity()) {
+				++inFlight;
+				admitted = true;
+			} else if (policy == Policy.REJECT || (policy == Policy.WAIT && waiting.size() >= maxWaiting)) {
+				rejected = true;
+			} else {
+				waiter.sequence = sequence++;
+				waiting.add(waiter);
+				if (waiting.size() > maxWaiting) {
+					shed = waiting.pollLast();
+				}
+			}
+		}
+
+		if (admitted) {
+			start(waiter);
+		} else if (rejected) {
+			rejectedCount.incrementAndGet();
+			waiter.result.setException(new EvaluationRejectedException("Evaluation rejected, " + describeLoad() + "."));
+		} else {
+			if (shed != null) {
+				shedCount.incrementAndGet();
+				shed.result.setException(new EvaluationRejectedException("Evaluation shed, " + describeLoad() + "."));
+			}
+			if (shed != waiter) {
+				waitForCapacity(waiter);
+			}
+		}
+		return waiter.result;
+	}
+
+	/** Get the number of admitted evaluations which haven't completed. */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/** Get the number of evaluations waiting to be admitted. */
+	public synchronized int getWaiting() {
+		return waiting.size();
+	}
+
+	/** Get the number of operations of admitted evaluations waiting in executor queues. */
+	public int getQueuedOperations() {
+		return queuedOperations.get();
+	}
+
+	/** Get the number of evaluations admitted. */
+	public long getAdmittedCount() {
+		return admittedCount.get();
+	}
+
+	/** Get the number of evaluations rejected on arrival. */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/** Get the number of waiting evaluations shed for higher priority ones. */
+	public long getShedCount() {
+		return shedCount.get();
+	}
+
+	/** Get the number of evaluations which waited longer than maxWait. */
+	public long getTimedOutCount() {
+		return timedOutCount.get();
+	}
+
+	/** Check whether another evaluation may start.  Must hold this. */
+	private boolean hasCapacity() {
+		return inFlight < maxInFlight && queuedOperations.get() < maxQueuedOperations;
+	}
+
+	private String describeLoad() {
+		return String.format("%d in flight, %d operations queued, %d waiting", getInFlight(), getQueuedOperations(), getWaiting());
+	}
+
+	/** Time out a waiting evaluation & stop waiting if it is cancelled. */
+	private void waitForCapacity(final Waiter waiter) {
+		if (maxWaitNanos > 0) {
+			final ScheduledExecutorService timeoutScheduler = scheduler == null ? FlowExecutors.timeoutScheduler() : scheduler;
+			waiter.timeout = timeoutScheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (remove(waiter)) {
+						timedOutCount.incrementAndGet();
+						waiter.result.setException(new EvaluationRejectedException("Evaluation waited too long, " + describeLoad() + "."));
+					}
+				}
+			}, maxWaitNanos, TimeUnit.NANOSECONDS);
+		}
+		waiter.result.addListener(new Runnable() {
+			@Override
+			public void run() {
+				if (waiter.result.isCancelled()) {
+					remove(waiter);
+				}
+			}
+		}, MoreExecutors.directExecutor());
+	}
+
+	private synchronized boolean remove(final Waiter waiter) {
+		return waiting.remove(waiter);
+	}
+
+	/** Admit waiting evaluations while there is capacity. */
+	private void admitWaiting() {
+		for (;;) {
+			final Waiter waiter;
+			synchronized (this) {
+				if (waiting.isEmpty() || !hasCapacity()) {
+					return;
+				}
+				waiter = waiting.pollFirst();
+				++inFlight;
+			}
+			if (waiter.timeout != null) {
+				waiter.timeout.cancel(false);
+			}
+			start(waiter);
+		}
+	}
+
+	/** Start an admitted evaluation. */
+	private void start(final Waiter waiter) {
+		admittedCount.incrementAndGet();
+		final EvaluationOptions.Builder builder = waiter.options.toBuilder()
+				.setExecutor(new QueueCountingExecutor(waiter.options.getExecutor()));
+		final Map<String, Executor> pools = Maps.newHashMap(waiter.options.getPools());
+		for (final FlowOperation operation : waiter.system.getAllOperations()) {
+			final String pool = operation.getPool();
+			if (pool != null && !pools.containsKey(pool)) {
+				final Bulkhead bulkhead = FlowExecutors.getBulkhead(pool);
+				if (bulkhead != null) {
+					pools.put(pool, bulkhead);
+				}
+			}
+		}
+		for (final Map.Entry<String, Executor> pool : pools.entrySet()) {
+			builder.setPool(pool.getKey(), new QueueCountingExecutor(pool.getValue()));
+		}
+		final EvaluationOptions options = builder.newEvaluationOptions();
+		final ListenableFuture<Void> evaluation = FlowEvaluator.evaluateNested(waiter.system, waiter.context, options);
+		evaluation.addListener(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (AdmissionController.this) {
+					--inFlight;
+				}
+				admitWaiting();
+			}
+		}, MoreExecutors.directExecutor());
+		waiter.result.setFuture(evaluation);
+	}
+
+	/** An evaluation which hasn't been admitted yet. */
+	private static final class Waiter {
+		private final FlowSystem system;
+		private final FlowContext context;
+		private final EvaluationOptions options;
+		private final int priority;
+		private final SettableFuture<Void> result = SettableFuture.create();
+		private long sequence = 0L;
+		private volatile ScheduledFuture<?> timeout = null;
+
+		public Waiter(final FlowSystem system, final FlowContext context, final EvaluationOptions options, final int priority) {
+			this.system = system;
+			this.context = context;
+			this.options = options;
+			this.priority = priority;
+		}
+	}
+
+	/** Counts the operations waiting in an executor's queue. */
+	private final class QueueCountingExecutor implements Executor {
+		private final Executor executor;
+
+		public QueueCountingExecutor(final Executor executor) {
+			this.executor = executor;
+		}
+
+		@Override
+		public void execute(final Runnable command) {
+			queuedOperations.incrementAndGet();
+			try {
+				executor.execute(new QueuedOperation(command));
+			} catch (final RuntimeException e) {
+				// A rejected operation was never queued
+				if (queuedOperations.getAndDecrement() == maxQueuedOperations) {
+					admitWaiting();
+				}
+				throw e;
+			}
+		}
+	}
+
+	/** An operation in an executor's queue, keeping the operation's priority. */
+	private final class QueuedOperation implements Runnable, Prioritized {
+		private final Runnable command;
+
+		public QueuedOperation(final Runnable command) {
+			this.command = command;
+		}
+
+		@Override
+		public long getPriority() {
+			return command instanceof Prioritized ? ((Prioritized) command).getPriority() : Long.MIN_VALUE;
+		}
+
+		@Override
+		public void run() {
+			// Leaving a full queue may admit waiting evaluations
+			if (queuedOperations.getAndDecrement() == maxQueuedOperations) {
+				admitWaiting();
+			}
+			command.run();
+		}
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	public static class Builder {
+		private int maxInFlight = 64;
+		private int maxQueuedOperations = Integer.MAX_VALUE;
+		private int maxWaiting = 1000;
+		private long maxWaitNanos = 0L;
+		private Policy policy = Policy.WAIT;
+		private ScheduledExecutorService scheduler = null;
+
+		/** Set the most evaluations which run at once. */
+		public Builder setMaxInFlight(final int maxInFlight) {
+			Preconditions.checkArgument(maxInFlight >= 1);
+			this.maxInFlight = maxInFlight;
+			return this;
+		}
+
+		/** Stop admitting evaluations while this many of their operations are queued. */
+		public Builder setMaxQueuedOperations(final int maxQueuedOperations) {
+			Preconditions.checkArgument(maxQueuedOperations >= 1);
+			this.maxQueuedOperations = maxQueuedOperations;
+			return this;
+		}
+
+		/** Set the most evaluations which wait to be admitted. */
+		public Builder setMaxWaiting(final int maxWaiting) {
+			Preconditions.checkArgument(maxWaiting >= 0);
+			this.maxWaiting = maxWaiting;
+			return this;
+		}
+
+		/** Reject evaluations which waited this long to be admitted, 0 to wait forever. */
+		public Builder setMaxWait(final long maxWait, final TimeUnit unit) {
+			Preconditions.checkArgument(maxWait >= 0);
+			this.maxWaitNanos = unit.toNanos(maxWait);
+			return this;
+		}
+
+		/** Set what to do with evaluations when there is no capacity. */
+		public Builder setPolicy(final Policy policy) {
+			this.policy = Preconditions.checkNotNull(policy);
+			return this;
+		}
+
+		/** Set the scheduler which enforces maxWait, null for the shared one.
+		 *
+		 * See FlowExecutors.timeoutScheduler.
+		 */
+		public Builder setScheduler(final ScheduledExecutorService scheduler) {
+			this.scheduler = scheduler;
+			return this;
+		}
+
+		public AdmissionController newAdmissionController() {
+			return new AdmissionController(this);
+		}
+	}
+}
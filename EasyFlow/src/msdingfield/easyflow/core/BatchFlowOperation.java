@@ -0,0 +1,50 @@
+package msdingfield.easyflow.core;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+
+/** An operation which executes for a whole batch of contexts at once.
+ * 
+ * When a system is evaluated with FlowEvaluator.evaluateBatch the operation
+ * is given every context of the batch in one call, so it can use bulk or
+ * vectorised backends.  A single context evaluation passes a batch of one.
+ * 
+ * Calling FlowEvaluator.resumeOn suspends the whole batch, which is passed
+ * again once the futures are done.
+ * 
+ * @author Matt
+ *
+ */
+public abstract class BatchFlowOperation extends FlowOperation {
+
+	protected BatchFlowOperation(final Map<String, Class<?>> inputs, final Map<String, Class<?>> outputs) {
+		super(inputs, outputs);
+	}
+
+	protected BatchFlowOperation(final BuilderBase builder) {
+		super(builder);
+	}
+
+	/** Derived classes implement this to populate outputs of every context.
+	 * 
+	 * @param contexts The contexts with inputs & outputs.
+	 */
+	abstract public void executeBatch(final List<FlowContext> contexts);
+
+	@Override
+	public void execute(final FlowContext context) {
+		executeBatch(Collections.singletonList(context));
+	}
+
+	/** Get the values of an attribute in every context, in context order. */
+	protected static List<Object> getColumn(final List<FlowContext> contexts, final String name) {
+		final List<Object> column = Lists.newArrayListWithCapacity(contexts.size());
+		for (final FlowContext context : contexts) {
+			column.add(context.getAttribute(name));
+		}
+		return column;
+	}
+}
@@ -0,0 +1,93 @@
+package msdingfield.easyflow.core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/** A named pool of threads with a bounded queue, isolating a group of operations.
+ *
+ * Operations declare the pool which runs them with
+ * FlowOperation.BuilderBase.setPool() or @Task(pool = ...).  A slow group of
+ * operations then only occupies its own threads instead of every thread of
+ * a shared executor.
+ *
+ * When the queue is full operations are rejected and the evaluation which
+ * submitted them fails with a RejectedExecutionException.  Create bulkheads
+ * with FlowExecutors.newBulkhead().
+ *
+ * @author Matt
+ *
+ */
+public final class Bulkhead implements Executor {
+
+	private final String name;
+
+	private final ThreadPoolExecutor pool;
+
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	Bulkhead(final String name, final int threads, final int queueCapacity) {
+		this.name = name;
+		this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity),
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("flow-" + name + "-%d").build(),
+				new RejectedExecutionHandler() {
+					@Override
+					public void rejectedExecution(final Runnable command, final ThreadPoolExecutor executor) {
+						rejectedCount.incrementAndGet();
+						throw new RejectedExecutionException("Bulkhead " + Bulkhead.this.name + " is full.");
+					}
+				});
+	}
+
+	@Override
+	public void execute(final Runnable command) {
+		pool.execute(command);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/** Get the number of threads. */
+	public int getThreads() {
+		return pool.getMaximumPoolSize();
+	}
+
+	/** Get the number of threads running operations. */
+	public int getActiveCount() {
+		return pool.getActiveCount();
+	}
+
+	/** Get the number of operations waiting for a thread. */
+	public int getQueuedCount() {
+		return pool.getQueue().size();
+	}
+
+	/** Get the approximate number of operations run. */
+	public long getCompletedCount() {
+		return pool.getCompletedTaskCount();
+	}
+
+	/** Get the number of operations rejected because the queue was full. */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/** Stop the threads once queued operations have run. */
+	void shutdown() {
+		pool.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Bulkhead[%s threads=%d active=%d queued=%d completed=%d rejected=%d]",
+				name, getThreads(), getActiveCount(), getQueuedCount(), getCompletedCount(), getRejectedCount());
+	}
+}
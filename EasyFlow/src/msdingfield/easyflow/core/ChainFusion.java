@@ -0,0 +1,95 @@
+package msdingfield.easyflow.core;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import msdingfield.easyflow.support.IdentitySet;
+
+import com.google.common.collect.Lists;
+
+/** Fuses linear chains of operations into single operations.
+ *
+ * A chain is a maximal sequence of operations in which every link has exactly
+ * one successor and the next link has exactly one predecessor.  Each chain is
+ * replaced by a FusedOperation which runs the steps back to back, saving the
+ * scheduling of every link after the first.
+ *
+ * Operations with async outputs, a cache, a hedging policy or a pool are
+ * never fused since the evaluator handles those per operation.  They break
+ * the chains around them.
+ */
+public final class ChainFusion {
+
+	/** Fuse all chains of a system, writing every output to the context. */
+	public static FlowSystem fuse(final FlowSystem system) {
+		return fuse(system, null);
+	}
+
+	/** Fuse all chains of a system.
+	 *
+	 * Outputs produced inside a chain which nothing outside the chain reads
+	 * are only written to the context if they are listed in retainedOutputs.
+	 *
+	 * @param system The system to optimize.
+	 * @param retainedOutputs Outputs the caller reads from the context, or
+	 *   null to write all outputs.
+	 * @return A system with the same inputs & retained outputs.
+	 */
+	public static FlowSystem fuse(final FlowSystem system, final Set<String> retainedOutputs) {
+		final List<FlowOperation> order = GraphSort.sort(system);
+		final Collection<FlowOperation> fused = new IdentitySet<FlowOperation>();
+		final List<FlowOperation> operations = Lists.newArrayList();
+		boolean changed = false;
+
+		for (final FlowOperation op : order) {
+			if (fused.contains(op) || !isChainHead(system, op)) {
+				continue;
+			}
+
+			final List<FlowOperation> chain = Lists.newArrayList(op);
+			FlowOperation link = op;
+			while (hasChainSuccessor(system, link)) {
+				link = system.getDirectSuccessors(link).iterator().next();
+				chain.add(link);
+			}
+
+			fused.addAll(chain);
+			if (chain.size() == 1) {
+				operations.add(op);
+			} else {
+				final FusedOperation.Builder builder = new FusedOperation.Builder();
+				for (final FlowOperation step : chain) {
+					builder.addStep(step);
+				}
+				operations.add(builder.setExported(retainedOutputs).newOperation());
+				changed = true;
+			}
+		}
+
+		return changed ? new FlowSystem(operations) : system;
+	}
+
+	/** An operation starts a chain unless it is linked to its predecessor. */
+	private static boolean isChainHead(final FlowSystem system, final FlowOperation op) {
+		final Collection<FlowOperation> predecessors = system.getDirectPredecessors(op);
+		return predecessors.size() != 1 || !hasChainSuccessor(system, predecessors.iterator().next());
+	}
+
+	/** Check whether an operation's only successor has it as only predecessor
+	 * and both can be fused.
+	 */
+	private static boolean hasChainSuccessor(final FlowSystem system, final FlowOperation op) {
+		if (!FusedOperation.canFuse(op)) {
+			return false;
+		}
+		final Collection<FlowOperation> successors = system.getDirectSuccessors(op);
+		if (successors.size() != 1) {
+			return false;
+		}
+		final FlowOperation successor = successors.iterator().next();
+		return FusedOperation.canFuse(successor) && system.getDirectPredecessors(successor).size() == 1;
+	}
+
+	private ChainFusion() {}
+}
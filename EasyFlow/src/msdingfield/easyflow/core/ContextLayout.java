@@ -0,0 +1,69 @@
+package msdingfield.easyflow.core;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+/** Assigns a fixed slot index to each attribute name of a FlowSystem.
+ *
+ * A FlowContext created with a layout stores the values of those names in an
+ * array rather than in a map.  Operations may resolve slot indexes once and
+ * then access the context without hashing.
+ *
+ * This class is immutable.
+ *
+ * @author Matt
+ *
+ */
+public final class ContextLayout {
+
+	/** Layout with no slots.  Contexts using it store everything in a map. */
+	public static final ContextLayout EMPTY = new ContextLayout(Collections.<String>emptyList());
+
+	/** Map of attribute name to slot index. */
+	private final Map<String, Integer> slots;
+
+	/** Attribute names indexed by slot. */
+	private final String[] names;
+
+	public ContextLayout(final Collection<String> names) {
+		this.slots = Maps.newHashMapWithExpectedSize(names.size());
+		for (final String name : names) {
+			if (!slots.containsKey(name)) {
+				slots.put(name, slots.size());
+			}
+		}
+		this.names = new String[slots.size()];
+		for (final Map.Entry<String, Integer> e : slots.entrySet()) {
+			this.names[e.getValue()] = e.getKey();
+		}
+	}
+
+	/** Get the number of slots. */
+	public int size() {
+		return slots.size();
+	}
+
+	/** Get the slot index of an attribute key or -1 if it has no slot. */
+	public int slotOf(final Object key) {
+		final Integer slot = slots.get(key);
+		return slot == null ? -1 : slot;
+	}
+
+	/** Get the slot indexes for several names, -1 for names without a slot. */
+	public int[] slotsOf(final Collection<String> names) {
+		final int[] result = new int[names.size()];
+		int i = 0;
+		for (final String name : names) {
+			result[i++] = slotOf(name);
+		}
+		return result;
+	}
+
+	/** Get the attribute name of a slot. */
+	public String getName(final int slot) {
+		return names[slot];
+	}
+}
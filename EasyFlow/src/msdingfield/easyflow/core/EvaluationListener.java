@@ -0,0 +1,33 @@
+package msdingfield.easyflow.core;
+
+/** Receives timing events from FlowEvaluator.
+ *
+ * All timestamps come from System.nanoTime().  Events are delivered on the
+ * threads running the evaluation, so implementations must be thread safe and
+ * fast.  Extend EvaluationListenerAdapter to receive only some events.
+ *
+ * @see EvaluationOptions.Builder#setListener(EvaluationListener)
+ */
+public interface EvaluationListener {
+
+	/** An operation's inputs are available and it was passed to the executor. */
+	void operationReady(FlowOperation operation, long readyNanos);
+
+	/** An operation started executing. */
+	void operationStarted(FlowOperation operation, long readyNanos, long startNanos);
+
+	/** An operation finished executing without suspending. */
+	void operationFinished(FlowOperation operation, long startNanos, long finishNanos);
+
+	/** An operation returned after calling FlowEvaluator.resumeOn. */
+	void operationSuspended(FlowOperation operation, long startNanos, long suspendNanos);
+
+	/** A future a suspended operation waits on completed. */
+	void operationResumed(FlowOperation operation, long suspendNanos, long resumeNanos);
+
+	/** The async outputs an operation was waiting on after it finished are done. */
+	void operationOutputsDone(FlowOperation operation, long finishNanos, long doneNanos);
+
+	/** All operations of an evaluation are complete. */
+	void evaluationComplete(FlowContext context, long startNanos, long completeNanos);
+}
@@ -0,0 +1,40 @@
+package msdingfield.easyflow.core;
+
+/** EvaluationListener ignoring all events.  Override the interesting ones. */
+public abstract class EvaluationListenerAdapter implements EvaluationListener {
+
+	@Override
+	public void operationReady(final FlowOperation operation, final long readyNanos) {
+		/* empty */
+	}
+
+	@Override
+	public void operationStarted(final FlowOperation operation, final long readyNanos, final long startNanos) {
+		/* empty */
+	}
+
+	@Override
+	public void operationFinished(final FlowOperation operation, final long startNanos, final long finishNanos) {
+		/* empty */
+	}
+
+	@Override
+	public void operationSuspended(final FlowOperation operation, final long startNanos, final long suspendNanos) {
+		/* empty */
+	}
+
+	@Override
+	public void operationResumed(final FlowOperation operation, final long suspendNanos, final long resumeNanos) {
+		/* empty */
+	}
+
+	@Override
+	public void operationOutputsDone(final FlowOperation operation, final long finishNanos, final long doneNanos) {
+		/* empty */
+	}
+
+	@Override
+	public void evaluationComplete(final FlowContext context, final long startNanos, final long completeNanos) {
+		/* empty */
+	}
+}
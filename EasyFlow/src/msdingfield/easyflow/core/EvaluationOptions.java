@@ -0,0 +1,234 @@
+package msdingfield.easyflow.core;
+
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/** Options controlling how FlowEvaluator evaluates a system.
+ *
+ * This class is immutable.  Create instances with builder().
+ *
+ * @author Matt
+ *
+ */
+public final class EvaluationOptions {
+
+	/** Options used when none are given. */
+	public static final EvaluationOptions DEFAULT = builder().newEvaluationOptions();
+
+	/** Executor for running operations. */
+	private final Executor executor;
+
+	/** Whether a finishing operation runs one ready successor itself. */
+	private final boolean inlineSuccessors;
+
+	/** Whether operation run times are recorded to weight priorities. */
+	private final boolean latencyWeightedPriorities;
+
+	/** Receives timing events, null if none. */
+	private final EvaluationListener listener;
+
+	/** Whether re-evaluation stops at operations whose outputs didn't change. */
+	private final boolean equalityCutoff;
+
+	/** Time allowed for the whole evaluation in nanoseconds, 0 for no limit. */
+	private final long timeoutNanos;
+
+	/** Time an operation may wait for futures in nanoseconds, 0 for no limit. */
+	private final long operationTimeoutNanos;
+
+	/** Scheduler which enforces the timeouts. */
+	private final ScheduledExecutorService timeoutScheduler;
+
+	/** Executors for operations which declare a pool, by pool name. */
+	private final Map<String, Executor> pools;
+
+	private EvaluationOptions(final Builder builder) {
+		this.executor = builder.executor;
+		this.inlineSuccessors = builder.inlineSuccessors;
+		this.latencyWeightedPriorities = builder.latencyWeightedPriorities;
+		this.listener = builder.listener;
+		this.equalityCutoff = builder.equalityCutoff;
+		this.timeoutNanos = builder.timeoutNanos;
+		this.operationTimeoutNanos = builder.operationTimeoutNanos;
+		this.timeoutScheduler = builder.timeoutScheduler;
+		this.pools = ImmutableMap.copyOf(builder.pools);
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	public boolean isInlineSuccessors() {
+		return inlineSuccessors;
+	}
+
+	public boolean isLatencyWeightedPriorities() {
+		return latencyWeightedPriorities;
+	}
+
+	public EvaluationListener getListener() {
+		return listener;
+	}
+
+	public boolean isEqualityCutoff() {
+		return equalityCutoff;
+	}
+
+	public long getTimeoutNanos() {
+		return timeoutNanos;
+	}
+
+	public long getOperationTimeoutNanos() {
+		return operationTimeoutNanos;
+	}
+
+	public ScheduledExecutorService getTimeoutScheduler() {
+		return timeoutScheduler;
+	}
+
+	public Map<String, Executor> getPools() {
+		return pools;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/** Create a builder initialized from these options. */
+	public Builder toBuilder() {
+		return new Builder()
+			.setExecutor(executor)
+			.setInlineSuccessors(inlineSuccessors)
+			.setLatencyWeightedPriorities(latencyWeightedPriorities)
+			.setListener(listener)
+			.setEqualityCutoff(equalityCutoff)
+			.setTimeout(timeoutNanos, TimeUnit.NANOSECONDS)
+			.setOperationTimeout(operationTimeoutNanos, TimeUnit.NANOSECONDS)
+			.setTimeoutScheduler(timeoutScheduler)
+			.setPools(pools);
+	}
+
+	public static class Builder {
+		private Executor executor = FlowExecutors.defaultExecutor();
+		private boolean inlineSuccessors = false;
+		private boolean latencyWeightedPriorities = false;
+		private EvaluationListener listener = null;
+		private boolean equalityCutoff = false;
+		private long timeoutNanos = 0L;
+		private long operationTimeoutNanos = 0L;
+		private ScheduledExecutorService timeoutScheduler = null;
+		private final Map<String, Executor> pools = Maps.newHashMap();
+
+		/** Set the executor which runs operations.
+		 *
+		 * See FlowExecutors for built in executors.
+		 */
+		public Builder setExecutor(final Executor executor) {
+			if (executor == null) {
+				throw new IllegalArgumentException("executor must not be null.");
+			}
+			this.executor = executor;
+			return this;
+		}
+
+		/** Run one ready successor of a finishing operation on the same thread.
+		 *
+		 * Only the additional ready successors are passed to the executor.
+		 * This removes the queue hop along linear chains.  Operations marked
+		 * inline always run on the finishing thread regardless of this option.
+		 */
+		public Builder setInlineSuccessors(final boolean inlineSuccessors) {
+			this.inlineSuccessors = inlineSuccessors;
+			return this;
+		}
+
+		/** Record operation run times and weight priorities by them.
+		 *
+		 * Priorities are only used by priority executors, see
+		 * FlowExecutors.newPriorityPool.  By default every operation on a path
+		 * counts the same.
+		 */
+		public Builder setLatencyWeightedPriorities(final boolean latencyWeightedPriorities) {
+			this.latencyWeightedPriorities = latencyWeightedPriorities;
+			return this;
+		}
+
+		/** Set a listener for operation timing events, or null for none.
+		 *
+		 * Without a listener the evaluator doesn't read the clock at all.
+		 */
+		public Builder setListener(final EvaluationListener listener) {
+			this.listener = listener;
+			return this;
+		}
+
+		/** Stop re-evaluation at operations whose outputs equal their previous values.
+		 *
+		 * Only applies to FlowEvaluator.reevaluate.  Successors of such an operation
+		 * only run if another of their inputs changed.  Outputs are compared with
+		 * equals().
+		 */
+		public Builder setEqualityCutoff(final boolean equalityCutoff) {
+			this.equalityCutoff = equalityCutoff;
+			return this;
+		}
+
+		/** Fail the evaluation if it hasn't completed within a time, 0 for no limit.
+		 *
+		 * On timeout no more operations are started, futures operations wait
+		 * on through resumeOn are cancelled and the evaluation fails with an
+		 * EvaluationTimeoutException listing the outstanding operations.
+		 * Operations which are executing are not interrupted.
+		 */
+		public Builder setTimeout(final long timeout, final TimeUnit unit) {
+			this.timeoutNanos = unit.toNanos(timeout);
+			return this;
+		}
+
+		/** Fail the evaluation if an operation waits longer than a time for its
+		 * futures, 0 for no limit.
+		 *
+		 * Applies to futures passed to resumeOn and to async outputs.  See
+		 * setTimeout for how the evaluation fails.
+		 */
+		public Builder setOperationTimeout(final long timeout, final TimeUnit unit) {
+			this.operationTimeoutNanos = unit.toNanos(timeout);
+			return this;
+		}
+
+		/** Set the scheduler which enforces timeouts, null for the shared one.
+		 *
+		 * See FlowExecutors.timeoutScheduler.
+		 */
+		public Builder setTimeoutScheduler(final ScheduledExecutorService timeoutScheduler) {
+			this.timeoutScheduler = timeoutScheduler;
+			return this;
+		}
+
+		/** Set the executor which runs operations declaring a pool.
+		 *
+		 * Pools not set here are looked up with FlowExecutors.getBulkhead.
+		 */
+		public Builder setPool(final String name, final Executor executor) {
+			if (executor == null) {
+				throw new IllegalArgumentException("executor must not be null.");
+			}
+			this.pools.put(name, executor);
+			return this;
+		}
+
+		private Builder setPools(final Map<String, Executor> pools) {
+			this.pools.putAll(pools);
+			return this;
+		}
+
+		public EvaluationOptions newEvaluationOptions() {
+			return new EvaluationOptions(this);
+		}
+	}
+}
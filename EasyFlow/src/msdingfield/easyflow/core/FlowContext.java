@@ -1,37 +1,129 @@
 package msdingfield.easyflow.core;
 
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-/** Contains state for the evaluation of a Tasks. */
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/** Contains state for the evaluation of a Tasks.
+ *
+ * Operations running on different threads write to the same context so all
+ * access is thread safe.  A context created with a ContextLayout keeps the
+ * values of the layout's names in an array of slots.  Any other key, such as
+ * the Class keys used for task state, is kept in a fallback map.
+ */
 public class FlowContext {
-	private Map<Object, Object> attributes = new HashMap<Object, Object>();
-	
+	/** Stands in for null values, which neither the slots nor the map can hold. */
+	private static final Object NULL = new Object();
+
+	/** Assigns slots to attribute names. */
+	private final ContextLayout layout;
+
+	/** Values of the layout's names.  A null entry means no value. */
+	private final AtomicReferenceArray<Object> slots;
+
+	/** Values of keys without a slot. */
+	private final ConcurrentMap<Object, Object> attributes = Maps.newConcurrentMap();
+
+	public FlowContext() {
+		this(ContextLayout.EMPTY);
+	}
+
+	public FlowContext(final ContextLayout layout) {
+		this.layout = layout;
+		this.slots = new AtomicReferenceArray<Object>(layout.size());
+	}
+
 	public FlowContext setInput(final Map<Object, Object> input) {
 		for (Map.Entry<Object, Object> e : input.entrySet()) {
 			putAttribute(e.getKey(), e.getValue());
 		}
 		return this;
 	}
-	
+
 	public void putAttribute(final Object key, final Object value) {
-		attributes.put(key, value);
+		final int slot = layout.slotOf(key);
+		if (slot >= 0) {
+			putSlot(slot, value);
+		} else {
+			attributes.put(key, mask(value));
+		}
 	}
-	
+
 	public Object getAttribute(final Object key) {
-		return attributes.get(key);
+		final int slot = layout.slotOf(key);
+		if (slot >= 0) {
+			return getSlot(slot);
+		}
+		return unmask(attributes.get(key));
 	}
-	
+
+	public void removeAttribute(final Object key) {
+		final int slot = layout.slotOf(key);
+		if (slot >= 0) {
+			slots.set(slot, null);
+		} else {
+			attributes.remove(key);
+		}
+	}
+
 	public boolean hasAttribute(final Object key) {
+		final int slot = layout.slotOf(key);
+		if (slot >= 0) {
+			return hasSlot(slot);
+		}
 		return attributes.containsKey(key);
 	}
-	
+
+	/** Get the layout which assigns slots to attribute names. */
+	public ContextLayout getLayout() {
+		return layout;
+	}
+
+	/** Set the value of a slot of this context's layout. */
+	public void putSlot(final int slot, final Object value) {
+		slots.set(slot, mask(value));
+	}
+
+	/** Get the value of a slot of this context's layout. */
+	public Object getSlot(final int slot) {
+		return unmask(slots.get(slot));
+	}
+
+	/** Check whether a slot of this context's layout has a value. */
+	public boolean hasSlot(final int slot) {
+		return slots.get(slot) != null;
+	}
+
 	public Collection<Object> getAttributeKeys() {
-		return attributes.keySet();
+		final List<Object> keys = Lists.newArrayList();
+		for (int slot = 0; slot < slots.length(); ++slot) {
+			if (hasSlot(slot)) {
+				keys.add(layout.getName(slot));
+			}
+		}
+		keys.addAll(attributes.keySet());
+		return keys;
 	}
-	
+
 	public String toString() {
-		return attributes.toString();
+		final Map<Object, Object> values = new LinkedHashMap<Object, Object>();
+		for (final Object key : getAttributeKeys()) {
+			values.put(key, getAttribute(key));
+		}
+		return values.toString();
+	}
+
+	private static Object mask(final Object value) {
+		return value == null ? NULL : value;
+	}
+
+	private static Object unmask(final Object value) {
+		return value == NULL ? null : value;
 	}
 }
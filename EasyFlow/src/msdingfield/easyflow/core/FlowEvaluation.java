@@ -0,0 +1,93 @@
+package msdingfield.easyflow.core;
+
+import java.util.List;
+
+import msdingfield.easyflow.support.NoMatchingOutputException;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/** A running evaluation of a system, see FlowEvaluator.start().
+ *
+ * Besides the result of the whole evaluation, each output has its own future
+ * which completes as soon as the operation producing it has finished.  This
+ * lets callers use some outputs, or chain more asynchronous work on them,
+ * while the rest of the system is still being evaluated.
+ *
+ * If an operation fails, the result and every output which is not yet done
+ * fail with the same cause.  Cancelling the result cancels the evaluation.
+ */
+public final class FlowEvaluation {
+
+	private final FlowSystem system;
+
+	private final FlowContext context;
+
+	private final ListenableFuture<FlowContext> result;
+
+	/** Futures which complete when each operation's outputs are set, indexed by operation number. */
+	private final List<SettableFuture<Void>> operationFutures;
+
+	FlowEvaluation(final FlowSystem system, final FlowContext context, final ListenableFuture<Void> evaluationFuture, final List<SettableFuture<Void>> operationFutures) {
+		this.system = system;
+		this.context = context;
+		this.operationFutures = operationFutures;
+		this.result = Futures.transform(evaluationFuture, new Function<Void, FlowContext>() {
+			@Override
+			public FlowContext apply(final Void input) {
+				return context;
+			}
+		}, MoreExecutors.directExecutor());
+	}
+
+	/** Get the context in which the system is evaluated. */
+	public FlowContext getContext() {
+		return context;
+	}
+
+	/** Get a future which completes with the context once every operation has finished. */
+	public ListenableFuture<FlowContext> getResult() {
+		return result;
+	}
+
+	/** Get a future which completes with the value of an output once it is set.
+	 *
+	 * Names which no operation produces complete right away with the value
+	 * given in the context.
+	 *
+	 * @param name Name of the output.
+	 * @return A future for the output's value.
+	 * @throws NoMatchingOutputException If nothing produces or provides the name.
+	 */
+	public ListenableFuture<Object> output(final String name) {
+		final FlowOperation producer = system.getProducer(name);
+		if (producer == null) {
+			if (!context.hasAttribute(name)) {
+				throw new NoMatchingOutputException("No operation produces '" + name + "'.");
+			}
+			return Futures.immediateFuture(context.getAttribute(name));
+		}
+		return Futures.transform(operationFutures.get(system.getPlan().indexOf(producer)), new Function<Void, Object>() {
+			@Override
+			public Object apply(final Void input) {
+				return context.getAttribute(name);
+			}
+		}, MoreExecutors.directExecutor());
+	}
+
+	/** Get a future which completes with the value of an output once it is set.
+	 *
+	 * See output(String).
+	 */
+	public <T> ListenableFuture<T> output(final String name, final Class<T> type) {
+		return Futures.transform(output(name), new Function<Object, T>() {
+			@Override
+			public T apply(final Object input) {
+				return type.cast(input);
+			}
+		}, MoreExecutors.directExecutor());
+	}
+}
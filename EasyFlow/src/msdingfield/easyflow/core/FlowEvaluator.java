@@ -1,50 +1,116 @@
 package msdingfield.easyflow.core;
 
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Vector;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import msdingfield.easyflow.support.EvaluationTimeoutException;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
-/** Evaluates FlowOperations from a FlowSystem. */
+/** Evaluates FlowOperations from a FlowSystem.
+ * 
+ * The static methods evaluate a system once.  An evaluator from 
+ * newEvaluator() is bound to a system and evaluates it again & again,
+ * reusing its runners & counts so that evaluations of operations which 
+ * complete synchronously allocate next to nothing.
+ */
 public class FlowEvaluator {
-	/** Executor for running operations.
-	 * 
-	 * Operations are not expected to block so we don't need more threads than we have processors.
-	 */
-	private static final ExecutorService executor = Executors.newFixedThreadPool(
-			Runtime.getRuntime().availableProcessors(), 
-			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("flow-pool-%d").build());
+	/** Options this evaluation was started with. */
+	private final EvaluationOptions options;
+	
+	/** Executor for running operations which don't declare a pool. */
+	private final Executor executor;
+	
+	/** Executors of the pools declared by operations, by pool name.  Null if none. */
+	private Map<String, Executor> poolExecutors = null;
+	
+	/** Whether a finishing operation runs one ready successor itself. */
+	private final boolean inlineSuccessors;
+	
+	/** Whether operation run times are recorded in the plan. */
+	private final boolean recordRunTimes;
+	
+	/** Receives timing events, null if none. */
+	private final EvaluationListener listener;
+	
+	/** Time the evaluation started, only set with a listener. */
+	private long startNanos = 0L;
+	
+	/** Time allowed for the whole evaluation in nanoseconds, 0 for no limit. */
+	private final long timeoutNanos;
+	
+	/** Time the evaluation times out, only set with a timeout. */
+	private long deadlineNanos = 0L;
+	
+	/** Time an operation may wait for futures in nanoseconds, 0 for no limit. */
+	private final long operationTimeoutNanos;
 
-	/** The system of operations to evaluate. */
-	private final FlowSystem system;
+	/** The compiled system of operations to evaluate. */
+	private final FlowPlan plan;
 	
-	/** The context in which to evaluate. */
-	private final FlowContext context;
+	/** The contexts in which to evaluate, a single one unless evaluating a batch. */
+	private final List<FlowContext> contexts;
 	
-	/** A future for callers to block on. */
-	private final SettableFuture<Void> evaluationFuture = SettableFuture.create();
+	/** A future for callers to block on, replaced by each evaluation. */
+	private volatile SettableFuture<Void> evaluationFuture = SettableFuture.create();
 	
-	/** Runners which wrap each operation. */
-	private final Map<FlowOperation, OperationRunner> runners = Maps.newIdentityHashMap();
+	/** Set once the evaluation failed or was cancelled. */
+	private volatile boolean stopped = false;
+	
+	/** Futures which complete when each operation's outputs are set, indexed
+	 * by operation number.  Null unless started as a FlowEvaluation.
+	 */
+	private List<SettableFuture<Void>> operationFutures = null;
+	
+	/** Runners which wrap each operation, indexed by operation number. */
+	private final OperationRunner[] runners;
+	
+	/** Operations which run, either because they were affected by a change or
+	 * are required for the requested outputs, indexed by operation number.
+	 * Null if all run.
+	 */
+	private final boolean[] affected;
+	
+	/** Whether an operation must run because an input changed, indexed by
+	 * operation number.  Only used when re-evaluating with the equality cutoff.
+	 */
+	private final AtomicIntegerArray dirty;
+	
+	/** Number of preceeders which haven't finished, indexed by operation number.
+	 * This starts as the number of input operations + 1.  The +1 is for 
+	 * an imaginary input operation to all real operations.  This prevents
+	 * operations from running too soon.
+	 */
+	private final AtomicIntegerArray waitCounts;
 	
 	/** Running count of the number of scheduled & running operations.
 	 * 
 	 * This is the number of operations for this evaluation which have been
 	 * passed to the executor service and which have not completed.  When this
-	 * count returns to zero, the evaluation is complete.
+	 * count returns to zero, the evaluation is complete.  Operations of a
+	 * failed evaluation are counted until they return too, so that a reused
+	 * evaluator knows when it is idle.
 	 */
 	private final AtomicInteger runningCount = new AtomicInteger(0);
 	
@@ -55,146 +121,1199 @@ public class FlowEvaluator {
 	 * @return A future which caller can block on.
 	 */
 	public static Future<Void> evaluate(final FlowSystem system, final FlowContext context) {
-		return new FlowEvaluator(system, context).evaluateInternal();
+		return evaluate(system, context, EvaluationOptions.DEFAULT);
+	}
+	
+	/** Evaluates a system given a context, running operations on an executor.
+	 * 
+	 * @param system System of operations to evaluate.
+	 * @param context The context in which to evaluate.
+	 * @param executor Executor which runs the operations.  See FlowExecutors.
+	 * @return A future which caller can block on.
+	 */
+	public static Future<Void> evaluate(final FlowSystem system, final FlowContext context, final Executor executor) {
+		return evaluate(system, context, EvaluationOptions.builder().setExecutor(executor).newEvaluationOptions());
+	}
+	
+	/** Evaluates a system given a context and evaluation options.
+	 * 
+	 * @param system System of operations to evaluate.
+	 * @param context The context in which to evaluate.
+	 * @param options Options controlling the evaluation.
+	 * @return A future which caller can block on.
+	 */
+	public static Future<Void> evaluate(final FlowSystem system, final FlowContext context, final EvaluationOptions options) {
+		return new FlowEvaluator(system, Collections.singletonList(context), options, null, null).evaluateInternal();
+	}
+	
+	/** Evaluates only the operations of a system needed for some outputs.
+	 * 
+	 * @param system System of operations to evaluate.
+	 * @param context The context in which to evaluate.
+	 * @param outputNames Names of the outputs to produce.
+	 * @return A future which caller can block on.
+	 */
+	public static Future<Void> evaluate(final FlowSystem system, final FlowContext context, final Set<String> outputNames) {
+		return evaluate(system, context, outputNames, EvaluationOptions.DEFAULT);
+	}
+	
+	/** Evaluates only the operations of a system needed for some outputs.
+	 * 
+	 * This is equivalent to evaluating getSystemForOutputs(outputNames), but
+	 * the required operations are looked up in a cache of the system's plan
+	 * instead of building a new system.
+	 * 
+	 * @param system System of operations to evaluate.
+	 * @param context The context in which to evaluate.
+	 * @param outputNames Names of the outputs to produce.
+	 * @param options Options controlling the evaluation.
+	 * @return A future which caller can block on.
+	 */
+	public static Future<Void> evaluate(final FlowSystem system, final FlowContext context, final Set<String> outputNames, final EvaluationOptions options) {
+		final boolean[] required = system.getPlan().getRequiredOperations(outputNames);
+		return new FlowEvaluator(system, Collections.singletonList(context), options, required, null).evaluateInternal();
+	}
+	
+	/** Evaluates a system for a batch of contexts.
+	 * 
+	 * Each operation is scheduled once per batch and executed for every
+	 * context before its successors are released.  BatchFlowOperations receive
+	 * all of the contexts in one call.
+	 * 
+	 * @param system System of operations to evaluate.
+	 * @param contexts The contexts in which to evaluate.
+	 * @return A future which completes when all contexts have been evaluated.
+	 */
+	public static Future<Void> evaluateBatch(final FlowSystem system, final List<FlowContext> contexts) {
+		return evaluateBatch(system, contexts, EvaluationOptions.DEFAULT);
+	}
+	
+	/** Evaluates a system for a batch of contexts given evaluation options.
+	 * 
+	 * @param system System of operations to evaluate.
+	 * @param contexts The contexts in which to evaluate.
+	 * @param options Options controlling the evaluation.
+	 * @return A future which completes when all contexts have been evaluated.
+	 */
+	public static Future<Void> evaluateBatch(final FlowSystem system, final List<FlowContext> contexts, final EvaluationOptions options) {
+		return new FlowEvaluator(system, Lists.newArrayList(contexts), options, null, null).evaluateInternal();
+	}
+	
+	/** Starts evaluating a system given a context without blocking.
+	 * 
+	 * @param system System of operations to evaluate.
+	 * @param context The context in which to evaluate.
+	 * @return The evaluation, whose outputs can be waited on individually.
+	 */
+	public static FlowEvaluation start(final FlowSystem system, final FlowContext context) {
+		return start(system, context, EvaluationOptions.DEFAULT);
+	}
+	
+	/** Starts evaluating a system given a context and evaluation options.
+	 * 
+	 * @param system System of operations to evaluate.
+	 * @param context The context in which to evaluate.
+	 * @param options Options controlling the evaluation.
+	 * @return The evaluation, whose outputs can be waited on individually.
+	 */
+	public static FlowEvaluation start(final FlowSystem system, final FlowContext context, final EvaluationOptions options) {
+		final FlowEvaluator evaluator = new FlowEvaluator(system, Collections.singletonList(context), options, null, null);
+		final List<SettableFuture<Void>> operationFutures = Lists.newArrayListWithCapacity(evaluator.runners.length);
+		for (int i = 0; i < evaluator.runners.length; ++i) {
+			operationFutures.add(SettableFuture.<Void>create());
+		}
+		evaluator.operationFutures = operationFutures;
+		return new FlowEvaluation(system, context, evaluator.evaluateInternal(), operationFutures);
+	}
+	
+	/** Re-evaluates a system after some attributes of a context changed.
+	 * 
+	 * The context must have been fully evaluated before its changed 
+	 * attributes were updated.  Only operations which transitively consume
+	 * a changed attribute are run again, every other value is reused.  With
+	 * the equality cutoff option an operation whose outputs equal their
+	 * previous values doesn't cause its successors to run.
+	 * 
+	 * @param system System of operations to evaluate.
+	 * @param context The previously evaluated context with updated attributes.
+	 * @param changedNames Names of the attributes which changed.
+	 * @param options Options controlling the evaluation.
+	 * @return A future which caller can block on.
+	 */
+	public static Future<Void> reevaluate(final FlowSystem system, final FlowContext context, final Set<String> changedNames, final EvaluationOptions options) {
+		// Only operations which transitively consume a changed attribute run
+		final FlowPlan plan = system.getPlan();
+		final boolean[] affected = new boolean[plan.size()];
+		for (final String name : changedNames) {
+			for (final FlowOperation op : system.getTransitiveSuccessors(name)) {
+				affected[plan.indexOf(op)] = true;
+			}
+		}
+		return new FlowEvaluator(system, Collections.singletonList(context), options, affected, changedNames).evaluateInternal();
+	}
+	
+	/** Re-evaluates a system after some attributes of a context changed.
+	 * 
+	 * See reevaluate(FlowSystem, FlowContext, Set, EvaluationOptions).
+	 */
+	public static Future<Void> reevaluate(final FlowSystem system, final FlowContext context, final Set<String> changedNames) {
+		return reevaluate(system, context, changedNames, EvaluationOptions.DEFAULT);
+	}
+	
+	/** Creates an evaluator bound to a system which can evaluate it repeatedly.
+	 * 
+	 * See newEvaluator(FlowSystem, EvaluationOptions).
+	 */
+	public static FlowEvaluator newEvaluator(final FlowSystem system) {
+		return newEvaluator(system, EvaluationOptions.DEFAULT);
+	}
+	
+	/** Creates an evaluator bound to a system which can evaluate it repeatedly.
+	 * 
+	 * The evaluator's runners are allocated once & reset by each evaluation.
+	 * An evaluator runs one evaluation at a time and is not thread safe, so 
+	 * keep one per thread or in a pool.
+	 * 
+	 * @param system System of operations to evaluate.
+	 * @param options Options controlling every evaluation.
+	 * @return An idle evaluator.
+	 */
+	public static FlowEvaluator newEvaluator(final FlowSystem system, final EvaluationOptions options) {
+		final FlowEvaluator evaluator = new FlowEvaluator(system, Arrays.asList(new FlowContext[1]), options, null, null);
+		// Nothing to wait for before the first evaluation
+		evaluator.evaluationFuture.set(null);
+		return evaluator;
+	}
+	
+	/** Evaluates this evaluator's system in a context.
+	 * 
+	 * Only evaluators from newEvaluator() can be reused.
+	 * 
+	 * @param context The context in which to evaluate.
+	 * @return A future which caller can block on.
+	 * @throws IllegalStateException If the evaluator isn't idle.
+	 */
+	public ListenableFuture<Void> evaluate(final FlowContext context) {
+		if (!isIdle()) {
+			throw new IllegalStateException("The previous evaluation is still running.");
+		}
+		contexts.set(0, context);
+		evaluationFuture = SettableFuture.create();
+		stopped = false;
+		resetWaitCounts();
+		for (final OperationRunner runner : runners) {
+			runner.reset();
+		}
+		return evaluateInternal();
+	}
+	
+	/** Check whether the last evaluation completed and none of its operations
+	 * are still running.
+	 * 
+	 * Operations of a failed or cancelled evaluation which already started
+	 * executing may keep running for a while.  Those waiting on futures are
+	 * detached from them.
+	 */
+	public boolean isIdle() {
+		return evaluationFuture.isDone() && runningCount.get() == 0;
 	}
 	
-	private FlowEvaluator(final FlowSystem system, final FlowContext context) {
-		this.system = system;
-		this.context = context;
+	private FlowEvaluator(final FlowSystem system, final List<FlowContext> contexts, final EvaluationOptions options, final boolean[] affected, final Set<String> changedNames) {
+		this.plan = system.getPlan();
+		this.contexts = contexts;
+		this.options = options;
+		this.executor = new Dispatcher(options.getExecutor());
+		this.inlineSuccessors = options.isInlineSuccessors();
+		this.recordRunTimes = options.isLatencyWeightedPriorities();
+		this.listener = options.getListener();
+		this.timeoutNanos = options.getTimeoutNanos();
+		this.operationTimeoutNanos = options.getOperationTimeoutNanos();
 
-		// Initialize runners
-		for (final FlowOperation op : system.getAllOperations()) {
-			runners.put(op, new OperationRunner(op));
+		// Initialize runners & wait counts.  See waitCounts for +1.
+		final int size = plan.size();
+		this.runners = new OperationRunner[size];
+		this.waitCounts = new AtomicIntegerArray(size);
+		for (int i = 0; i < size; ++i) {
+			runners[i] = new OperationRunner(i);
+		}
+		this.affected = affected;
+		this.dirty = changedNames != null && options.isEqualityCutoff() ? new AtomicIntegerArray(size) : null;
+		if (affected == null) {
+			resetWaitCounts();
+		} else {
+			// Only affected operations run & only affected predecessors release them
+			for (int i = 0; i < size; ++i) {
+				if (!affected[i]) {
+					continue;
+				}
+				waitCounts.addAndGet(i, 1);
+				for (int p = plan.getSuccessorStart(i); p < plan.getSuccessorEnd(i); ++p) {
+					if (affected[plan.getSuccessor(p)]) {
+						waitCounts.incrementAndGet(plan.getSuccessor(p));
+					}
+				}
+				if (dirty != null && !Collections.disjoint(plan.getOperation(i).getInputs().keySet(), changedNames)) {
+					dirty.set(i, 1);
+				}
+			}
+		}
+	}
+	
+	/** Make every operation wait for all of its predecessors.  See waitCounts for +1. */
+	private void resetWaitCounts() {
+		for (int i = 0; i < runners.length; ++i) {
+			waitCounts.set(i, plan.getPredecessorCount(i) + 1);
 		}
 	}
 	
-	private Future<Void> evaluateInternal() {
+	/** Evaluates a system given a context, for operations & AdmissionController which listen for the result. */
+	static ListenableFuture<Void> evaluateNested(final FlowSystem system, final FlowContext context, final EvaluationOptions options) {
+		return new FlowEvaluator(system, Collections.singletonList(context), options, null, null).evaluateInternal();
+	}
+	
+	private ListenableFuture<Void> evaluateInternal() {
 		/*
 		 * All runners are configured to wait for at least 1 release before 
 		 * running.  We go through and release each runner so those with no
 		 * preceeders will start running.
+		 * 
+		 * The running count is held above zero while releasing so operations
+		 * finishing early can't complete the evaluation before the rest have
+		 * been released.
 		 */
-		for (final OperationRunner op : runners.values()) {
-			op.release();
+		final SettableFuture<Void> future = evaluationFuture;
+		if (listener != null) {
+			startNanos = System.nanoTime();
+		}
+		future.addListener(cancelListener, MoreExecutors.directExecutor());
+		if (timeoutNanos > 0) {
+			deadlineNanos = System.nanoTime() + timeoutNanos;
+			scheduleTimeout(future, timeoutNanos, "Evaluation");
+		}
+		runningCount.incrementAndGet();
+		for (final OperationRunner op : runners) {
+			if (affected == null || affected[op.index]) {
+				op.release();
+			}
 		}
 		
 		/*
 		 * We need to check the count here in case no operations could run.
 		 */
-		if (runningCount.get() == 0) {
-			evaluationFuture.set(null);
+		taskDone();
+		
+		return future;
+	}
+	
+	/** Stops the evaluation if it is cancelled. */
+	private final Runnable cancelListener = new Runnable() {
+		@Override
+		public void run() {
+			if (evaluationFuture.isCancelled()) {
+				stop(null);
+			}
+		}
+	};
+	
+	/** Remove a finished task from the running count & complete the 
+	 * evaluation if no more are running.
+	 */
+	private void taskDone() {
+		if (runningCount.decrementAndGet() == 0 && !stopped) {
+			complete();
+		}
+	}
+	
+	/** Signal that the evaluation is complete. */
+	private void complete() {
+		if (listener != null) {
+			final long completeNanos = System.nanoTime();
+			for (final FlowContext context : contexts) {
+				listener.evaluationComplete(context, startNanos, completeNanos);
+			}
+		}
+		evaluationFuture.set(null);
+	}
+	
+	/** Signal that the evaluation failed.  No further operations are released. */
+	private void fail(final Throwable cause) {
+		if (!stopped) {
+			stop(cause);
+			evaluationFuture.setException(cause);
+		}
+	}
+	
+	/** Stop a failed or cancelled evaluation.
+	 * 
+	 * Operations which haven't started yet won't run and futures operations
+	 * are waiting to be resumed on are cancelled.  Operations waiting on
+	 * async outputs stop waiting, but the outputs aren't cancelled since a
+	 * cache may share them.
+	 * 
+	 * @param cause Why the evaluation failed, null if it was cancelled.
+	 */
+	private void stop(final Throwable cause) {
+		stopped = true;
+		if (operationFutures != null) {
+			for (final SettableFuture<Void> future : operationFutures) {
+				if (cause == null) {
+					future.cancel(false);
+				} else {
+					future.setException(cause);
+				}
+			}
+		}
+		for (final OperationRunner runner : runners) {
+			final ListenableFuture<?> resumeFuture = runner.resumeFuture;
+			if (resumeFuture != null) {
+				resumeFuture.cancel(false);
+			}
+		}
+	}
+	
+	/** Fail the evaluation if a future isn't done in time.
+	 * 
+	 * @param future The future to wait for.
+	 * @param nanos The time allowed.
+	 * @param what What is waiting, for the failure message.
+	 */
+	private void scheduleTimeout(final ListenableFuture<?> future, final long nanos, final String what) {
+		final ScheduledFuture<?> timeout = getTimeoutScheduler().schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (!future.isDone()) {
+					fail(new EvaluationTimeoutException(String.format("%s timed out after %d ms.  Outstanding operations: %s", 
+							what, TimeUnit.NANOSECONDS.toMillis(nanos), getOutstanding())));
+				}
+			}
+		}, nanos, TimeUnit.NANOSECONDS);
+		future.addListener(new Runnable() {
+			@Override
+			public void run() {
+				timeout.cancel(false);
+			}
+		}, MoreExecutors.directExecutor());
+	}
+	
+	/** Get the executor of a pool, see FlowOperation.BuilderBase.setPool.
+	 * 
+	 * The pool's executor is looked up when an operation is first passed to
+	 * it.  If there is none the evaluation fails with an IllegalStateException.
+	 * 
+	 * @param pool Name of the pool, null for the evaluation's executor.
+	 */
+	private Executor getPoolExecutor(final String pool) {
+		if (pool == null) {
+			return executor;
+		}
+		if (poolExecutors == null) {
+			poolExecutors = Maps.newHashMap();
+		}
+		Executor poolExecutor = poolExecutors.get(pool);
+		if (poolExecutor == null) {
+			poolExecutor = new Dispatcher(pool);
+			poolExecutors.put(pool, poolExecutor);
+		}
+		return poolExecutor;
+	}
+	
+	/** Fails the evaluation if an executor rejects an operation or a pool
+	 * has no executor.
+	 */
+	private final class Dispatcher implements Executor {
+		/** Name of the pool, null for the evaluation's executor. */
+		private final String pool;
+		
+		/** The executor, null until a pool's executor is found. */
+		private volatile Executor target;
+		
+		public Dispatcher(final Executor target) {
+			this.pool = null;
+			this.target = target;
+		}
+		
+		public Dispatcher(final String pool) {
+			this.pool = pool;
+			this.target = null;
+		}
+		
+		/** Every command is a counted task, see runningCount. */
+		@Override
+		public void execute(final Runnable command) {
+			Executor current = target;
+			if (current == null) {
+				current = options.getPools().get(pool);
+				if (current == null) {
+					current = FlowExecutors.getBulkhead(pool);
+				}
+				if (current == null) {
+					fail(new IllegalStateException("No executor for pool " + pool + "."));
+					taskDone();
+					return;
+				}
+				target = current;
+			}
+			try {
+				current.execute(command);
+			} catch (final RejectedExecutionException e) {
+				fail(e);
+				taskDone();
+			}
+		}
+	}
+	
+	/** Get the scheduler for timeouts & hedges. */
+	private ScheduledExecutorService getTimeoutScheduler() {
+		return options.getTimeoutScheduler() == null ? FlowExecutors.timeoutScheduler() : options.getTimeoutScheduler();
+	}
+	
+	/** Describe the operations which haven't finished. */
+	private List<String> getOutstanding() {
+		final List<String> outstanding = Lists.newArrayList();
+		for (final OperationRunner runner : runners) {
+			if ((affected == null || affected[runner.index]) && runner.state != State.FINISHED) {
+				outstanding.add(runner.operation + " (" + runner.state.name().toLowerCase().replace('_', ' ') + ")");
+			}
+		}
+		return outstanding;
+	}
+	
+	/** Progress of an operation, for reporting timeouts. */
+	private enum State {
+		WAITING, READY, RUNNING, SUSPENDED, AWAITING_OUTPUTS, FINISHED
+	}
+	
+	/** A future to resume on, in a stack of them. */
+	private static final class ResumingFuture {
+		private final ListenableFuture<?> future;
+		
+		/** The future registered before this one, null if none. */
+		private ResumingFuture next = null;
+		
+		/** Number of futures in the stack from this one down. */
+		private int count = 0;
+		
+		public ResumingFuture(final ListenableFuture<?> future) {
+			this.future = future;
 		}
 		
-		return evaluationFuture;
+		public List<ListenableFuture<?>> toList() {
+			final List<ListenableFuture<?>> futures = Lists.newArrayListWithCapacity(count);
+			for (ResumingFuture node = this; node != null; node = node.next) {
+				futures.add(node.future);
+			}
+			return futures;
+		}
 	}
 	
-	private static final ThreadLocal<FlowEvaluator> flowEvaluatorLocal = new ThreadLocal<>();
+	/** The runner executing an operation on the current thread. */
+	private static final ThreadLocal<OperationRunner> currentRunnerLocal = new ThreadLocal<>();
+	
+	/** Suspend an operation until a future completes.
+	 * 
+	 * The operation is executed again once the future is done.  An operation
+	 * which is not itself part of the evaluated system, such as a step of a
+	 * FusedOperation, suspends the operation currently running.
+	 */
 	public static void resumeOn(final ListenableFuture<?> future, final FlowOperation operation) {
-		if (flowEvaluatorLocal.get() == null) {
+		final OperationRunner current = currentRunnerLocal.get();
+		if (current == null) {
 			throw new IllegalStateException("waitFor() must only be called inside runnable context.");
 		}
-		flowEvaluatorLocal.get().resumeOnInternal(future, operation);
+		current.getEvaluator().resumeOnInternal(future, operation, current);
+	}
+	
+	/** Get the options for an evaluation nested in the operation running on this thread.
+	 * 
+	 * These are the options of the enclosing evaluation with the timeout cut
+	 * to the time left before the enclosing evaluation times out.
+	 * 
+	 * @return The options or DEFAULT outside of an evaluation.
+	 */
+	static EvaluationOptions nestedOptions() {
+		final OperationRunner current = currentRunnerLocal.get();
+		if (current == null) {
+			return EvaluationOptions.DEFAULT;
+		}
+		final FlowEvaluator evaluator = current.getEvaluator();
+		if (evaluator.timeoutNanos <= 0) {
+			return evaluator.options;
+		}
+		final long remainingNanos = Math.max(1L, evaluator.deadlineNanos - System.nanoTime());
+		return evaluator.options.toBuilder()
+				.setTimeout(remainingNanos, TimeUnit.NANOSECONDS)
+				.newEvaluationOptions();
+	}
+	
+	/** Check whether the operation running on this thread will be resumed later. */
+	public static boolean isResumePending() {
+		final OperationRunner current = currentRunnerLocal.get();
+		return current != null && current.getResumingCount() > current.resumeMark;
 	}
 
-	private void resumeOnInternal(final ListenableFuture<?> future, final FlowOperation operation) {
-		final OperationRunner runner = runners.get(operation);
+	private void resumeOnInternal(final ListenableFuture<?> future, final FlowOperation operation, final OperationRunner current) {
+		final int index = plan.indexOf(operation);
+		final OperationRunner runner = index < 0 ? current : runners[index];
 		runner.resumeOn(future);
 	}
 
-	private final class OperationRunner implements Runnable {
+	private final class OperationRunner implements Runnable, Prioritized {
+		
+		/** Number of the operation being wrapped. */
+		private final int index;
 		
 		/** The operation being wrapped. */
 		private final FlowOperation operation;
 		
-		/** Futures we will resume on. */
-		private final Collection<ListenableFuture<?>> resumingFutures = new Vector<>();
+		/** Cache of the operation's outputs, null if not cacheable. */
+		private final OutputCache cache;
+		
+		/** Policy for hedging slow async outputs, null if not hedged. */
+		private final HedgingPolicy hedging;
+		
+		/** Executor of the operation's pool. */
+		private final Executor executor;
+		
+		/** Names of the operation's async outputs. */
+		private final Set<String> asyncOutputs;
+		
+		/** Futures we will resume on, a lock free stack. */
+		private final AtomicReference<ResumingFuture> resumingFutures = new AtomicReference<>();
 		
-		/** Number of preceeders which haven't finished.
-		 * This starts as the number of input operations + 1.  The +1 is for 
-		 * an imaginary input operation to all real operations.  This prevents
-		 * operations from running too soon.
+		/** Number of resuming futures registered before the current context was executed. */
+		private int resumeMark = 0;
+		
+		/** Contexts to execute when resumed, null for all contexts. */
+		private List<FlowContext> suspendedContexts = null;
+		
+		/** Output values before re-evaluation, only used with the equality cutoff. */
+		private List<Object> previousOutputs = null;
+		
+		/** Time the operation became ready, only set with a listener. */
+		private long readyNanos = 0L;
+		
+		/** Time the operation suspended or started waiting for its async
+		 * outputs, only set with a listener.
 		 */
-		private final AtomicInteger waitCount = new AtomicInteger();
+		private long suspendNanos = 0L;
 		
-		public OperationRunner(final FlowOperation operation) {
-			this.operation = operation;
-
-			// See waitCount for +1
-			this.waitCount.set(system.getDirectPredecessors(operation).size() + 1);
+		/** Progress of the operation. */
+		private volatile State state = State.WAITING;
+		
+		/** The future a suspended operation resumes on, or which completes when
+		 * its async outputs are done, null if neither.
+		 */
+		private volatile ListenableFuture<?> resumeFuture = null;
+		
+		public OperationRunner(final int index) {
+			this.index = index;
+			this.operation = plan.getOperation(index);
+			this.cache = operation.getCache();
+			this.hedging = operation.getHedgingPolicy();
+			this.executor = getPoolExecutor(operation.getPool());
+			this.asyncOutputs = operation.getAsyncOutputs();
+		}
+		
+		public FlowEvaluator getEvaluator() {
+			return FlowEvaluator.this;
+		}
+		
+		/** Prepare to run in the next evaluation of a reused evaluator. */
+		public void reset() {
+			state = State.WAITING;
+			resumeFuture = null;
+			resumingFutures.set(null);
+			suspendedContexts = null;
+			previousOutputs = null;
+			cacheOnly = false;
+			nextInline = null;
 		}
 		
 		public void resumeOn(final ListenableFuture<?> future) {
-			resumingFutures.add(future);
+			final ResumingFuture node = new ResumingFuture(future);
+			do {
+				node.next = resumingFutures.get();
+				node.count = node.next == null ? 1 : node.next.count + 1;
+			} while (!resumingFutures.compareAndSet(node.next, node));
+		}
+		
+		/** Get the number of futures we will resume on. */
+		public int getResumingCount() {
+			final ResumingFuture top = resumingFutures.get();
+			return top == null ? 0 : top.count;
+		}
+		
+		@Override
+		public long getPriority() {
+			return plan.getRank(index);
 		}
 
 		/** Indicate completion of a preceeder. */
 		public void release() {
-			if (waitCount.decrementAndGet() == 0) {
+			if (waitCounts.decrementAndGet(index) == 0) {
 				runningCount.incrementAndGet();
-				executor.execute(this);
+				ready();
+				if (isCached()) {
+					cacheOnly = true;
+					run();
+				} else {
+					executor.execute(this);
+				}
+			}
+		}
+		
+		/** Check whether the outputs of every context are cached, so running
+		 * the operation is cheap.
+		 */
+		private boolean isCached() {
+			if (cache == null || suspendedContexts != null) {
+				return false;
+			}
+			for (int i = 0; i < contexts.size(); ++i) {
+				if (!cache.contains(OutputCache.keyOf(operation, contexts.get(i)))) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		/** Record that the operation is about to be run. */
+		private void ready() {
+			state = State.READY;
+			if (listener != null) {
+				readyNanos = System.nanoTime();
+				listener.operationReady(operation, readyNanos);
 			}
 		}
 
+		/** Whether the runner was run inline only because its outputs were
+		 * cached.  Only used by the thread running this runner.
+		 */
+		private boolean cacheOnly = false;
+		
+		/** Next runner on the stack of runners to run inline.  Only used by
+		 * the thread running this runner.
+		 */
+		private OperationRunner nextInline = null;
+		
 		@Override
 		public void run() {
+			/*
+			 * Runners made ready by an operation which are to run on this
+			 * thread are pushed onto an intrusive stack instead of being
+			 * passed to the executor.
+			 */
+			this.nextInline = null;
+			runStack(this);
+		}
+		
+		/** Run runners on the stack, and those they make ready, until it is empty. */
+		private void runStack(OperationRunner stack) {
+			while (stack != null) {
+				final OperationRunner runner = stack;
+				stack = runner.nextInline;
+				runner.nextInline = null;
+				stack = runner.runOperation(stack);
+			}
+		}
+		
+		/** Run the operation & release its successors.
+		 * 
+		 * @param stack Top of the stack of runners to run inline.
+		 * @return The new top of the stack.
+		 */
+		private OperationRunner runOperation(OperationRunner stack) {
+			// The evaluation failed or was cancelled before this could run
+			resumeFuture = null;
+			if (stopped) {
+				taskDone();
+				return stack;
+			}
+			
+			// None of the inputs changed since the last evaluation
+			if (isSkipped()) {
+				return finishOperation(stack, false);
+			}
+			if (dirty != null && previousOutputs == null) {
+				previousOutputs = getOutputValues();
+			}
+			
 			// Execute the operation
+			state = State.RUNNING;
+			final long start = recordRunTimes || listener != null || hedging != null ? System.nanoTime() : 0L;
+			if (listener != null) {
+				listener.operationStarted(operation, readyNanos, start);
+			}
+			final List<FlowContext> batch = suspendedContexts == null ? contexts : suspendedContexts;
+			suspendedContexts = null;
+			final boolean restoreOnly = cacheOnly;
+			cacheOnly = false;
+			boolean evicted = false;
+			final OperationRunner outer = currentRunnerLocal.get();
 			try {
-				flowEvaluatorLocal.set(FlowEvaluator.this);
-				operation.execute(context);
+				currentRunnerLocal.set(this);
+				if (operation instanceof BatchFlowOperation) {
+					evicted = !executeBatch(batch, restoreOnly);
+				} else {
+					for (int i = 0; i < batch.size(); ++i) {
+						final FlowContext context = batch.get(i);
+						final List<Object> key = cache == null ? null : OutputCache.keyOf(operation, context);
+						if (key != null && cache.restore(key, context)) {
+							continue;
+						}
+						if (restoreOnly) {
+							evicted = true;
+							break;
+						}
+						resumeMark = getResumingCount();
+						operation.execute(context);
+						if (getResumingCount() > resumeMark) {
+							if (suspendedContexts == null) {
+								suspendedContexts = Lists.newArrayList();
+							}
+							suspendedContexts.add(context);
+						} else if (key != null) {
+							cache.store(key, operation, context);
+						}
+					}
+				}
+			} catch (final Throwable e) {
+				// Errors too, or the evaluation would never complete
+				fail(e);
+				taskDone();
+				return stack;
 			} finally {
-				flowEvaluatorLocal.remove();
+				// Set rather than remove, which would allocate a new entry next time
+				resumeMark = 0;
+				currentRunnerLocal.set(outer);
+			}
+			if (evicted) {
+				// Outputs cached when the operation became ready were evicted since
+				state = State.READY;
+				executor.execute(this);
+				return stack;
+			}
+			final long finish = recordRunTimes || listener != null ? System.nanoTime() : 0L;
+			if (recordRunTimes) {
+				plan.recordRunTime(index, finish - start);
 			}
 			
-			if (resumingFutures.isEmpty()) {
-			
-				// Release followers to run
-				for (final FlowOperation follower : system.getDirectSuccessors(operation)) {
-					final OperationRunner runner = runners.get(follower);
-					runner.release();
+			final ResumingFuture resuming = resumingFutures.getAndSet(null);
+			if (resuming == null) {
+				if (listener != null) {
+					suspendNanos = finish;
+					listener.operationFinished(operation, start, finish);
+				}
+				return awaitAsyncOutputs(stack, start);
+			} else {
+				// We will be resumed later, so logically we're still running
+				if (listener != null) {
+					suspendNanos = finish;
+					listener.operationSuspended(operation, start, finish);
 				}
 				
-				// Remove ourself from the running operation count
-				if (runningCount.decrementAndGet() == 0) {
-					// No more operations are running so signal that evaluation is complete
-					// Unless we have unfinished futures
-					final List<ListenableFuture<?>> pendingFutures = Lists.newArrayList();
-					for (final String outputName : operation.getOutputs().keySet()) {
-						final Object attr = context.getAttribute(outputName);
-						if (attr instanceof ListenableFuture<?>) {
-							final ListenableFuture<?> future = (ListenableFuture<?>) attr;
-							if (!future.isDone()) {
-								pendingFutures.add(future);
-								future.addListener(new Runnable(){
-
+				// Resume once, after every future we wait on is done
+				final ListenableFuture<?> resumeFuture = resuming.next == null 
+						? resuming.future : Futures.successfulAsList(resuming.toList());
+				state = State.SUSPENDED;
+				this.resumeFuture = resumeFuture;
+				if (operationTimeoutNanos > 0) {
+					scheduleTimeout(resumeFuture, operationTimeoutNanos, String.valueOf(operation));
+				}
+				resumeFuture.addListener(listener == null ? this : new Resumer(), listener == null ? executor : MoreExecutors.directExecutor());
+				
+				// Don't wait on a future nobody will complete if we stopped meanwhile
+				if (stopped) {
+					resumeFuture.cancel(false);
+				}
+			}
+			return stack;
+		}
+		
+		/** Wait for the futures of async outputs before releasing successors.
+		 * 
+		 * Values of futures which are done are put into the context right
+		 * away.  Otherwise the operation logically keeps running until the
+		 * futures complete, without occupying a thread.  A hedged operation
+		 * waits on the first attempt to complete each output instead.
+		 * 
+		 * @param stack Top of the stack of runners to run inline.
+		 * @param start Time the operation started, only set when hedging.
+		 * @return The new top of the stack.
+		 */
+		private OperationRunner awaitAsyncOutputs(final OperationRunner stack, final long start) {
+			List<ListenableFuture<?>> pending = null;
+			SettableFuture<Void> awaited = null;
+			List<HedgedOutput> hedged = null;
+			if (!asyncOutputs.isEmpty()) {
+				for (final FlowContext context : contexts) {
+					if (hedging != null) {
+						hedging.recordAttempt();
+					}
+					for (final String name : asyncOutputs) {
+						final Object value = context.getAttribute(name);
+						if (value instanceof ListenableFuture<?>) {
+							final ListenableFuture<?> attempt = (ListenableFuture<?>) value;
+							if (attempt.isDone()) {
+								putFutureValue(context, name, attempt);
+							} else {
+								if (pending == null) {
+									pending = Lists.newArrayList();
+									awaited = SettableFuture.create();
+								}
+								final ListenableFuture<?> future;
+								if (hedging == null) {
+									future = attempt;
+								} else {
+									if (hedged == null) {
+										hedged = Lists.newArrayList();
+									}
+									final HedgedOutput output = new HedgedOutput(context, name, attempt, cache == null);
+									hedged.add(output);
+									future = output.winner;
+								}
+								pending.add(future);
+								final SettableFuture<Void> wait = awaited;
+								future.addListener(new Runnable() {
 									@Override
 									public void run() {
-										try {
-											context.putAttribute(outputName, future.get());
-										} catch (Exception e) {
-											// TODO Auto-generated catch block
-											e.printStackTrace();
+										// Not after being detached by stop()
+										if (!wait.isCancelled()) {
+											putFutureValue(context, name, future);
 										}
-									}}, executor);
+									}
+								}, MoreExecutors.directExecutor());
 							}
 						}
 					}
-					if (pendingFutures.isEmpty()) {
-						evaluationFuture.set(null);
-					} else {
-						Futures.successfulAsList(pendingFutures).addListener(new Runnable(){
-
+				}
+			}
+			
+			if (pending == null) {
+				if (hedging != null) {
+					hedging.recordLatency(System.nanoTime() - start);
+				}
+				return outputsReady(stack);
+			}
+			
+			/*
+			 * Wait on a future of our own rather than the outputs, so stop()
+			 * can cancel the wait without cancelling outputs a cache shares.
+			 */
+			state = State.AWAITING_OUTPUTS;
+			final SettableFuture<Void> outputsFuture = awaited;
+			Futures.successfulAsList(pending).addListener(new Runnable() {
+				@Override
+				public void run() {
+					outputsFuture.set(null);
+				}
+			}, MoreExecutors.directExecutor());
+			resumeFuture = outputsFuture;
+			if (operationTimeoutNanos > 0) {
+				scheduleTimeout(outputsFuture, operationTimeoutNanos, String.valueOf(operation));
+			}
+			if (hedged != null) {
+				scheduleHedge(outputsFuture, hedged, start);
+			}
+			outputsFuture.addListener(new Continuation() {
+				@Override
+				public void run() {
+					resumeFuture = null;
+					if (!outputsFuture.isCancelled()) {
+						if (hedging != null) {
+							hedging.recordLatency(System.nanoTime() - start);
+						}
+						if (listener != null) {
+							listener.operationOutputsDone(operation, suspendNanos, System.nanoTime());
+						}
+					}
+					runStack(outputsReady(null));
+				}
+			}, executor);
+			
+			// Don't wait on outputs which may never complete if we stopped meanwhile
+			if (stopped) {
+				outputsFuture.cancel(false);
+			}
+			return stack;
+		}
+		
+		/** Execute the operation again if its outputs are still pending after
+		 * the hedging delay.
+		 */
+		private void scheduleHedge(final ListenableFuture<?> outputsFuture, final List<HedgedOutput> hedged, final long start) {
+			final long delay = hedging.getDelayNanos();
+			if (delay < 0) {
+				return;
+			}
+			final ScheduledFuture<?> hedge = getTimeoutScheduler().schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (!outputsFuture.isDone() && !stopped && hedging.tryAcquireHedge()) {
+						runningCount.incrementAndGet();
+						executor.execute(new Continuation() {
 							@Override
 							public void run() {
-								evaluationFuture.set(null);
-							}}, executor);;
+								try {
+									hedge(hedged);
+								} finally {
+									taskDone();
+								}
+							}
+						});
 					}
 				}
-			} else {
-				// We will be resumed later, so logically we're still running
-				for (final ListenableFuture<?> f : resumingFutures) {
-					f.addListener(this, executor);
+			}, Math.max(0L, delay - (System.nanoTime() - start)), TimeUnit.NANOSECONDS);
+			outputsFuture.addListener(new Runnable() {
+				@Override
+				public void run() {
+					hedge.cancel(false);
+				}
+			}, MoreExecutors.directExecutor());
+		}
+		
+		/** Execute the operation in a copy of each context with pending outputs
+		 * and race the new attempts against the first ones.
+		 */
+		private void hedge(final List<HedgedOutput> hedged) {
+			FlowContext context = null;
+			FlowContext copy = null;
+			for (final HedgedOutput output : hedged) {
+				if (output.winner.isDone()) {
+					continue;
+				}
+				if (output.context != context) {
+					context = output.context;
+					copy = new FlowContext(context.getLayout());
+					for (final String name : operation.getInputs().keySet()) {
+						if (context.hasAttribute(name)) {
+							copy.putAttribute(name, context.getAttribute(name));
+						}
+					}
+					try {
+						operation.execute(copy);
+					} catch (final Throwable e) {
+						// The first attempt may still succeed
+						copy = null;
+					}
+				}
+				if (copy != null) {
+					output.addAttempt(copy.getAttribute(output.name));
+				}
+			}
+		}
+		
+		/** Replace a future output with its value. */
+		private void putFutureValue(final FlowContext context, final String name, final ListenableFuture<?> future) {
+			try {
+				context.putAttribute(name, Futures.getDone(future));
+			} catch (final ExecutionException e) {
+				fail(e.getCause());
+			} catch (final CancellationException e) {
+				fail(e);
+			}
+		}
+		
+		/** All outputs have values so successors may run. */
+		private OperationRunner outputsReady(final OperationRunner stack) {
+			boolean changed = true;
+			if (previousOutputs != null) {
+				changed = !previousOutputs.equals(getOutputValues());
+				previousOutputs = null;
+			}
+			return finishOperation(stack, changed);
+		}
+		
+		/** Release successors & complete the evaluation if nothing else is running.
+		 * 
+		 * @param stack Top of the stack of runners to run inline.
+		 * @param changed Whether the outputs changed, see dirty.
+		 * @return The new top of the stack.
+		 */
+		private OperationRunner finishOperation(OperationRunner stack, final boolean changed) {
+			// A failed evaluation releases nothing more
+			state = State.FINISHED;
+			if (stopped) {
+				taskDone();
+				return stack;
+			}
+			if (operationFutures != null) {
+				operationFutures.get(index).set(null);
+			}
+			
+			// Release followers to run.  One may continue on this thread
+			boolean continuing = !inlineSuccessors;
+			final int end = plan.getSuccessorEnd(index);
+			for (int i = plan.getSuccessorStart(index); i < end; ++i) {
+				final int follower = plan.getSuccessor(i);
+				if (affected != null && !affected[follower]) {
+					continue;
+				}
+				if (changed && dirty != null) {
+					dirty.set(follower, 1);
+				}
+				if (waitCounts.decrementAndGet(follower) == 0) {
+					runningCount.incrementAndGet();
+					final OperationRunner runner = runners[follower];
+					runner.ready();
+					final boolean cached = !runner.operation.isInline() && !runner.isSkipped() && runner.isCached();
+					final boolean cheap = cached || runner.operation.isInline() || runner.isSkipped();
+					runner.cacheOnly = cached;
+					// Only continue with operations of our own pool
+					if (cheap || (!continuing && runner.executor == executor)) {
+						continuing |= !cheap;
+						runner.nextInline = stack;
+						stack = runner;
+					} else {
+						runner.executor.execute(runner);
+					}
 				}
-				resumingFutures.clear();
+			}
+			
+			// Remove ourself from the running operation count
+			taskDone();
+			return stack;
+		}
+		
+		/** Check whether the operation is skipped because none of its inputs changed. */
+		private boolean isSkipped() {
+			return dirty != null && dirty.get(index) == 0;
+		}
+		
+		/** Get the values of the operation's outputs in every context. */
+		private List<Object> getOutputValues() {
+			final List<Object> values = Lists.newArrayList();
+			for (final FlowContext context : contexts) {
+				for (final String name : operation.getOutputs().keySet()) {
+					values.add(context.getAttribute(name));
+				}
+			}
+			return values;
+		}
+		
+		/** Execute a batch operation for the contexts whose outputs aren't cached.
+		 * 
+		 * @param restoreOnly Whether to only restore outputs from the cache.
+		 * @return False if restoreOnly and some outputs weren't cached.
+		 */
+		private boolean executeBatch(final List<FlowContext> batch, final boolean restoreOnly) {
+			List<FlowContext> misses = batch;
+			if (cache != null) {
+				misses = Lists.newArrayList();
+				for (final FlowContext context : batch) {
+					if (!cache.restore(OutputCache.keyOf(operation, context), context)) {
+						misses.add(context);
+					}
+				}
+				if (misses.isEmpty()) {
+					return true;
+				}
+				if (restoreOnly) {
+					return false;
+				}
+			}
+			((BatchFlowOperation) operation).executeBatch(misses);
+			if (resumingFutures.get() != null) {
+				suspendedContexts = misses;
+			} else if (cache != null) {
+				for (final FlowContext context : misses) {
+					cache.store(OutputCache.keyOf(operation, context), operation, context);
+				}
+			}
+			return true;
+		}
+		
+		/** An async output raced by several attempts of a hedged operation. */
+		private final class HedgedOutput {
+			private final FlowContext context;
+			private final String name;
+			
+			/** Completes with the value of the first attempt to succeed. */
+			private final SettableFuture<Object> winner = SettableFuture.create();
+			
+			/** The future from the first attempt. */
+			private final ListenableFuture<?> first;
+			
+			/** Whether the first attempt may be cancelled, false if it may be shared through a cache. */
+			private final boolean cancelFirst;
+			
+			private final Queue<ListenableFuture<?>> attempts = new ConcurrentLinkedQueue<>();
+			
+			/** Number of attempts which haven't completed. */
+			private final AtomicInteger running = new AtomicInteger();
+			
+			public HedgedOutput(final FlowContext context, final String name, final ListenableFuture<?> first, final boolean cancelFirst) {
+				this.context = context;
+				this.name = name;
+				this.first = first;
+				this.cancelFirst = cancelFirst;
+				addAttempt(first);
+			}
+			
+			/** Race another attempt's value for the output. */
+			public void addAttempt(final Object value) {
+				if (!(value instanceof ListenableFuture<?>)) {
+					if (winner.set(value)) {
+						cancelLosers(null);
+					}
+					return;
+				}
+				final ListenableFuture<?> attempt = (ListenableFuture<?>) value;
+				attempts.add(attempt);
+				running.incrementAndGet();
+				attempt.addListener(new Runnable() {
+					@Override
+					public void run() {
+						complete(attempt);
+					}
+				}, MoreExecutors.directExecutor());
+			}
+			
+			/** The output fails only if every attempt failed. */
+			private void complete(final ListenableFuture<?> attempt) {
+				try {
+					if (winner.set(Futures.getDone(attempt))) {
+						cancelLosers(attempt);
+					}
+				} catch (final ExecutionException e) {
+					if (running.decrementAndGet() == 0) {
+						winner.setException(e.getCause());
+					}
+				} catch (final CancellationException e) {
+					if (running.decrementAndGet() == 0) {
+						winner.setException(e);
+					}
+				}
+			}
+			
+			private void cancelLosers(final ListenableFuture<?> winning) {
+				for (final ListenableFuture<?> attempt : attempts) {
+					if (attempt != winning && (attempt != first || cancelFirst)) {
+						attempt.cancel(false);
+					}
+				}
+			}
+		}
+		
+		/** Work of the operation passed to the executor besides running it,
+		 * queued with the operation's priority.
+		 */
+		private abstract class Continuation implements Runnable, Prioritized {
+			@Override
+			public long getPriority() {
+				return OperationRunner.this.getPriority();
+			}
+		}
+		
+		/** Reports resumption of a suspended operation before passing it to the executor. */
+		private final class Resumer extends Continuation {
+			@Override
+			public void run() {
+				final long resumeNanos = System.nanoTime();
+				listener.operationResumed(operation, suspendNanos, resumeNanos);
+				readyNanos = resumeNanos;
+				listener.operationReady(operation, resumeNanos);
+				executor.execute(OperationRunner.this);
 			}
 		}
 	}
@@ -0,0 +1,296 @@
+package msdingfield.easyflow.core;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/** Executors for running operations. */
+public final class FlowExecutors {
+
+	/** Executor used when none is configured.
+	 *
+	 * Operations are not expected to block so we don't need more threads than we have processors.
+	 */
+	private static final ExecutorService defaultExecutor = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(),
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("flow-pool-%d").build());
+
+	/** Lazily created shared priority pool. */
+	private static volatile ExecutorService priorityPool = null;
+
+	/** Lazily created thread per operation executor. */
+	private static volatile ExecutorService threadPerOperationExecutor = null;
+
+	/** Lazily created shared work stealing pool. */
+	private static volatile Executor workStealingPool = null;
+
+	/** Lazily created scheduler for timeouts. */
+	private static volatile ScheduledExecutorService timeoutScheduler = null;
+
+	/** Registered bulkheads by name. */
+	private static final ConcurrentMap<String, Bulkhead> bulkheads = Maps.newConcurrentMap();
+
+	/** Get the shared fixed pool sized to the number of processors. */
+	public static Executor defaultExecutor() {
+		return defaultExecutor;
+	}
+
+	/** Get a shared executor which runs every operation on its own thread.
+	 *
+	 * This suits operations which block, for example on JDBC calls.  On
+	 * runtimes with virtual threads each operation gets a new virtual thread,
+	 * so thousands of blocked operations don't need thousands of platform
+	 * threads.  Older runtimes fall back to a cached pool of daemon threads.
+	 */
+	public static Executor threadPerOperation() {
+		if (threadPerOperationExecutor == null) {
+			synchronized (FlowExecutors.class) {
+				if (threadPerOperationExecutor == null) {
+					threadPerOperationExecutor = newThreadPerOperationExecutor();
+				}
+			}
+		}
+		return threadPerOperationExecutor;
+	}
+
+	/** Get a shared work stealing pool sized to the number of processors.
+	 *
+	 * See newWorkStealingPool().
+	 */
+	public static Executor workStealingPool() {
+		if (workStealingPool == null) {
+			synchronized (FlowExecutors.class) {
+				if (workStealingPool == null) {
+					workStealingPool = newWorkStealingPool(Runtime.getRuntime().availableProcessors());
+				}
+			}
+		}
+		return workStealingPool;
+	}
+
+	/** Create an executor which schedules operations on a ForkJoinPool.
+	 *
+	 * Operations made ready by an operation running in the pool are pushed
+	 * onto the running worker's own deque and run last in first out, so
+	 * successors usually run on the core which produced their inputs.  Idle
+	 * workers steal from the other end of busy workers' deques.  Wide systems
+	 * don't contend on a single shared queue.  Operations submitted from
+	 * outside the pool go to its shared submission queues.  Priorities are
+	 * ignored.
+	 *
+	 * @param parallelism Number of worker threads.
+	 */
+	public static Executor newWorkStealingPool(final int parallelism) {
+		return new WorkStealingExecutor(new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+			@Override
+			public ForkJoinWorkerThread newThread(final ForkJoinPool pool) {
+				final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				thread.setDaemon(true);
+				thread.setName("flow-fork-join-" + thread.getPoolIndex());
+				return thread;
+			}
+		}, null, false));
+	}
+
+	/** Get a shared single thread scheduler which enforces evaluation timeouts.
+	 *
+	 * Scheduled tasks only complete futures, they never run operations.
+	 */
+	public static ScheduledExecutorService timeoutScheduler() {
+		if (timeoutScheduler == null) {
+			synchronized (FlowExecutors.class) {
+				if (timeoutScheduler == null) {
+					timeoutScheduler = Executors.newSingleThreadScheduledExecutor(
+							new ThreadFactoryBuilder().setDaemon(true).setNameFormat("flow-timeout-%d").build());
+				}
+			}
+		}
+		return timeoutScheduler;
+	}
+
+	/** Get a shared priority pool sized to the number of processors.
+	 *
+	 * See newPriorityPool().
+	 */
+	public static Executor priorityPool() {
+		if (priorityPool == null) {
+			synchronized (FlowExecutors.class) {
+				if (priorityPool == null) {
+					priorityPool = newPriorityPool(Runtime.getRuntime().availableProcessors());
+				}
+			}
+		}
+		return priorityPool;
+	}
+
+	/** Create a fixed pool which runs queued tasks in priority order.
+	 *
+	 * When all threads are busy, queued Prioritized tasks run highest priority
+	 * first and tasks of equal priority in the order they were submitted.
+	 * Operation runners are prioritized by their remaining downstream path
+	 * length so work on the critical path of an evaluation starts first.
+	 * Tasks which are not Prioritized have the lowest priority.
+	 *
+	 * @param threads Number of threads in the pool.
+	 */
+	public static ExecutorService newPriorityPool(final int threads) {
+		return new PriorityPool(threads);
+	}
+
+	/** Create & register a named pool for operations which declare it.
+	 *
+	 * @param name Name of the pool, see FlowOperation.BuilderBase.setPool.
+	 * @param threads Number of threads in the pool.
+	 * @param queueCapacity Most operations which may wait for a thread.
+	 * @throws IllegalStateException If a bulkhead with the name exists.
+	 */
+	public static Bulkhead newBulkhead(final String name, final int threads, final int queueCapacity) {
+		Preconditions.checkArgument(threads >= 1 && queueCapacity >= 1);
+		final Bulkhead bulkhead = new Bulkhead(name, threads, queueCapacity);
+		if (bulkheads.putIfAbsent(name, bulkhead) != null) {
+			bulkhead.shutdown();
+			throw new IllegalStateException("Bulkhead " + name + " already exists.");
+		}
+		return bulkhead;
+	}
+
+	/** Get a registered bulkhead, null if none has the name. */
+	public static Bulkhead getBulkhead(final String name) {
+		return bulkheads.get(name);
+	}
+
+	/** Unregister a bulkhead & stop its threads once queued operations have run. */
+	public static void removeBulkhead(final String name) {
+		final Bulkhead bulkhead = bulkheads.remove(name);
+		if (bulkhead != null) {
+			bulkhead.shutdown();
+		}
+	}
+
+	/** Check whether threadPerOperation() uses virtual threads. */
+	public static boolean hasVirtualThreads() {
+		return findVirtualThreadFactory() != null;
+	}
+
+	private static ExecutorService newThreadPerOperationExecutor() {
+		final Method factory = findVirtualThreadFactory();
+		if (factory != null) {
+			try {
+				return (ExecutorService) factory.invoke(null);
+			} catch (final ReflectiveOperationException e) {
+				/* fall back to platform threads */
+			}
+		}
+		return Executors.newCachedThreadPool(
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("flow-thread-%d").build());
+	}
+
+	private static Method findVirtualThreadFactory() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (final NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/** Forks tasks submitted by the pool's own workers onto their local deques. */
+	private static final class WorkStealingExecutor implements Executor {
+		private final ForkJoinPool pool;
+
+		public WorkStealingExecutor(final ForkJoinPool pool) {
+			this.pool = pool;
+		}
+
+		@Override
+		public void execute(final Runnable command) {
+			if (ForkJoinTask.getPool() == pool) {
+				new ForkedCommand(command).fork();
+			} else {
+				pool.execute(command);
+			}
+		}
+	}
+
+	/** A forked command.  Nothing joins it, so failures are passed to the
+	 * uncaught exception handler like the pool's execute() does.
+	 */
+	private static final class ForkedCommand extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Runnable command;
+
+		public ForkedCommand(final Runnable command) {
+			this.command = command;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				command.run();
+			} catch (final Throwable e) {
+				final Thread thread = Thread.currentThread();
+				thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+			}
+		}
+	}
+
+	/** Fixed pool backed by a priority queue. */
+	private static final class PriorityPool extends ThreadPoolExecutor {
+		/** Submission order for tie breaking. */
+		private final AtomicLong sequence = new AtomicLong();
+
+		public PriorityPool(final int threads) {
+			super(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+					new ThreadFactoryBuilder().setDaemon(true).setNameFormat("flow-priority-pool-%d").build());
+		}
+
+		@Override
+		public void execute(final Runnable command) {
+			final long priority = command instanceof Prioritized ? ((Prioritized) command).getPriority() : Long.MIN_VALUE;
+			super.execute(new Entry(command, priority, sequence.getAndIncrement()));
+		}
+	}
+
+	/** Queue entry ordering tasks by priority then submission order. */
+	private static final class Entry implements Runnable, Comparable<Entry> {
+		private final Runnable task;
+		private final long priority;
+		private final long sequence;
+
+		public Entry(final Runnable task, final long priority, final long sequence) {
+			this.task = task;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public void run() {
+			task.run();
+		}
+
+		@Override
+		public int compareTo(final Entry other) {
+			if (priority != other.priority) {
+				return priority > other.priority ? -1 : 1;
+			}
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+
+	private FlowExecutors() {}
+}
@@ -2,8 +2,10 @@ package msdingfield.easyflow.core;
 
 import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 /** An operation to be performed.
  * 
@@ -31,14 +33,41 @@ public abstract class FlowOperation {
 	 * Map from output name to output type.
 	 */
 	private final Map<String, Class<?>> outputs = Maps.newHashMap();
+	
+	/** Outputs which are set to a ListenableFuture of their value. */
+	private final Set<String> asyncOutputs = Sets.newHashSet();
+
+	/** Whether the operation is cheap enough to always run on the thread
+	 * which made it ready rather than being passed to the executor.
+	 */
+	private final boolean inline;
+
+	/** Cache of outputs keyed by input values, null if not cacheable. */
+	private final OutputCache cache;
+
+	/** Policy for duplicating slow attempts, null if not hedged. */
+	private final HedgingPolicy hedgingPolicy;
+
+	/** Name of the pool which runs the operation, null for the evaluation's executor. */
+	private final String pool;
 
 	protected FlowOperation(final Map<String, Class<?>> inputs, final Map<String, Class<?>> outputs) {
 		this.inputs.putAll(inputs);
 		this.outputs.putAll(outputs);
+		this.inline = false;
+		this.cache = null;
+		this.hedgingPolicy = null;
+		this.pool = null;
 	}
 
 	protected FlowOperation(final BuilderBase builder) {
-		this(builder.inputs, builder.outputs);
+		this.inputs.putAll(builder.inputs);
+		this.outputs.putAll(builder.outputs);
+		this.asyncOutputs.addAll(builder.asyncOutputs);
+		this.inline = builder.inline;
+		this.cache = builder.cache;
+		this.hedgingPolicy = builder.hedgingPolicy;
+		this.pool = builder.pool;
 	}
 	
 	public Map<String, Class<?>> getInputs() {
@@ -49,10 +78,44 @@ public abstract class FlowOperation {
 		return Collections.unmodifiableMap(outputs);
 	}
 	
+	/** Get the names of outputs which are set to a ListenableFuture.
+	 * 
+	 * Successors are only released once every such future is done and
+	 * receive the future's value, never the future itself.
+	 */
+	public Set<String> getAsyncOutputs() {
+		return Collections.unmodifiableSet(asyncOutputs);
+	}
+	
+	/** Check whether the operation always runs inline on the thread which made it ready. */
+	public boolean isInline() {
+		return inline;
+	}
+	
+	/** Get the cache of the operation's outputs, null if it is not cacheable. */
+	public OutputCache getCache() {
+		return cache;
+	}
+	
+	/** Get the policy for hedging slow async outputs, null if not hedged. */
+	public HedgingPolicy getHedgingPolicy() {
+		return hedgingPolicy;
+	}
+	
+	/** Get the name of the pool which runs the operation, null for the evaluation's executor. */
+	public String getPool() {
+		return pool;
+	}
+	
 	/** Base class for creating builders. */
 	protected static class BuilderBase {
 		private final Map<String, Class<?>> inputs = Maps.newHashMap();
 		private final Map<String, Class<?>> outputs = Maps.newHashMap();
+		private final Set<String> asyncOutputs = Sets.newHashSet();
+		private boolean inline = false;
+		private OutputCache cache = null;
+		private HedgingPolicy hedgingPolicy = null;
+		private String pool = null;
 		
 		public BuilderBase addInput(final String name, final Class<?> type) {
 			inputs.put(name, type);
@@ -63,6 +126,50 @@ public abstract class FlowOperation {
 			outputs.put(name, type);
 			return this;
 		}
+		
+		/** Add an output which the operation sets to a ListenableFuture.
+		 * 
+		 * @param name Name of the output.
+		 * @param type Type of the future's value, which is what consumers receive.
+		 */
+		public BuilderBase addAsyncOutput(final String name, final Class<?> type) {
+			outputs.put(name, type);
+			asyncOutputs.add(name);
+			return this;
+		}
+		
+		/** Mark the operation as cheap so that it always runs inline. */
+		public BuilderBase setInline(final boolean inline) {
+			this.inline = inline;
+			return this;
+		}
+		
+		/** Mark the operation as deterministic so that outputs are served
+		 * from a cache when its inputs were seen before.
+		 */
+		public BuilderBase setCache(final OutputCache cache) {
+			this.cache = cache;
+			return this;
+		}
+		
+		/** Execute the operation again when its async outputs are slow, see
+		 * HedgingPolicy.  The operation must not call resumeOn.
+		 */
+		public BuilderBase setHedgingPolicy(final HedgingPolicy hedgingPolicy) {
+			this.hedgingPolicy = hedgingPolicy;
+			return this;
+		}
+		
+		/** Run the operation in a named pool rather than the evaluation's executor.
+		 * 
+		 * Pools are looked up in the evaluation's options, then among the
+		 * bulkheads of FlowExecutors.  This isolates operations which could
+		 * otherwise occupy every thread of a shared executor.
+		 */
+		public BuilderBase setPool(final String pool) {
+			this.pool = pool;
+			return this;
+		}
 	}
 
 	/** Derived classes implement this to populate outputs.
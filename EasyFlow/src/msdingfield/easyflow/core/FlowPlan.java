@@ -0,0 +1,219 @@
+package msdingfield.easyflow.core;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+
+/** A compiled form of a FlowSystem which is cheap to evaluate.
+ *
+ * Operations are numbered densely in topological order.  The graph is stored
+ * in flat int arrays: a predecessor count per operation and the successors of
+ * every operation packed into a single array (compressed sparse row layout).
+ * Operation i's successors are successors[successorOffsets[i]] up to, but not
+ * including, successors[successorOffsets[i+1]].
+ *
+ * A plan is compiled once per FlowSystem so that an evaluation only needs an
+ * array of wait counts and array indexing.
+ *
+ * Each operation also has a rank: the length of the longest path from it to
+ * the end of the graph.  Priority scheduling runs high ranks first so that
+ * the critical path starts as early as possible.  Ranks count operations
+ * unless latency weighting is used, in which case they sum the observed
+ * mean run time of the operations on the path.
+ *
+ * Evaluations which only need some outputs run the operations required to
+ * produce them.  The required operations of each requested set of outputs
+ * are computed once and cached, so that pruning the plan is a hash lookup.
+ *
+ * The graph is immutable.  Latency observations & weighted ranks are updated
+ * concurrently by evaluations.
+ *
+ * @author Matt
+ *
+ */
+public final class FlowPlan {
+
+	/** The system this plan was compiled from. */
+	private final FlowSystem system;
+
+	/** Operations indexed by their number. */
+	private final FlowOperation[] operations;
+
+	/** Number of each operation in this plan, indexed by its number in the system. */
+	private final int[] positions;
+
+	/** Number of direct predecessors of each operation. */
+	private final int[] predecessorCounts;
+
+	/** Start of each operation's successors in the successors array. */
+	private final int[] successorOffsets;
+
+	/** Successor numbers of all operations, packed. */
+	private final int[] successors;
+
+	/** Number of latency observations between recomputing weighted ranks. */
+	private static final int RANK_REFRESH_INTERVAL = 1024;
+
+	/** Weight of a new observation in the moving average, as a shift. */
+	private static final int AVERAGE_SHIFT = 3;
+
+	/** Current rank of each operation. */
+	private volatile long[] ranks;
+
+	/** Exponential moving average of the run time of each operation in nanoseconds. */
+	private final AtomicLongArray meanRunNanos;
+
+	/** Observations since the ranks were last recomputed. */
+	private final AtomicInteger observationsSinceRefresh = new AtomicInteger();
+
+	/** Maximum number of output sets whose required operations are cached. */
+	private static final int MAX_CACHED_DEMANDS = 1024;
+
+	/** Required operations indexed by operation number, keyed by requested output names. */
+	private final Cache<Set<String>, boolean[]> demands = CacheBuilder.newBuilder().maximumSize(MAX_CACHED_DEMANDS).build();
+
+	/** Compiles a plan for a system.
+	 *
+	 * @param system The system to compile.
+	 * @param order Numbers of all operations of the system in topological order.
+	 */
+	static FlowPlan compile(final FlowSystem system, final int[] order) {
+		return new FlowPlan(system, order);
+	}
+
+	private FlowPlan(final FlowSystem system, final int[] order) {
+		this.system = system;
+		this.operations = new FlowOperation[order.length];
+		this.positions = new int[order.length];
+		for (int i = 0; i < order.length; ++i) {
+			operations[i] = system.getOperation(order[i]);
+			positions[order[i]] = i;
+		}
+
+		// Renumber the system's successors in topological order
+		this.predecessorCounts = new int[operations.length];
+		this.successorOffsets = new int[operations.length + 1];
+		this.successors = new int[system.getDependencyCount()];
+		int edge = 0;
+		for (int i = 0; i < operations.length; ++i) {
+			predecessorCounts[i] = system.getPredecessorCount(order[i]);
+			successorOffsets[i] = edge;
+			for (int p = system.getSuccessorStart(order[i]); p < system.getSuccessorEnd(order[i]); ++p) {
+				successors[edge++] = positions[system.getSuccessor(p)];
+			}
+		}
+		successorOffsets[operations.length] = edge;
+
+		this.meanRunNanos = new AtomicLongArray(operations.length);
+		this.ranks = computeRanks(false);
+	}
+
+	/** Get the system this plan was compiled from. */
+	public FlowSystem getSystem() {
+		return system;
+	}
+
+	/** Get the number of operations in the plan. */
+	public int size() {
+		return operations.length;
+	}
+
+	/** Get an operation by number. */
+	public FlowOperation getOperation(final int index) {
+		return operations[index];
+	}
+
+	/** Get the number of an operation or -1 if it is not part of the plan. */
+	public int indexOf(final FlowOperation operation) {
+		final int index = system.indexOf(operation);
+		return index < 0 ? -1 : positions[index];
+	}
+
+	/** Get the number of direct predecessors of an operation. */
+	public int getPredecessorCount(final int index) {
+		return predecessorCounts[index];
+	}
+
+	/** Get the position of an operation's first successor in the successor array. */
+	public int getSuccessorStart(final int index) {
+		return successorOffsets[index];
+	}
+
+	/** Get the position after an operation's last successor in the successor array. */
+	public int getSuccessorEnd(final int index) {
+		return successorOffsets[index + 1];
+	}
+
+	/** Get the operation number stored at a position of the successor array. */
+	public int getSuccessor(final int position) {
+		return successors[position];
+	}
+
+	/** Get the remaining downstream path length of an operation. */
+	public long getRank(final int index) {
+		return ranks[index];
+	}
+
+	/** Record the observed run time of an operation.
+	 *
+	 * Ranks are periodically recomputed weighting every operation by its mean
+	 * run time.
+	 */
+	public void recordRunTime(final int index, final long nanos) {
+		final long mean = meanRunNanos.get(index);
+		meanRunNanos.lazySet(index, mean == 0 ? nanos : mean + ((nanos - mean) >> AVERAGE_SHIFT));
+		if (observationsSinceRefresh.incrementAndGet() >= RANK_REFRESH_INTERVAL) {
+			observationsSinceRefresh.set(0);
+			ranks = computeRanks(true);
+		}
+	}
+
+	/** Get the mean observed run time of an operation, 0 if never observed. */
+	public long getMeanRunNanos(final int index) {
+		return meanRunNanos.get(index);
+	}
+
+	/** Get the operations which must run to produce a set of outputs.
+	 *
+	 * The returned array is shared and must not be modified.
+	 *
+	 * @param outputNames Names of the requested outputs.
+	 * @return Whether each operation is required, indexed by operation number.
+	 * @throws NoMatchingOutputException If an output isn't produced by the plan.
+	 */
+	boolean[] getRequiredOperations(final Set<String> outputNames) {
+		boolean[] required = demands.getIfPresent(outputNames);
+		if (required == null) {
+			required = new boolean[operations.length];
+			for (final String outputName : outputNames) {
+				for (final FlowOperation operation : system.getTransitivePredecessors(outputName)) {
+					required[indexOf(operation)] = true;
+				}
+			}
+			demands.put(ImmutableSet.copyOf(outputNames), required);
+		}
+		return required;
+	}
+
+	/** Compute longest paths to the end of the graph.
+	 * 
+	 * Operations are numbered topologically so successors always have higher
+	 * numbers and a single backwards pass suffices.
+	 */
+	private long[] computeRanks(final boolean weighted) {
+		final long[] result = new long[operations.length];
+		for (int i = operations.length - 1; i >= 0; --i) {
+			long longest = 0;
+			for (int p = successorOffsets[i]; p < successorOffsets[i + 1]; ++p) {
+				longest = Math.max(longest, result[successors[p]]);
+			}
+			final long weight = weighted ? Math.max(1L, meanRunNanos.get(i)) : 1L;
+			result[i] = longest + weight;
+		}
+		return result;
+	}
+}
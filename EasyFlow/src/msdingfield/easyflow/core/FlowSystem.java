@@ -1,10 +1,11 @@
 package msdingfield.easyflow.core;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.IdentityHashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -14,6 +15,9 @@ import msdingfield.easyflow.support.IdentitySet;
 import msdingfield.easyflow.support.InputOutputTypeMismatchException;
 import msdingfield.easyflow.support.NoMatchingOutputException;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
@@ -31,6 +35,10 @@ import com.google.common.collect.Maps;
  * Every use of a name as input or output declares the expected type.  The
  * input types must be assignable from the output type or evaluation will fail.
  *
+ * Operations are numbered in the order given and the graph is kept in flat
+ * int arrays, so building & validating a system takes time linear in its
+ * operations plus dependencies, even for millions of operations.
+ *
  * This class is immutable.
  *
  * @author Matt
@@ -38,144 +46,317 @@ import com.google.common.collect.Maps;
  */
 public class FlowSystem {
 
-	/** All operations in system. */
-	private final Collection<FlowOperation> allOperations = new ArrayList<FlowOperation>();
+	/** All operations in system, indexed by operation number. */
+	private final FlowOperation[] operations;
+
+	/** Map of operation to its number. */
+	private final Map<FlowOperation, Integer> indexes;
 
-	/** Map of all outputs to producing operation. */
-	private final Map<String, FlowOperation> allOutputs = Maps.newHashMap();
+	/** Map of all outputs to the number of the producing operation. */
+	private final Map<String, Integer> allOutputs;
 
 	/** Map of all inputs to consuming operations. */
-	private final Map<String, Collection<FlowOperation>> allInputs = Maps.newHashMap();
+	private final Map<String, Collection<FlowOperation>> allInputs;
+
+	/** Start of each operation's predecessors in the predecessors array. */
+	private final int[] predecessorOffsets;
+
+	/** Predecessor numbers of all operations, packed. */
+	private final int[] predecessors;
+
+	/** Start of each operation's successors in the successors array. */
+	private final int[] successorOffsets;
 
-	/** Map of operation to its predecessor operations. */
-	private final IdentityHashMap<FlowOperation, IdentitySet<FlowOperation>> directPredecessors = Maps.newIdentityHashMap();
+	/** Successor numbers of all operations, packed. */
+	private final int[] successors;
 
-	/** Map of operation to its successor operations. */
-	private final IdentityHashMap<FlowOperation, IdentitySet<FlowOperation>> directSuccessors = Maps.newIdentityHashMap();
+	/** Slot assignment for every input & output name of this system. */
+	private final ContextLayout contextLayout;
+
+	/** Compiled form of this system used for evaluation. */
+	private final FlowPlan plan;
+
+	/** Maximum number of output sets whose minimal systems are cached. */
+	private static final int MAX_CACHED_SUBSYSTEMS = 256;
+
+	/** Minimal systems keyed by their requested output names. */
+	private final Cache<Set<String>, FlowSystem> subsystems = CacheBuilder.newBuilder().maximumSize(MAX_CACHED_SUBSYSTEMS).build();
 
 	public FlowSystem(final FlowOperation ...operations) {
-		for (final FlowOperation op : operations) {
-			this.allOperations.add(op);
-		}
-		init();
+		this(Arrays.asList(operations));
 	}
 
 	public FlowSystem(final Collection<FlowOperation> operations) {
-		this.allOperations.addAll(operations);
-		init();
+		this.indexes = new IdentityHashMap<FlowOperation, Integer>(operations.size());
+		this.allOutputs = Maps.newHashMapWithExpectedSize(operations.size());
+		this.allInputs = Maps.newHashMapWithExpectedSize(operations.size());
+		this.operations = initOperations(operations);
+		initInputOutputMaps();
+		this.predecessorOffsets = new int[this.operations.length + 1];
+		this.predecessors = linkPredecessors(predecessorOffsets);
+		this.successorOffsets = new int[this.operations.length + 1];
+		this.successors = linkSuccessors(successorOffsets);
+		this.plan = init();
+		this.contextLayout = initContextLayout();
 	}
 
 	/** Get all operations in this system. */
 	public Collection<FlowOperation> getAllOperations() {
-		return Collections.unmodifiableCollection(allOperations);
+		return Collections.unmodifiableList(Arrays.asList(operations));
+	}
+
+	/** Get the compiled plan used to evaluate this system. */
+	public FlowPlan getPlan() {
+		return plan;
+	}
+
+	/** Get the slot assignment for the names of this system. */
+	public ContextLayout getContextLayout() {
+		return contextLayout;
+	}
+
+	/** Create an empty context which stores this system's names in slots. */
+	public FlowContext newContext() {
+		return new FlowContext(contextLayout);
 	}
 
 	/** Get all direct predecessors of an operation. */
 	public Collection<FlowOperation> getDirectPredecessors(final FlowOperation operation) {
-		assert operation != null && directSuccessors.containsKey(operation);
-		return Collections.unmodifiableSet(directPredecessors.get(operation));
+		assert operation != null && indexes.containsKey(operation);
+		final int index = indexes.get(operation);
+		return new OperationList(predecessors, predecessorOffsets[index], predecessorOffsets[index + 1]);
 	}
 
 	/** Get all transitive predecessors of an operation. */
 	public Collection<FlowOperation> getTransitivePredecessors(final FlowOperation operation) {
-		assert operation != null && directSuccessors.containsKey(operation);
-		final Collection<FlowOperation> predecessors = new IdentitySet<FlowOperation>();
-
-		// We can do this because we know there are no cycles
-		final List<FlowOperation> stack = Lists.newArrayList(operation);
-		while (!stack.isEmpty()) {
-			final FlowOperation current = stack.remove(stack.size()-1);
-			predecessors.add(current);
-			stack.addAll(getDirectPredecessors(current));
-		}
-
-		return predecessors;
+		assert operation != null && indexes.containsKey(operation);
+		return collect(indexes.get(operation), predecessorOffsets, predecessors);
 	}
 
 	/** Get all operations which are required to produce a given output. */
 	public Collection<? extends FlowOperation> getTransitivePredecessors(final String outputName) {
 		assert outputName != null;
-		if (!allOutputs.containsKey(outputName)) {
+		final Integer producer = allOutputs.get(outputName);
+		if (producer == null) {
 			throw new NoMatchingOutputException("Could not find transitive predecssors for '" + outputName + "'.");
 		}
-		return getTransitivePredecessors(allOutputs.get(outputName));
+		return collect(producer, predecessorOffsets, predecessors);
+	}
+
+	/** Get all transitive successors of an operation. */
+	public Collection<FlowOperation> getTransitiveSuccessors(final FlowOperation operation) {
+		assert operation != null && indexes.containsKey(operation);
+		return collect(indexes.get(operation), successorOffsets, successors);
+	}
+
+	/** Get all operations which consume a given name directly or indirectly. */
+	public Collection<FlowOperation> getTransitiveSuccessors(final String inputName) {
+		assert inputName != null;
+		final Collection<FlowOperation> successors = new IdentitySet<FlowOperation>();
+		if (allInputs.containsKey(inputName)) {
+			for (final FlowOperation consumer : allInputs.get(inputName)) {
+				successors.addAll(getTransitiveSuccessors(consumer));
+			}
+		}
+		return successors;
+	}
+
+	/** Get the operation which produces an output, or null if none does. */
+	public FlowOperation getProducer(final String outputName) {
+		assert outputName != null;
+		final Integer producer = allOutputs.get(outputName);
+		return producer == null ? null : operations[producer];
 	}
 
 	/** Get all direct successors of an operation. */
 	public Collection<FlowOperation> getDirectSuccessors(final FlowOperation operation) {
-		assert operation != null && directSuccessors.containsKey(operation);
-		return Collections.unmodifiableSet(directSuccessors.get(operation));
+		assert operation != null && indexes.containsKey(operation);
+		final int index = indexes.get(operation);
+		return new OperationList(successors, successorOffsets[index], successorOffsets[index + 1]);
 	}
 
-	/** Creates a minimal system with the requested outputs. */
+	/** Get a minimal system with the requested outputs.
+	 *
+	 * Systems are cached by output names, so repeated requests for the same
+	 * outputs return the same system.  To evaluate only some outputs without
+	 * a separate system, see FlowEvaluator.evaluate(FlowSystem, FlowContext, Set).
+	 */
 	public FlowSystem getSystemForOutputs(final Set<String> outputNames) {
-		final Collection<FlowOperation> operations = new IdentitySet<>();
-		for (final String outputName : outputNames) {
-			operations.addAll(getTransitivePredecessors(outputName));
+		FlowSystem system = subsystems.getIfPresent(outputNames);
+		if (system == null) {
+			final Collection<FlowOperation> operations = new IdentitySet<>();
+			for (final String outputName : outputNames) {
+				operations.addAll(getTransitivePredecessors(outputName));
+			}
+			system = new FlowSystem(operations);
+			subsystems.put(ImmutableSet.copyOf(outputNames), system);
 		}
-		return new FlowSystem(operations);
+		return system;
 	}
 
-	private void init() {
-		initInputOutputMaps();
-		initGraph();
-		checkCycles();
+	/** Get the number of operations. */
+	int getOperationCount() {
+		return operations.length;
+	}
+
+	/** Get an operation by number. */
+	FlowOperation getOperation(final int index) {
+		return operations[index];
+	}
+
+	/** Get the number of an operation or -1 if it is not part of the system. */
+	int indexOf(final FlowOperation operation) {
+		final Integer index = indexes.get(operation);
+		return index == null ? -1 : index;
+	}
+
+	/** Get the number of links from producers to consumers. */
+	int getDependencyCount() {
+		return successors.length;
+	}
+
+	/** Get the number of direct predecessors of an operation. */
+	int getPredecessorCount(final int index) {
+		return predecessorOffsets[index + 1] - predecessorOffsets[index];
+	}
+
+	/** Get the position of an operation's first successor in the successor array. */
+	int getSuccessorStart(final int index) {
+		return successorOffsets[index];
+	}
+
+	/** Get the position after an operation's last successor in the successor array. */
+	int getSuccessorEnd(final int index) {
+		return successorOffsets[index + 1];
+	}
+
+	/** Get the operation number stored at a position of the successor array. */
+	int getSuccessor(final int position) {
+		return successors[position];
+	}
+
+	/** Number the operations.
+	 * 
+	 * An operation given twice produces its outputs twice, so it is rejected
+	 * like any other duplicate output.  Repeats of an operation without
+	 * outputs are ignored.
+	 */
+	private FlowOperation[] initOperations(final Collection<FlowOperation> operations) {
+		final FlowOperation[] result = new FlowOperation[operations.size()];
+		int count = 0;
+		for (final FlowOperation op : operations) {
+			if (indexes.containsKey(op)) {
+				if (!op.getOutputs().isEmpty()) {
+					throw new DuplicateOutputsFoundException("Duplicate output.");
+				}
+			} else {
+				indexes.put(op, count);
+				result[count++] = op;
+			}
+		}
+		return count == result.length ? result : Arrays.copyOf(result, count);
+	}
+
+	private FlowPlan init() {
+		final int[] order = checkCycles();
 		checkTypes();
+		return FlowPlan.compile(this, order);
+	}
+
+	private ContextLayout initContextLayout() {
+		final Collection<String> names = Lists.newArrayList(allOutputs.keySet());
+		names.addAll(allInputs.keySet());
+		return new ContextLayout(names);
 	}
 
 	private void initInputOutputMaps() {
-		for (final FlowOperation op : allOperations) {
+		for (int i = 0; i < operations.length; ++i) {
+			final FlowOperation op = operations[i];
 			for (final String outputName : op.getOutputs().keySet()) {
-				if (allOutputs.containsKey(outputName)) {
+				if (allOutputs.put(outputName, i) != null) {
 					throw new DuplicateOutputsFoundException("Duplicate output.");
 				}
-				allOutputs.put(outputName, op);
 			}
 
 			for (final String inputName : op.getInputs().keySet()) {
-				if (!allInputs.containsKey(inputName)) {
-					allInputs.put(inputName, Lists.<FlowOperation>newArrayList());
+				Collection<FlowOperation> consumers = allInputs.get(inputName);
+				if (consumers == null) {
+					consumers = Lists.newArrayListWithCapacity(1);
+					allInputs.put(inputName, consumers);
 				}
-				allInputs.get(inputName).add(op);
+				consumers.add(op);
 			}
 		}
 	}
 
-	private void initGraph() {
-		for (final FlowOperation op : allOperations) {
-			directSuccessors.put(op, new IdentitySet<FlowOperation>());
-			for (final String outputName : op.getOutputs().keySet()) {
-				if (allInputs.containsKey(outputName)) {
-					final Collection<FlowOperation> followers = allInputs.get(outputName);
-					directSuccessors.get(op).addAll(followers);
+	/** Link each operation to the producers of its inputs.  An operation
+	 * reading several outputs of a producer is linked to it once.
+	 *
+	 * @param offsets Receives the start of each operation's predecessors.
+	 * @return Predecessor numbers of all operations, packed.
+	 */
+	private int[] linkPredecessors(final int[] offsets) {
+		final int size = operations.length;
+		final int[] lastConsumer = new int[size];
+		Arrays.fill(lastConsumer, -1);
+		int[] links = new int[size];
+		int edgeCount = 0;
+		for (int i = 0; i < size; ++i) {
+			offsets[i] = edgeCount;
+			for (final String inputName : operations[i].getInputs().keySet()) {
+				final Integer producer = allOutputs.get(inputName);
+				if (producer == null || lastConsumer[producer] == i) {
+					continue;
+				}
+				lastConsumer[producer] = i;
+				if (edgeCount == links.length) {
+					links = Arrays.copyOf(links, edgeCount * 2 + 1);
 				}
+				links[edgeCount++] = producer;
 			}
+		}
+		offsets[size] = edgeCount;
+		return Arrays.copyOf(links, edgeCount);
+	}
 
-			directPredecessors.put(op, new IdentitySet<FlowOperation>());
-			for (final String inputName : op.getInputs().keySet()) {
-				if (allOutputs.containsKey(inputName)) {
-					directPredecessors.get(op).add(allOutputs.get(inputName));
-				}
+	/** Invert the predecessor links, keeping each operation's successors in order.
+	 *
+	 * @param offsets Receives the start of each operation's successors.
+	 * @return Successor numbers of all operations, packed.
+	 */
+	private int[] linkSuccessors(final int[] offsets) {
+		final int size = operations.length;
+		for (int e = 0; e < predecessors.length; ++e) {
+			++offsets[predecessors[e] + 1];
+		}
+		for (int i = 0; i < size; ++i) {
+			offsets[i + 1] += offsets[i];
+		}
+		final int[] links = new int[predecessors.length];
+		final int[] next = Arrays.copyOf(offsets, size);
+		for (int i = 0; i < size; ++i) {
+			for (int e = predecessorOffsets[i]; e < predecessorOffsets[i + 1]; ++e) {
+				links[next[predecessors[e]]++] = i;
 			}
 		}
+		return links;
 	}
 
-	private void checkCycles() {
-		GraphSort.sort(this);
+	private int[] checkCycles() {
+		return GraphSort.sortIndexes(this);
 	}
 
 	private void checkTypes() {
-		final Map<String,Class<?>> outputTypes = Maps.newHashMap();
-		for (final FlowOperation operation : allOperations) {
-			outputTypes.putAll(operation.getOutputs());
-		}
-		
-		for (final FlowOperation operation : allOperations) {
+		for (final FlowOperation operation : operations) {
 			for (final Entry<String, Class<?>> entry : operation.getInputs().entrySet()) {
 				final String name = entry.getKey();
 				final Class<?> inputType = entry.getValue();
-				final Class<?> outputType = outputTypes.get(name);
-				if (outputType != null && !isConvertableTo(inputType, outputType)) {
+				final Integer producer = allOutputs.get(name);
+				if (producer == null) {
+					continue;
+				}
+				final Class<?> outputType = operations[producer].getOutputs().get(name);
+				if (!isConvertableTo(inputType, outputType)) {
 					throw new InputOutputTypeMismatchException(String.format("%s: Cannot convert %s to %s.", name, outputType.getCanonicalName(), inputType.getCanonicalName()));
 				}
 			}
@@ -185,4 +366,57 @@ public class FlowSystem {
 	private boolean isConvertableTo(final Class<?> inputType, final Class<?> outputType) {
 		return inputType.isAssignableFrom(outputType);
 	}
+
+	/** Collect an operation & every operation reachable from it.
+	 *
+	 * @param start Number of the first operation.
+	 * @param offsets Offsets of the links to follow, predecessors or successors.
+	 * @param links The links to follow, packed.
+	 */
+	private Collection<FlowOperation> collect(final int start, final int[] offsets, final int[] links) {
+		final Collection<FlowOperation> result = new IdentitySet<FlowOperation>();
+		final BitSet visited = new BitSet();
+		int[] stack = new int[16];
+		int top = 0;
+		stack[top++] = start;
+		visited.set(start);
+		while (top > 0) {
+			final int current = stack[--top];
+			result.add(operations[current]);
+			for (int e = offsets[current]; e < offsets[current + 1]; ++e) {
+				final int link = links[e];
+				if (!visited.get(link)) {
+					visited.set(link);
+					if (top == stack.length) {
+						stack = Arrays.copyOf(stack, top * 2);
+					}
+					stack[top++] = link;
+				}
+			}
+		}
+		return result;
+	}
+
+	/** Read only view of a range of operation numbers as operations. */
+	private final class OperationList extends AbstractList<FlowOperation> {
+		private final int[] numbers;
+		private final int start;
+		private final int end;
+
+		public OperationList(final int[] numbers, final int start, final int end) {
+			this.numbers = numbers;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public FlowOperation get(final int index) {
+			return operations[numbers[start + index]];
+		}
+
+		@Override
+		public int size() {
+			return end - start;
+		}
+	}
 }
@@ -0,0 +1,186 @@
+package msdingfield.easyflow.core;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import msdingfield.easyflow.support.OperationFailedException;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/** Evaluates a sub-system once for every element of a collection.
+ *
+ * Each element is put into its own context of the sub-system together with
+ * any shared inputs, and all of the sub-evaluations are started at once with
+ * the options of the enclosing evaluation, limited to the time it has left.
+ * The operation suspends until they are all complete and then gathers one
+ * output of each sub-evaluation into a list, in element order.  Per element
+ * latency therefore overlaps instead of adding up.  If any sub-evaluation
+ * fails this operation fails with the same cause.
+ *
+ * <pre>
+ * ForEachOperation.builder(quoteSystem)
+ *         .setElements("portfolioSymbols", "symbol")
+ *         .setResults("quotes", "quote")
+ *         .addSharedInput("clientId", String.class)
+ *         .newForEachOperation();
+ * </pre>
+ *
+ * This class is immutable.
+ *
+ * @author Matt
+ *
+ */
+public final class ForEachOperation extends FlowOperation {
+
+	/** The system evaluated per element. */
+	private final FlowSystem subSystem;
+
+	/** Name of the collection input. */
+	private final String elementsName;
+
+	/** Name under which an element is put into its sub-context. */
+	private final String elementName;
+
+	/** Name of the list output. */
+	private final String resultsName;
+
+	/** Name of the sub-system output gathered into the list. */
+	private final String resultName;
+
+	/** Inputs copied into every sub-context. */
+	private final List<String> sharedInputs;
+
+	private ForEachOperation(final Builder builder) {
+		super(builder);
+		this.subSystem = builder.subSystem;
+		this.elementsName = builder.elementsName;
+		this.elementName = builder.elementName;
+		this.resultsName = builder.resultsName;
+		this.resultName = builder.resultName;
+		this.sharedInputs = ImmutableList.copyOf(builder.sharedInputs.keySet());
+		Preconditions.checkArgument(
+				subSystem.getProducer(elementName) == null && !subSystem.getTransitiveSuccessors(elementName).isEmpty(),
+				"%s is not an input of the sub-system.", elementName);
+		Preconditions.checkArgument(subSystem.getProducer(resultName) != null,
+				"%s is not an output of the sub-system.", resultName);
+	}
+
+	/** Get the system evaluated per element. */
+	public FlowSystem getSubSystem() {
+		return subSystem;
+	}
+
+	@Override
+	public void execute(final FlowContext context) {
+		/*
+		 * The sub-contexts are kept in the context while the sub-evaluations
+		 * run.  When resumed the results are gathered from them.
+		 */
+		final Pending pending = (Pending) context.getAttribute(this);
+		if (pending != null) {
+			context.removeAttribute(this);
+			try {
+				Futures.getDone(pending.evaluations);
+			} catch (final ExecutionException e) {
+				Throwables.throwIfUnchecked(e.getCause());
+				throw new OperationFailedException("A sub-evaluation for " + elementsName + " failed.", e.getCause());
+			}
+			final List<Object> results = Lists.newArrayListWithCapacity(pending.contexts.size());
+			for (final FlowContext subContext : pending.contexts) {
+				results.add(subContext.getAttribute(resultName));
+			}
+			context.putAttribute(resultsName, results);
+			return;
+		}
+
+		final Collection<?> elements = Preconditions.checkNotNull(
+				(Collection<?>) context.getAttribute(elementsName), "%s is null.", elementsName);
+		if (elements.isEmpty()) {
+			context.putAttribute(resultsName, Lists.newArrayList());
+			return;
+		}
+
+		final EvaluationOptions options = FlowEvaluator.nestedOptions();
+		final List<FlowContext> subContexts = Lists.newArrayListWithCapacity(elements.size());
+		final List<ListenableFuture<Void>> evaluations = Lists.newArrayListWithCapacity(elements.size());
+		for (final Object element : elements) {
+			final FlowContext subContext = subSystem.newContext();
+			subContext.putAttribute(elementName, element);
+			for (final String name : sharedInputs) {
+				subContext.putAttribute(name, context.getAttribute(name));
+			}
+			subContexts.add(subContext);
+			evaluations.add(FlowEvaluator.evaluateNested(subSystem, subContext, options));
+		}
+		final ListenableFuture<List<Void>> all = Futures.allAsList(evaluations);
+		context.putAttribute(this, new Pending(subContexts, all));
+		FlowEvaluator.resumeOn(all, this);
+	}
+
+	/** The sub-contexts and sub-evaluations of a suspended operation. */
+	private static class Pending {
+		final List<FlowContext> contexts;
+		final ListenableFuture<List<Void>> evaluations;
+
+		Pending(final List<FlowContext> contexts, final ListenableFuture<List<Void>> evaluations) {
+			this.contexts = contexts;
+			this.evaluations = evaluations;
+		}
+	}
+
+	public static Builder builder(final FlowSystem subSystem) {
+		return new Builder(subSystem);
+	}
+
+	public static class Builder extends BuilderBase {
+		private final FlowSystem subSystem;
+		private String elementsName = null;
+		private String elementName = null;
+		private String resultsName = null;
+		private String resultName = null;
+		private final Map<String, Class<?>> sharedInputs = Maps.newLinkedHashMap();
+
+		public Builder(final FlowSystem subSystem) {
+			this.subSystem = Preconditions.checkNotNull(subSystem);
+		}
+
+		/** Set the collection input and the name each element gets in its sub-context. */
+		public Builder setElements(final String elementsName, final String elementName) {
+			this.elementsName = elementsName;
+			this.elementName = elementName;
+			return this;
+		}
+
+		/** Set the list output and the sub-system output gathered into it. */
+		public Builder setResults(final String resultsName, final String resultName) {
+			this.resultsName = resultsName;
+			this.resultName = resultName;
+			return this;
+		}
+
+		/** Copy an input of this operation into every sub-context. */
+		public Builder addSharedInput(final String name, final Class<?> type) {
+			sharedInputs.put(name, type);
+			return this;
+		}
+
+		public ForEachOperation newForEachOperation() {
+			Preconditions.checkState(elementsName != null, "setElements() was not called.");
+			Preconditions.checkState(resultsName != null, "setResults() was not called.");
+			addInput(elementsName, Collection.class);
+			for (final Map.Entry<String, Class<?>> input : sharedInputs.entrySet()) {
+				addInput(input.getKey(), input.getValue());
+			}
+			addOutput(resultsName, List.class);
+			return new ForEachOperation(this);
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package msdingfield.easyflow.core;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/** A linear chain of operations executed back to back as one operation.
+ *
+ * Created by ChainFusion.  Outputs of the steps which are not exported are
+ * kept in a private map instead of the evaluation's context.
+ *
+ * A step may suspend with FlowEvaluator.resumeOn.  The fused operation then
+ * stops and, when resumed, continues with the step which suspended.  Steps
+ * may not have async outputs, a cache, a hedging policy or a pool, see
+ * canFuse.
+ *
+ * This class is immutable.
+ */
+public final class FusedOperation extends FlowOperation {
+
+	/** The chained operations in execution order. */
+	private final List<FlowOperation> steps;
+
+	/** Outputs of the steps which are not written to the context. */
+	private final Set<String> privateNames;
+
+	/** Private slots of the most recently seen context layout. */
+	private volatile PrivateSlots privateSlots = null;
+
+	FusedOperation(final Builder builder) {
+		super(builder);
+		this.steps = ImmutableList.copyOf(builder.steps);
+		this.privateNames = ImmutableSet.copyOf(builder.privateNames);
+	}
+
+	/** Check whether an operation can be a step.
+	 *
+	 * The evaluator awaits async outputs and applies caching, hedging and
+	 * pools per operation, none of which would happen between steps.
+	 */
+	static boolean canFuse(final FlowOperation op) {
+		return op.getAsyncOutputs().isEmpty()
+				&& op.getCache() == null
+				&& op.getHedgingPolicy() == null
+				&& op.getPool() == null;
+	}
+
+	/** Get the chained operations in execution order. */
+	public List<FlowOperation> getSteps() {
+		return steps;
+	}
+
+	@Override
+	public void execute(final FlowContext context) {
+		/*
+		 * Progress is only recorded in the context while suspended.  It holds
+		 * the step to resume and the private values computed so far.
+		 */
+		Progress progress = (Progress) context.getAttribute(this);
+		if (progress == null) {
+			progress = new Progress();
+		} else {
+			context.removeAttribute(this);
+		}
+
+		final FlowContext stepContext = privateNames.isEmpty()
+				? context
+				: new ChainContext(context, getPrivateSlots(context.getLayout()), progress.privateValues);
+
+		for (int step = progress.step; step < steps.size(); ++step) {
+			steps.get(step).execute(stepContext);
+			if (FlowEvaluator.isResumePending()) {
+				progress.step = step;
+				context.putAttribute(this, progress);
+				return;
+			}
+		}
+	}
+
+	private PrivateSlots getPrivateSlots(final ContextLayout layout) {
+		PrivateSlots current = privateSlots;
+		if (current == null || current.layout != layout) {
+			current = new PrivateSlots(layout);
+			privateSlots = current;
+		}
+		return current;
+	}
+
+	/** State of a suspended execution. */
+	private static final class Progress {
+		public int step = 0;
+		public final Map<Object, Object> privateValues = Maps.newHashMap();
+	}
+
+	/** Marks the slots of the private names in one context layout. */
+	private final class PrivateSlots {
+		public final ContextLayout layout;
+		public final boolean[] slots;
+
+		public PrivateSlots(final ContextLayout layout) {
+			this.layout = layout;
+			this.slots = new boolean[layout.size()];
+			for (final String name : privateNames) {
+				final int slot = layout.slotOf(name);
+				if (slot >= 0) {
+					slots[slot] = true;
+				}
+			}
+		}
+	}
+
+	/** Context seen by the steps.  Private names are kept in a map, all
+	 * other attributes are passed through to the evaluation's context.
+	 */
+	private final class ChainContext extends FlowContext {
+		private final FlowContext parent;
+		private final PrivateSlots slots;
+		private final Map<Object, Object> privateValues;
+
+		public ChainContext(final FlowContext parent, final PrivateSlots slots, final Map<Object, Object> privateValues) {
+			this.parent = parent;
+			this.slots = slots;
+			this.privateValues = privateValues;
+		}
+
+		@Override
+		public void putAttribute(final Object key, final Object value) {
+			if (privateNames.contains(key)) {
+				privateValues.put(key, value);
+			} else {
+				parent.putAttribute(key, value);
+			}
+		}
+
+		@Override
+		public Object getAttribute(final Object key) {
+			return privateNames.contains(key) ? privateValues.get(key) : parent.getAttribute(key);
+		}
+
+		@Override
+		public void removeAttribute(final Object key) {
+			if (privateNames.contains(key)) {
+				privateValues.remove(key);
+			} else {
+				parent.removeAttribute(key);
+			}
+		}
+
+		@Override
+		public boolean hasAttribute(final Object key) {
+			return privateNames.contains(key) ? privateValues.containsKey(key) : parent.hasAttribute(key);
+		}
+
+		@Override
+		public ContextLayout getLayout() {
+			return slots.layout;
+		}
+
+		@Override
+		public void putSlot(final int slot, final Object value) {
+			if (slots.slots[slot]) {
+				privateValues.put(slots.layout.getName(slot), value);
+			} else {
+				parent.putSlot(slot, value);
+			}
+		}
+
+		@Override
+		public Object getSlot(final int slot) {
+			return slots.slots[slot] ? privateValues.get(slots.layout.getName(slot)) : parent.getSlot(slot);
+		}
+
+		@Override
+		public boolean hasSlot(final int slot) {
+			return slots.slots[slot] ? privateValues.containsKey(slots.layout.getName(slot)) : parent.hasSlot(slot);
+		}
+
+		@Override
+		public Collection<Object> getAttributeKeys() {
+			final List<Object> keys = Lists.newArrayList(parent.getAttributeKeys());
+			keys.addAll(privateValues.keySet());
+			return keys;
+		}
+
+		@Override
+		public String toString() {
+			return parent.toString() + " + " + privateValues.toString();
+		}
+	}
+
+	static class Builder extends BuilderBase {
+		private final List<FlowOperation> steps = Lists.newArrayList();
+		private final Set<String> produced = Sets.newHashSet();
+		private final Set<String> privateNames = Sets.newHashSet();
+		private Set<String> exported = null;
+
+		/** Append a step to the chain. */
+		public Builder addStep(final FlowOperation step) {
+			Preconditions.checkArgument(canFuse(step), "Operations with async outputs, a cache, hedging or a pool can't be fused.");
+			for (final Map.Entry<String, Class<?>> input : step.getInputs().entrySet()) {
+				if (!produced.contains(input.getKey())) {
+					addInput(input.getKey(), input.getValue());
+				}
+			}
+			produced.addAll(step.getOutputs().keySet());
+			steps.add(step);
+			return this;
+		}
+
+		/** Set the outputs of steps before the last which are written to the
+		 * context.  Outputs of the last step are always written.  By default
+		 * all outputs are written.
+		 */
+		public Builder setExported(final Set<String> exported) {
+			this.exported = exported;
+			return this;
+		}
+
+		public FusedOperation newOperation() {
+			boolean inline = true;
+			for (int i = 0; i < steps.size(); ++i) {
+				final FlowOperation step = steps.get(i);
+				final boolean last = i == steps.size() - 1;
+				for (final Map.Entry<String, Class<?>> output : step.getOutputs().entrySet()) {
+					if (last || exported == null || exported.contains(output.getKey())) {
+						addOutput(output.getKey(), output.getValue());
+					} else {
+						privateNames.add(output.getKey());
+					}
+				}
+				inline &= step.isInline();
+			}
+			setInline(inline);
+			return new FusedOperation(this);
+		}
+	}
+}
@@ -1,56 +1,62 @@
 package msdingfield.easyflow.core;
 
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 import msdingfield.easyflow.support.FlowCyclicDependencyException;
 
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 
+/** Sorts the operations of a system topologically.
+ *
+ * Uses Kahn's algorithm on the system's operation numbers: operations without
+ * unfinished predecessors are taken from a queue, in the order they were
+ * given to the system, and release their successors.  It takes time linear in
+ * operations plus dependencies and no stack, however long a chain is.
+ */
 public final class GraphSort {
 	
 	public static List<FlowOperation> sort(final FlowSystem system) {
-		return new GraphSort(system).sortInternal();
-	}
-	
-	private final List<FlowOperation> schedule = Lists.newArrayList();
-	private final Map<FlowOperation,Void> scheduling = Maps.newIdentityHashMap();
-	private final Map<FlowOperation,Void> scheduled = Maps.newIdentityHashMap();
-	
-	private final FlowSystem sys;
-	
-	private GraphSort(final FlowSystem sys) {
-		this.sys = sys;
-	}
-	
-	private List<FlowOperation> sortInternal() {
-		for (final FlowOperation op : sys.getAllOperations()) {
-			scheduleInternal(op);
+		final int[] order = sortIndexes(system);
+		final List<FlowOperation> schedule = Lists.newArrayListWithCapacity(order.length);
+		for (final int index : order) {
+			schedule.add(system.getOperation(index));
 		}
 		return schedule;
 	}
-
-	private void scheduleInternal(final FlowOperation op) {
-		if (scheduled.containsKey(op)) {
-			return;
+	
+	/** Get the numbers of a system's operations in topological order.
+	 * 
+	 * @throws FlowCyclicDependencyException If some operations depend on each other.
+	 */
+	static int[] sortIndexes(final FlowSystem system) {
+		final int size = system.getOperationCount();
+		final int[] waitCounts = new int[size];
+		final int[] order = new int[size];
+		int tail = 0;
+		for (int i = 0; i < size; ++i) {
+			waitCounts[i] = system.getPredecessorCount(i);
+			if (waitCounts[i] == 0) {
+				order[tail++] = i;
+			}
 		}
 		
-		if (scheduling.containsKey(op)) {
-			throw new FlowCyclicDependencyException();
+		// The order doubles as the queue, operations before head are done
+		for (int head = 0; head < tail; ++head) {
+			final int current = order[head];
+			for (int p = system.getSuccessorStart(current); p < system.getSuccessorEnd(current); ++p) {
+				final int follower = system.getSuccessor(p);
+				if (--waitCounts[follower] == 0) {
+					order[tail++] = follower;
+				}
+			}
 		}
 		
-		try {
-			scheduling.put(op, null);
-			
-			for (final FlowOperation pred : sys.getDirectPredecessors(op)) {
-				scheduleInternal(pred);
-			}
-			
-			schedule.add(op);
-			scheduled.put(op, null);
-		} finally {
-			scheduling.remove(op);
+		if (tail < size) {
+			throw new FlowCyclicDependencyException(String.format("%d of %d operations are in or after a cycle.", size - tail, size));
 		}
+		return order;
 	}
-}
\ No newline at end of file
+	
+	private GraphSort() {}
+}
@@ -0,0 +1,195 @@
+package msdingfield.easyflow.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import msdingfield.easyflow.metrics.Histogram;
+
+import com.google.common.base.Preconditions;
+
+/** Decides when to hedge an operation whose async outputs are slow.
+ *
+ * Attach a policy to an operation with FlowOperation.BuilderBase.setHedgingPolicy().
+ * If the async outputs of an attempt aren't done within a percentile of the
+ * operation's recent latency, the evaluator executes the operation again in a
+ * copy of the context.  Each output takes the value of whichever attempt
+ * completes it first and the other attempt is cancelled.  A future shared
+ * through an OutputCache is never cancelled.
+ *
+ * Recent latency is the latency of the previous window of attempts, or of the
+ * current window until the first one fills.  No attempt is hedged until
+ * enough latencies were recorded.
+ *
+ * Hedges are paid for from a budget.  Every attempt adds maxExtraLoad hedges
+ * to the budget, up to a limit, and every hedge takes one.  So with a
+ * maxExtraLoad of 0.05 at most about 5% more attempts are made.
+ *
+ * A policy must only be attached to one operation.  This class is thread safe.
+ *
+ * @author Matt
+ *
+ */
+public final class HedgingPolicy {
+
+	/** Budget units of one hedge. */
+	private static final long HEDGE_COST = 1000L;
+
+	private final double percentile;
+
+	private final long minDelayNanos;
+
+	private final int minSamples;
+
+	private final int windowSize;
+
+	/** Budget units added per attempt. */
+	private final long budgetPerAttempt;
+
+	/** Most budget units which can be saved up. */
+	private final long maxBudget;
+
+	/** Latencies of the window being recorded. */
+	private volatile Histogram current = new Histogram();
+
+	/** Latencies of the last full window, null until one fills. */
+	private volatile Histogram previous = null;
+
+	/** Available budget units. */
+	private final AtomicLong budget = new AtomicLong();
+
+	private final AtomicLong attempts = new AtomicLong();
+
+	private final AtomicLong hedges = new AtomicLong();
+
+	private HedgingPolicy(final Builder builder) {
+		this.percentile = builder.percentile;
+		this.minDelayNanos = builder.minDelayNanos;
+		this.minSamples = builder.minSamples;
+		this.windowSize = builder.windowSize;
+		this.budgetPerAttempt = Math.round(builder.maxExtraLoad * HEDGE_COST);
+		this.maxBudget = builder.maxBurst * HEDGE_COST;
+	}
+
+	/** Get the number of attempts which were not hedges. */
+	public long getAttemptCount() {
+		return attempts.get();
+	}
+
+	/** Get the number of hedges made. */
+	public long getHedgeCount() {
+		return hedges.get();
+	}
+
+	/** Get how long to wait before hedging an attempt.
+	 *
+	 * @return The delay in nanoseconds or -1 if too few latencies were recorded.
+	 */
+	long getDelayNanos() {
+		Histogram latencies = previous;
+		if (latencies == null) {
+			latencies = current;
+			if (latencies.getCount() < minSamples) {
+				return -1L;
+			}
+		}
+		return Math.max(minDelayNanos, latencies.getPercentile(percentile));
+	}
+
+	/** Record an attempt & add to the hedging budget. */
+	void recordAttempt() {
+		attempts.incrementAndGet();
+		long available = budget.get();
+		while (available < maxBudget && !budget.compareAndSet(available, Math.min(maxBudget, available + budgetPerAttempt))) {
+			available = budget.get();
+		}
+	}
+
+	/** Record how long an attempt took to complete its outputs. */
+	void recordLatency(final long nanos) {
+		final Histogram latencies = current;
+		latencies.record(nanos);
+		if (latencies.getCount() >= windowSize) {
+			synchronized (this) {
+				if (current == latencies) {
+					previous = latencies;
+					current = new Histogram();
+				}
+			}
+		}
+	}
+
+	/** Take the budget for one hedge.
+	 *
+	 * @return Whether there was enough budget.
+	 */
+	boolean tryAcquireHedge() {
+		long available = budget.get();
+		while (available >= HEDGE_COST) {
+			if (budget.compareAndSet(available, available - HEDGE_COST)) {
+				hedges.incrementAndGet();
+				return true;
+			}
+			available = budget.get();
+		}
+		return false;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	public static class Builder {
+		private double percentile = 95.0;
+		private long minDelayNanos = 0L;
+		private int minSamples = 20;
+		private int windowSize = 1000;
+		private double maxExtraLoad = 0.05;
+		private long maxBurst = 10L;
+
+		/** Hedge attempts slower than this percentile of recent latency, between 0 and 100. */
+		public Builder setPercentile(final double percentile) {
+			Preconditions.checkArgument(percentile >= 0.0 && percentile <= 100.0);
+			this.percentile = percentile;
+			return this;
+		}
+
+		/** Never hedge attempts sooner than this. */
+		public Builder setMinDelay(final long delay, final TimeUnit unit) {
+			Preconditions.checkArgument(delay >= 0);
+			this.minDelayNanos = unit.toNanos(delay);
+			return this;
+		}
+
+		/** Set the number of latencies needed before hedging starts. */
+		public Builder setMinSamples(final int minSamples) {
+			Preconditions.checkArgument(minSamples >= 1);
+			this.minSamples = minSamples;
+			return this;
+		}
+
+		/** Set the number of latencies in a window of recent latency. */
+		public Builder setWindowSize(final int windowSize) {
+			Preconditions.checkArgument(windowSize >= 1);
+			this.windowSize = windowSize;
+			return this;
+		}
+
+		/** Set the most hedges per attempt, eg. 0.05 for 5% extra load. */
+		public Builder setMaxExtraLoad(final double maxExtraLoad) {
+			Preconditions.checkArgument(maxExtraLoad >= 0.0);
+			this.maxExtraLoad = maxExtraLoad;
+			return this;
+		}
+
+		/** Set the most hedges which can be saved up for a burst of slow attempts. */
+		public Builder setMaxBurst(final long maxBurst) {
+			Preconditions.checkArgument(maxBurst >= 1);
+			this.maxBurst = maxBurst;
+			return this;
+		}
+
+		public HedgingPolicy newHedgingPolicy() {
+			return new HedgingPolicy(this);
+		}
+	}
+}
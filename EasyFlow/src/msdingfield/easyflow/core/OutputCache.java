@@ -0,0 +1,144 @@
+package msdingfield.easyflow.core;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/** Memoizes the outputs of a deterministic operation.
+ *
+ * Entries are keyed by the values of the operation's declared inputs and
+ * hold the values of its declared outputs.  Attach a cache to an operation
+ * with FlowOperation.BuilderBase.setCache().  When every input of a ready
+ * operation is cached the evaluator copies the outputs into the context on
+ * the current thread instead of passing the operation to the executor.
+ *
+ * ListenableFuture outputs are cached as is, so evaluations with the same
+ * inputs share a lookup which is still in flight.  An entry is discarded if
+ * one of its futures fails.
+ *
+ * A cache must only be attached to one operation.  This class is thread safe.
+ *
+ * @author Matt
+ *
+ */
+public final class OutputCache {
+
+	private final Cache<List<Object>, Map<String, Object>> cache;
+
+	private OutputCache(final Builder builder) {
+		final CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder()
+				.maximumSize(builder.maximumSize)
+				.recordStats();
+		if (builder.expireAfterWriteNanos > 0) {
+			cacheBuilder.expireAfterWrite(builder.expireAfterWriteNanos, TimeUnit.NANOSECONDS);
+		}
+		this.cache = cacheBuilder.build();
+	}
+
+	/** Get hit, miss & eviction statistics. */
+	public CacheStats getStats() {
+		return cache.stats();
+	}
+
+	/** Get the number of cached entries. */
+	public long size() {
+		return cache.size();
+	}
+
+	/** Discard all entries. */
+	public void invalidateAll() {
+		cache.invalidateAll();
+	}
+
+	/** Copy cached outputs into a context.
+	 *
+	 * @param key Input values of the operation, see keyOf().
+	 * @return Whether the outputs were cached.
+	 */
+	boolean restore(final List<Object> key, final FlowContext context) {
+		final Map<String, Object> outputs = cache.getIfPresent(key);
+		if (outputs == null) {
+			return false;
+		}
+		for (final Map.Entry<String, Object> output : outputs.entrySet()) {
+			context.putAttribute(output.getKey(), output.getValue());
+		}
+		return true;
+	}
+
+	/** Check whether outputs are cached without counting a hit or miss. */
+	boolean contains(final List<Object> key) {
+		return cache.asMap().containsKey(key);
+	}
+
+	/** Cache the outputs of an operation which finished in a context. */
+	void store(final List<Object> key, final FlowOperation operation, final FlowContext context) {
+		final Map<String, Object> outputs = Maps.newHashMap();
+		for (final String name : operation.getOutputs().keySet()) {
+			final Object value = context.getAttribute(name);
+			outputs.put(name, value);
+			if (value instanceof ListenableFuture<?>) {
+				invalidateOnFailure(key, outputs, (ListenableFuture<?>) value);
+			}
+		}
+		cache.put(key, outputs);
+	}
+
+	/** Get the cache key of an operation in a context. */
+	static List<Object> keyOf(final FlowOperation operation, final FlowContext context) {
+		final List<Object> key = Lists.newArrayListWithCapacity(operation.getInputs().size());
+		for (final String name : operation.getInputs().keySet()) {
+			key.add(context.getAttribute(name));
+		}
+		return key;
+	}
+
+	private void invalidateOnFailure(final List<Object> key, final Map<String, Object> outputs, final ListenableFuture<?> future) {
+		future.addListener(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					future.get();
+				} catch (final Exception e) {
+					cache.asMap().remove(key, outputs);
+				}
+			}
+		}, MoreExecutors.directExecutor());
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	public static class Builder {
+		private long maximumSize = 1000L;
+		private long expireAfterWriteNanos = 0L;
+
+		/** Set the maximum number of entries. */
+		public Builder setMaximumSize(final long maximumSize) {
+			Preconditions.checkArgument(maximumSize >= 0);
+			this.maximumSize = maximumSize;
+			return this;
+		}
+
+		/** Set how long entries live, 0 for no expiry. */
+		public Builder setExpireAfterWrite(final long duration, final TimeUnit unit) {
+			Preconditions.checkArgument(duration >= 0);
+			this.expireAfterWriteNanos = unit.toNanos(duration);
+			return this;
+		}
+
+		public OutputCache newOutputCache() {
+			return new OutputCache(this);
+		}
+	}
+}
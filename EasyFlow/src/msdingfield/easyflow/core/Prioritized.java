@@ -0,0 +1,12 @@
+package msdingfield.easyflow.core;
+
+/** A task with a priority, used by priority executors to order queued tasks.
+ *
+ * Tasks with a higher priority run first.  FlowEvaluator's runners report
+ * the remaining downstream path length of their operation.
+ *
+ * @see FlowExecutors#newPriorityPool(int)
+ */
+public interface Prioritized {
+	long getPriority();
+}
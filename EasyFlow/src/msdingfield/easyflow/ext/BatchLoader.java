@@ -0,0 +1,198 @@
+package msdingfield.easyflow.ext;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/** Coalesces single key lookups into bulk lookups.
+ *
+ * Operations call load() for each key and suspend on the returned future
+ * with FlowEvaluator.resumeOn().  Keys requested by every concurrent
+ * evaluation are collected and passed to one bulk call when the batch is
+ * full or the delay since the first key of the batch has passed, whichever
+ * is first.  Identical keys in a batch share a single future.
+ *
+ * <pre>
+ * private static final BatchLoader&lt;String, Double&gt; quotes =
+ *         BatchLoader.builder(new BatchLoader.BulkLoader&lt;String, Double&gt;() {
+ *             public ListenableFuture&lt;Map&lt;String, Double&gt;&gt; loadAll(final Set&lt;String&gt; symbols) {
+ *                 return dao.getCurrentQuotes(symbols);
+ *             }
+ *         }).newBatchLoader();
+ * ...
+ * quote = quotes.load(symbol);
+ * FlowEvaluator.resumeOn(quote, this);
+ * </pre>
+ *
+ * This class is thread safe.
+ *
+ * @author Matt
+ *
+ */
+public final class BatchLoader<K, V> {
+
+	/** Performs the bulk lookup. */
+	public interface BulkLoader<K, V> {
+		/** Look up values for a set of keys.  Keys missing from the result get null. */
+		ListenableFuture<Map<K, V>> loadAll(Set<K> keys);
+	}
+
+	/** Scheduler used when none is configured. */
+	private static final ScheduledExecutorService defaultScheduler = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("flow-batch-loader-%d").build());
+
+	private final BulkLoader<K, V> bulkLoader;
+	private final int maxBatchSize;
+	private final long delayNanos;
+	private final ScheduledExecutorService scheduler;
+
+	/** Keys waiting to be dispatched, guarded by this. */
+	private Map<K, SettableFuture<V>> pending = Maps.newLinkedHashMap();
+
+	private BatchLoader(final Builder<K, V> builder) {
+		this.bulkLoader = builder.bulkLoader;
+		this.maxBatchSize = builder.maxBatchSize;
+		this.delayNanos = builder.delayNanos;
+		this.scheduler = builder.scheduler;
+	}
+
+	/** Get a future value for a key.
+	 *
+	 * The key is dispatched with the current batch.
+	 */
+	public ListenableFuture<V> load(final K key) {
+		Preconditions.checkNotNull(key);
+		final Map<K, SettableFuture<V>> full;
+		final SettableFuture<V> future;
+		synchronized (this) {
+			final SettableFuture<V> existing = pending.get(key);
+			if (existing != null) {
+				return existing;
+			}
+			future = SettableFuture.create();
+			pending.put(key, future);
+			if (pending.size() >= maxBatchSize) {
+				full = pending;
+				pending = Maps.newLinkedHashMap();
+			} else {
+				full = null;
+				if (pending.size() == 1) {
+					scheduleDispatch(pending);
+				}
+			}
+		}
+		if (full != null) {
+			dispatch(full);
+		}
+		return future;
+	}
+
+	/** Dispatch all pending keys now. */
+	public void flush() {
+		final Map<K, SettableFuture<V>> batch;
+		synchronized (this) {
+			if (pending.isEmpty()) {
+				return;
+			}
+			batch = pending;
+			pending = Maps.newLinkedHashMap();
+		}
+		dispatch(batch);
+	}
+
+	private void scheduleDispatch(final Map<K, SettableFuture<V>> batch) {
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (BatchLoader.this) {
+					// The batch may already have been dispatched because it filled up
+					if (pending != batch) {
+						return;
+					}
+					pending = Maps.newLinkedHashMap();
+				}
+				dispatch(batch);
+			}
+		}, delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private void dispatch(final Map<K, SettableFuture<V>> batch) {
+		final ListenableFuture<Map<K, V>> result;
+		try {
+			result = bulkLoader.loadAll(ImmutableSet.copyOf(batch.keySet()));
+		} catch (final RuntimeException e) {
+			fail(batch, e);
+			return;
+		}
+		Futures.addCallback(result, new FutureCallback<Map<K, V>>() {
+			@Override
+			public void onSuccess(final Map<K, V> values) {
+				for (final Map.Entry<K, SettableFuture<V>> entry : batch.entrySet()) {
+					entry.getValue().set(values == null ? null : values.get(entry.getKey()));
+				}
+			}
+
+			@Override
+			public void onFailure(final Throwable t) {
+				fail(batch, t);
+			}
+		}, MoreExecutors.directExecutor());
+	}
+
+	private void fail(final Map<K, SettableFuture<V>> batch, final Throwable t) {
+		for (final SettableFuture<V> future : batch.values()) {
+			future.setException(t);
+		}
+	}
+
+	public static <K, V> Builder<K, V> builder(final BulkLoader<K, V> bulkLoader) {
+		return new Builder<K, V>(bulkLoader);
+	}
+
+	public static class Builder<K, V> {
+		private final BulkLoader<K, V> bulkLoader;
+		private int maxBatchSize = 100;
+		private long delayNanos = TimeUnit.MILLISECONDS.toNanos(1L);
+		private ScheduledExecutorService scheduler = defaultScheduler;
+
+		public Builder(final BulkLoader<K, V> bulkLoader) {
+			this.bulkLoader = Preconditions.checkNotNull(bulkLoader);
+		}
+
+		/** Set the number of keys which dispatches a batch immediately. */
+		public Builder<K, V> setMaxBatchSize(final int maxBatchSize) {
+			Preconditions.checkArgument(maxBatchSize > 0);
+			this.maxBatchSize = maxBatchSize;
+			return this;
+		}
+
+		/** Set how long the first key of a batch waits for others to join it. */
+		public Builder<K, V> setDelay(final long delay, final TimeUnit unit) {
+			Preconditions.checkArgument(delay >= 0);
+			this.delayNanos = unit.toNanos(delay);
+			return this;
+		}
+
+		/** Set the scheduler which dispatches batches after the delay. */
+		public Builder<K, V> setScheduler(final ScheduledExecutorService scheduler) {
+			this.scheduler = Preconditions.checkNotNull(scheduler);
+			return this;
+		}
+
+		public BatchLoader<K, V> newBatchLoader() {
+			return new BatchLoader<K, V>(this);
+		}
+	}
+}
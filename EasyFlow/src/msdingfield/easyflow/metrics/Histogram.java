@@ -0,0 +1,117 @@
+package msdingfield.easyflow.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A lock free histogram of non-negative long values, typically nanoseconds.
+ *
+ * Values are counted in buckets of roughly 12% relative width: every power
+ * of two is split into 8 sub buckets.  Recording a value is a few bit
+ * operations and two atomic increments.
+ *
+ * @author Matt
+ *
+ */
+public final class Histogram {
+
+	/** Number of bits used to split each power of two. */
+	private static final int SUB_BITS = 3;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	/** Enough buckets for every positive long. */
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/** Record a value.  Negative values are recorded as 0. */
+	public void record(final long value) {
+		final long v = Math.max(0L, value);
+		counts.incrementAndGet(bucketOf(v));
+		total.incrementAndGet();
+		sum.addAndGet(v);
+		long current = max.get();
+		while (v > current && !max.compareAndSet(current, v)) {
+			current = max.get();
+		}
+	}
+
+	/** Get the number of recorded values. */
+	public long getCount() {
+		return total.get();
+	}
+
+	/** Get the mean of the recorded values, 0 if none. */
+	public double getMean() {
+		final long count = total.get();
+		return count == 0 ? 0.0 : (double) sum.get() / count;
+	}
+
+	/** Get the largest recorded value. */
+	public long getMax() {
+		return max.get();
+	}
+
+	/** Get an upper bound of the value at a percentile.
+	 *
+	 * @param percentile Between 0 and 100.
+	 * @return The upper bound of the bucket holding the percentile, 0 if no
+	 *   values were recorded.
+	 */
+	public long getPercentile(final double percentile) {
+		final long count = total.get();
+		if (count == 0) {
+			return 0L;
+		}
+		final long rank = Math.max(1L, (long) Math.ceil(count * percentile / 100.0));
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+			seen += counts.get(bucket);
+			if (seen >= rank) {
+				return Math.min(upperBoundOf(bucket), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/** Reset all counts. */
+	public void clear() {
+		for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+			counts.set(bucket, 0L);
+		}
+		total.set(0L);
+		sum.set(0L);
+		max.set(0L);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d mean=%.0f p50=%d p99=%d max=%d",
+				getCount(), getMean(), getPercentile(50), getPercentile(99), getMax());
+	}
+
+	static int bucketOf(final long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		final int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long lowerBoundOf(final int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		final int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		final long sub = bucket % SUB_BUCKETS;
+		return (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+	}
+
+	static long upperBoundOf(final int bucket) {
+		return bucket + 1 < BUCKETS ? lowerBoundOf(bucket + 1) - 1 : Long.MAX_VALUE;
+	}
+}
@@ -0,0 +1,117 @@
+package msdingfield.easyflow.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import msdingfield.easyflow.core.EvaluationListener;
+import msdingfield.easyflow.core.FlowContext;
+import msdingfield.easyflow.core.FlowOperation;
+
+import com.google.common.collect.Maps;
+
+/** Records per operation latency histograms.
+ *
+ * For every operation it keeps how long the operation waited in the
+ * executor's queue, how long it ran and how long it waited for the futures
+ * it suspended on.  It also keeps a histogram of whole evaluations.  Install
+ * it with EvaluationOptions.Builder.setListener.
+ *
+ * @author Matt
+ *
+ */
+public class LatencyRecorder implements EvaluationListener {
+
+	/** Histograms of a single operation. */
+	public static final class OperationStats {
+		private final Histogram queueWait = new Histogram();
+		private final Histogram runTime = new Histogram();
+		private final Histogram asyncWait = new Histogram();
+
+		/** Nanoseconds between becoming ready and starting to run. */
+		public Histogram getQueueWait() {
+			return queueWait;
+		}
+
+		/** Nanoseconds spent executing, including executions which suspended. */
+		public Histogram getRunTime() {
+			return runTime;
+		}
+
+		/** Nanoseconds between suspending and being resumed. */
+		public Histogram getAsyncWait() {
+			return asyncWait;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("queue[%s] run[%s] async[%s]", queueWait, runTime, asyncWait);
+		}
+	}
+
+	private final ConcurrentMap<FlowOperation, OperationStats> stats = Maps.newConcurrentMap();
+
+	private final Histogram evaluations = new Histogram();
+
+	/** Get the histograms of an operation, null if it never ran. */
+	public OperationStats getStats(final FlowOperation operation) {
+		return stats.get(operation);
+	}
+
+	/** Get the histograms of all operations which ran. */
+	public Map<FlowOperation, OperationStats> getAllStats() {
+		return Collections.unmodifiableMap(stats);
+	}
+
+	/** Get the histogram of whole evaluations in nanoseconds. */
+	public Histogram getEvaluations() {
+		return evaluations;
+	}
+
+	@Override
+	public void operationReady(final FlowOperation operation, final long readyNanos) {
+		/* queue wait is recorded when started */
+	}
+
+	@Override
+	public void operationStarted(final FlowOperation operation, final long readyNanos, final long startNanos) {
+		statsFor(operation).queueWait.record(startNanos - readyNanos);
+	}
+
+	@Override
+	public void operationFinished(final FlowOperation operation, final long startNanos, final long finishNanos) {
+		statsFor(operation).runTime.record(finishNanos - startNanos);
+	}
+
+	@Override
+	public void operationSuspended(final FlowOperation operation, final long startNanos, final long suspendNanos) {
+		statsFor(operation).runTime.record(suspendNanos - startNanos);
+	}
+
+	@Override
+	public void operationResumed(final FlowOperation operation, final long suspendNanos, final long resumeNanos) {
+		statsFor(operation).asyncWait.record(resumeNanos - suspendNanos);
+	}
+
+	@Override
+	public void operationOutputsDone(final FlowOperation operation, final long finishNanos, final long doneNanos) {
+		statsFor(operation).asyncWait.record(doneNanos - finishNanos);
+	}
+
+	@Override
+	public void evaluationComplete(final FlowContext context, final long startNanos, final long completeNanos) {
+		evaluations.record(completeNanos - startNanos);
+	}
+
+	private OperationStats statsFor(final FlowOperation operation) {
+		OperationStats result = stats.get(operation);
+		if (result == null) {
+			final OperationStats created = new OperationStats();
+			result = stats.putIfAbsent(operation, created);
+			if (result == null) {
+				result = created;
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,26 @@
+package msdingfield.easyflow.support;
+
+/** Exception failing an evaluation which was not admitted, see AdmissionController. */
+public class EvaluationRejectedException extends RuntimeException {
+
+	private static final long serialVersionUID = 3518640286145520946L;
+
+	public EvaluationRejectedException() {
+		/* empty */
+	}
+
+	public EvaluationRejectedException(final String msg) {
+		super(msg);
+
+	}
+
+	public EvaluationRejectedException(final Throwable cause) {
+		super(cause);
+
+	}
+
+	public EvaluationRejectedException(final String msg, final Throwable cause) {
+		super(msg, cause);
+	}
+
+}
@@ -0,0 +1,26 @@
+package msdingfield.easyflow.support;
+
+/** Exception failing an evaluation which did not complete in time. */
+public class EvaluationTimeoutException extends RuntimeException {
+
+	private static final long serialVersionUID = -6270851236418047716L;
+
+	public EvaluationTimeoutException() {
+		/* empty */
+	}
+
+	public EvaluationTimeoutException(final String msg) {
+		super(msg);
+
+	}
+
+	public EvaluationTimeoutException(final Throwable cause) {
+		super(cause);
+
+	}
+
+	public EvaluationTimeoutException(final String msg, final Throwable cause) {
+		super(msg, cause);
+	}
+
+}
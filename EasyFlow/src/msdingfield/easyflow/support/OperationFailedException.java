@@ -0,0 +1,26 @@
+package msdingfield.easyflow.support;
+
+/** Exception thrown when an operation fails with a checked exception. */
+public class OperationFailedException extends RuntimeException {
+
+	private static final long serialVersionUID = 4712880315446029213L;
+
+	public OperationFailedException() {
+		/* empty */
+	}
+
+	public OperationFailedException(final String msg) {
+		super(msg);
+
+	}
+
+	public OperationFailedException(final Throwable cause) {
+		super(cause);
+
+	}
+
+	public OperationFailedException(final String msg, final Throwable cause) {
+		super(msg, cause);
+	}
+
+}
@@ -0,0 +1,26 @@
+package msdingfield.easyflow.support;
+
+/** Exception thrown when a class cannot be used as a task. */
+public class TaskDefinitionException extends RuntimeException {
+
+	private static final long serialVersionUID = -2290616497313620185L;
+
+	public TaskDefinitionException() {
+		/* empty */
+	}
+
+	public TaskDefinitionException(final String msg) {
+		super(msg);
+
+	}
+
+	public TaskDefinitionException(final Throwable cause) {
+		super(cause);
+
+	}
+
+	public TaskDefinitionException(final String msg, final Throwable cause) {
+		super(msg, cause);
+	}
+
+}
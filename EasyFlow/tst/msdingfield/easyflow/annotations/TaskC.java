@@ -0,0 +1,21 @@
+package msdingfield.easyflow.annotations;
+
+import msdingfield.easyflow.annotations.Input;
+import msdingfield.easyflow.annotations.Operation;
+import msdingfield.easyflow.annotations.Output;
+import msdingfield.easyflow.annotations.Task;
+
+@Task(cacheSize = 10)
+public class TaskC {
+
+	@Input
+	public int count;
+	
+	@Output
+	public int squared;
+	
+	@Operation
+	public void execute() {
+		squared = count * count;
+	}
+}
@@ -0,0 +1,26 @@
+package msdingfield.easyflow.annotations;
+
+import java.io.IOException;
+
+import msdingfield.easyflow.annotations.Input;
+import msdingfield.easyflow.annotations.Operation;
+import msdingfield.easyflow.annotations.Output;
+import msdingfield.easyflow.annotations.Task;
+
+@Task
+public class TaskD {
+
+	@Input
+	public int path;
+	
+	@Output
+	public int size;
+	
+	@Operation
+	public void execute() throws IOException {
+		if (path < 0) {
+			throw new IOException("No such path.");
+		}
+		size = path * 10;
+	}
+}
@@ -1,6 +1,9 @@
 package msdingfield.easyflow.annotations;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.util.concurrent.ExecutionException;
@@ -8,7 +11,10 @@ import java.util.concurrent.ExecutionException;
 import msdingfield.easyflow.annotations.SystemBuilder;
 import msdingfield.easyflow.core.FlowContext;
 import msdingfield.easyflow.core.FlowEvaluator;
+import msdingfield.easyflow.core.FlowOperation;
 import msdingfield.easyflow.core.FlowSystem;
+import msdingfield.easyflow.core.OutputCache;
+import msdingfield.easyflow.support.OperationFailedException;
 
 import org.junit.Test;
 
@@ -24,4 +30,100 @@ public class TestAnnotations {
 		assertEquals(6, context.getAttribute("b"));
 	}
 
+	@Test
+	public void testReflectiveWrapper() throws InterruptedException, ExecutionException {
+		SystemBuilder.setUseGeneratedAdapters(false);
+		try {
+			FlowSystem system = SystemBuilder.from(TaskA.class, TaskB.class);
+			for (FlowOperation operation : system.getAllOperations()) {
+				assertTrue(operation instanceof AnnotatedOperationWrapper);
+			}
+			FlowContext context = system.newContext();
+			context.putAttribute("input", 1);
+			FlowEvaluator.evaluate(system, context).get();
+			assertEquals(3, context.getAttribute("a"));
+			assertEquals(6, context.getAttribute("b"));
+		} finally {
+			SystemBuilder.setUseGeneratedAdapters(true);
+		}
+	}
+
+	@Test
+	public void testFromClasses() throws InterruptedException, ExecutionException {
+		FlowSystem system = SystemBuilder.from(TaskA.class, TaskB.class);
+		for (FlowOperation operation : system.getAllOperations()) {
+			assertTrue(operation instanceof GeneratedTaskOperation);
+			assertTrue(operation.getClass().getName().endsWith(TaskAdapters.ADAPTER_SUFFIX));
+		}
+		FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+		FlowEvaluator.evaluate(system, context).get();
+		assertEquals(3, context.getAttribute("a"));
+		assertEquals(6, context.getAttribute("b"));
+	}
+
+	@Test
+	public void testCheckedException() throws InterruptedException, ExecutionException {
+		for (final boolean useGenerated : new boolean[] {true, false}) {
+			SystemBuilder.setUseGeneratedAdapters(useGenerated);
+			try {
+				FlowSystem system = SystemBuilder.from(TaskD.class);
+				assertEquals(useGenerated, system.getAllOperations().iterator().next() instanceof GeneratedTaskOperation);
+				FlowContext context = system.newContext();
+				context.putAttribute("path", 2);
+				FlowEvaluator.evaluate(system, context).get();
+				assertEquals(20, context.getAttribute("size"));
+
+				context = system.newContext();
+				context.putAttribute("path", -1);
+				try {
+					FlowEvaluator.evaluate(system, context).get();
+					fail();
+				} catch (final ExecutionException e) {
+					assertTrue(e.getCause() instanceof OperationFailedException);
+					assertTrue(e.getCause().getCause() instanceof IOException);
+				}
+			} finally {
+				SystemBuilder.setUseGeneratedAdapters(true);
+			}
+		}
+	}
+
+	@Test
+	public void testMissingInputKeepsNoTask() throws InterruptedException, ExecutionException {
+		FlowSystem system = SystemBuilder.from(TaskA.class);
+		FlowContext context = system.newContext();
+		try {
+			FlowEvaluator.evaluate(system, context).get();
+			fail();
+		} catch (final ExecutionException e) {
+			// No input to unbox
+		}
+		assertFalse(context.hasAttribute(TaskA.class));
+
+		context.putAttribute("input", 1);
+		FlowEvaluator.evaluate(system, context).get();
+		assertEquals(3, context.getAttribute("a"));
+	}
+
+	@Test
+	public void testCachedTask() throws InterruptedException, ExecutionException {
+		for (final boolean useGenerated : new boolean[] {true, false}) {
+			SystemBuilder.setUseGeneratedAdapters(useGenerated);
+			try {
+				FlowSystem system = SystemBuilder.from(TaskC.class);
+				OutputCache cache = system.getAllOperations().iterator().next().getCache();
+				for (int i = 0; i < 3; ++i) {
+					FlowContext context = system.newContext();
+					context.putAttribute("count", 4);
+					FlowEvaluator.evaluate(system, context).get();
+					assertEquals(16, context.getAttribute("squared"));
+				}
+				assertEquals(2, cache.getStats().hitCount());
+			} finally {
+				SystemBuilder.setUseGeneratedAdapters(true);
+			}
+		}
+	}
+
 }
@@ -0,0 +1,234 @@
+package msdingfield.easyflow.core;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import msdingfield.easyflow.support.EvaluationRejectedException;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class AdmissionControllerTest {
+
+	/** Outputs a future which the test completes. */
+	private static class GateOperation extends FlowOperation {
+		private final SettableFuture<Integer> gate = SettableFuture.create();
+
+		public GateOperation() {
+			super(new BuilderBase().addAsyncOutput("output", Integer.class));
+		}
+
+		@Override
+		public void execute(final FlowContext context) {
+			context.putAttribute("output", gate);
+		}
+	}
+
+	/** Outputs a constant in the "test-admission" pool. */
+	private static class PooledOperation extends FlowOperation {
+		public PooledOperation() {
+			super(new BuilderBase().addOutput("output", Integer.class).setPool("test-admission"));
+		}
+
+		@Override
+		public void execute(final FlowContext context) {
+			context.putAttribute("output", 1);
+		}
+	}
+
+	/** Executor which queues tasks until the test runs them. */
+	private static class ManualExecutor implements Executor {
+		private final List<Runnable> queue = Lists.newArrayList();
+
+		@Override
+		public synchronized void execute(final Runnable command) {
+			queue.add(command);
+		}
+
+		public void runAll() {
+			final List<Runnable> tasks;
+			synchronized (this) {
+				tasks = Lists.newArrayList(queue);
+				queue.clear();
+			}
+			for (final Runnable task : tasks) {
+				task.run();
+			}
+		}
+	}
+
+	private static void assertRejected(final ListenableFuture<Void> future) throws InterruptedException {
+		try {
+			future.get();
+			fail();
+		} catch (final ExecutionException e) {
+			assertTrue(e.getCause() instanceof EvaluationRejectedException);
+		}
+	}
+
+	@Test
+	public void testReject() throws InterruptedException, ExecutionException {
+		final AdmissionController controller = AdmissionController.builder()
+				.setMaxInFlight(1)
+				.setPolicy(AdmissionController.Policy.REJECT)
+				.newAdmissionController();
+		final GateOperation operation = new GateOperation();
+		final FlowSystem system = new FlowSystem(operation);
+
+		final ListenableFuture<Void> first = controller.evaluate(system, system.newContext());
+		assertRejected(controller.evaluate(system, system.newContext()));
+		assertEquals(1, controller.getInFlight());
+		assertEquals(1, controller.getRejectedCount());
+
+		operation.gate.set(1);
+		first.get();
+		controller.evaluate(system, system.newContext()).get();
+		assertEquals(0, controller.getInFlight());
+		assertEquals(2, controller.getAdmittedCount());
+	}
+
+	@Test
+	public void testWait() throws InterruptedException, ExecutionException {
+		final AdmissionController controller = AdmissionController.builder()
+				.setMaxInFlight(1)
+				.setMaxWait(50L, TimeUnit.MILLISECONDS)
+				.newAdmissionController();
+		final GateOperation operation = new GateOperation();
+		final FlowSystem system = new FlowSystem(operation);
+
+		final ListenableFuture<Void> first = controller.evaluate(system, system.newContext());
+		assertRejected(controller.evaluate(system, system.newContext()));
+		assertEquals(1, controller.getTimedOutCount());
+
+		final FlowContext context = system.newContext();
+		final ListenableFuture<Void> second = controller.evaluate(system, context);
+		assertEquals(1, controller.getWaiting());
+		operation.gate.set(1);
+		first.get();
+		second.get();
+		assertEquals(1, context.getAttribute("output"));
+		assertEquals(0, controller.getWaiting());
+	}
+
+	@Test
+	public void testShedLowestPriority() throws InterruptedException, ExecutionException {
+		final AdmissionController controller = AdmissionController.builder()
+				.setMaxInFlight(1)
+				.setMaxWaiting(1)
+				.setPolicy(AdmissionController.Policy.SHED_LOWEST_PRIORITY)
+				.newAdmissionController();
+		final GateOperation operation = new GateOperation();
+		final FlowSystem system = new FlowSystem(operation);
+
+		final ListenableFuture<Void> first = controller.evaluate(system, system.newContext());
+		final ListenableFuture<Void> low = controller.evaluate(system, system.newContext(), EvaluationOptions.DEFAULT, 1);
+		final ListenableFuture<Void> high = controller.evaluate(system, system.newContext(), EvaluationOptions.DEFAULT, 5);
+		assertRejected(low);
+		assertRejected(controller.evaluate(system, system.newContext(), EvaluationOptions.DEFAULT, 0));
+		assertEquals(2, controller.getShedCount());
+
+		operation.gate.set(1);
+		first.get();
+		high.get();
+		assertEquals(2, controller.getAdmittedCount());
+	}
+
+	@Test
+	public void testMaxQueuedOperations() throws InterruptedException, ExecutionException {
+		final AdmissionController controller = AdmissionController.builder()
+				.setMaxQueuedOperations(1)
+				.newAdmissionController();
+		final ManualExecutor executor = new ManualExecutor();
+		final EvaluationOptions options = EvaluationOptions.builder().setExecutor(executor).newEvaluationOptions();
+		final GateOperation operation = new GateOperation();
+		operation.gate.set(1);
+		final FlowSystem system = new FlowSystem(operation);
+
+		final ListenableFuture<Void> first = controller.evaluate(system, system.newContext(), options, 0);
+		final ListenableFuture<Void> second = controller.evaluate(system, system.newContext(), options, 0);
+		assertEquals(1, controller.getQueuedOperations());
+		assertEquals(1, controller.getWaiting());
+
+		// Running the queued operation admits the waiting evaluation
+		executor.runAll();
+		first.get();
+		assertEquals(0, controller.getWaiting());
+		executor.runAll();
+		second.get();
+		assertEquals(0, controller.getQueuedOperations());
+	}
+
+	@Test
+	public void testRejectedOperationIsNotCounted() throws InterruptedException, ExecutionException {
+		final AdmissionController controller = AdmissionController.builder()
+				.setMaxQueuedOperations(1)
+				.newAdmissionController();
+		final Bulkhead bulkhead = FlowExecutors.newBulkhead("test-admission-full", 1, 1);
+		final CountDownLatch release = new CountDownLatch(1);
+		try {
+			// Occupy the thread & the queue
+			for (int i = 0; i < 2; ++i) {
+				bulkhead.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							release.await();
+						} catch (final InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				});
+			}
+			final GateOperation operation = new GateOperation();
+			operation.gate.set(1);
+			final FlowSystem system = new FlowSystem(operation);
+			final EvaluationOptions full = EvaluationOptions.builder().setExecutor(bulkhead).newEvaluationOptions();
+			try {
+				controller.evaluate(system, system.newContext(), full, 0).get();
+				fail();
+			} catch (final ExecutionException e) {
+				assertTrue(e.getCause() instanceof RejectedExecutionException);
+			}
+			assertEquals(0, controller.getQueuedOperations());
+
+			// Capacity wasn't leaked
+			final EvaluationOptions direct = EvaluationOptions.builder().setExecutor(MoreExecutors.directExecutor()).newEvaluationOptions();
+			controller.evaluate(system, system.newContext(), direct, 0).get();
+			assertEquals(0, controller.getWaiting());
+		} finally {
+			release.countDown();
+			FlowExecutors.removeBulkhead("test-admission-full");
+		}
+	}
+
+	@Test
+	public void testMaxQueuedOperationsInPool() throws InterruptedException, ExecutionException {
+		final AdmissionController controller = AdmissionController.builder()
+				.setMaxQueuedOperations(1)
+				.newAdmissionController();
+		final ManualExecutor pool = new ManualExecutor();
+		final EvaluationOptions options = EvaluationOptions.builder().setPool("test-admission", pool).newEvaluationOptions();
+		final FlowSystem system = new FlowSystem(new PooledOperation());
+
+		final ListenableFuture<Void> first = controller.evaluate(system, system.newContext(), options, 0);
+		final ListenableFuture<Void> second = controller.evaluate(system, system.newContext(), options, 0);
+		assertEquals(1, controller.getQueuedOperations());
+		assertEquals(1, controller.getWaiting());
+
+		pool.runAll();
+		first.get();
+		pool.runAll();
+		second.get();
+		assertEquals(0, controller.getQueuedOperations());
+	}
+}
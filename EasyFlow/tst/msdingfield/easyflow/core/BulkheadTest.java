@@ -0,0 +1,146 @@
+package msdingfield.easyflow.core;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class BulkheadTest {
+
+	/** Records the name of the thread it ran on. */
+	private static class ThreadNameOperation extends FlowOperation {
+		public ThreadNameOperation(final String output, final String pool) {
+			super(new BuilderBase().addOutput(output, String.class).setPool(pool));
+		}
+
+		public ThreadNameOperation(final String input, final String output, final String pool) {
+			super(new BuilderBase().addInput(input, String.class).addOutput(output, String.class).setPool(pool));
+		}
+
+		@Override
+		public void execute(final FlowContext context) {
+			context.putAttribute(getOutputs().keySet().iterator().next(), Thread.currentThread().getName());
+		}
+	}
+
+	@Test
+	public void testOperationsRunInTheirPool() throws InterruptedException, ExecutionException {
+		final Bulkhead bulkhead = FlowExecutors.newBulkhead("test-scoring", 1, 10);
+		try {
+			final FlowSystem system = new FlowSystem(new ThreadNameOperation("scored", "test-scoring"), new ThreadNameOperation("cheap", null));
+			final FlowContext context = system.newContext();
+			FlowEvaluator.evaluate(system, context).get();
+
+			assertTrue(((String) context.getAttribute("scored")).startsWith("flow-test-scoring-"));
+			assertTrue(((String) context.getAttribute("cheap")).startsWith("flow-pool-"));
+			assertEquals(1, bulkhead.getCompletedCount());
+		} finally {
+			FlowExecutors.removeBulkhead("test-scoring");
+		}
+	}
+
+	@Test
+	public void testInlineSuccessorsKeepTheirPool() throws InterruptedException, ExecutionException {
+		FlowExecutors.newBulkhead("test-inline", 1, 10);
+		try {
+			// Defer the first operation until every operation was released
+			final List<Runnable> deferred = Lists.newArrayList();
+			final Executor executor = new Executor() {
+				@Override
+				public synchronized void execute(final Runnable command) {
+					deferred.add(command);
+				}
+			};
+			final FlowSystem system = new FlowSystem(new ThreadNameOperation("cheap", null), new ThreadNameOperation("cheap", "scored", "test-inline"));
+			final FlowContext context = system.newContext();
+			final EvaluationOptions options = EvaluationOptions.builder()
+					.setExecutor(executor)
+					.setInlineSuccessors(true)
+					.newEvaluationOptions();
+			final Future<Void> future = FlowEvaluator.evaluate(system, context, options);
+			assertEquals(1, deferred.size());
+			deferred.get(0).run();
+			future.get();
+
+			assertEquals(Thread.currentThread().getName(), context.getAttribute("cheap"));
+			assertTrue(((String) context.getAttribute("scored")).startsWith("flow-test-inline-"));
+		} finally {
+			FlowExecutors.removeBulkhead("test-inline");
+		}
+	}
+
+	@Test
+	public void testOptionsOverridePool() throws InterruptedException, ExecutionException {
+		final AtomicInteger executed = new AtomicInteger();
+		final Executor executor = new Executor() {
+			@Override
+			public void execute(final Runnable command) {
+				executed.incrementAndGet();
+				command.run();
+			}
+		};
+		final FlowSystem system = new FlowSystem(new ThreadNameOperation("scored", "test-override"));
+		final EvaluationOptions options = EvaluationOptions.builder().setPool("test-override", executor).newEvaluationOptions();
+		FlowEvaluator.evaluate(system, system.newContext(), options).get();
+		assertEquals(1, executed.get());
+	}
+
+	@Test
+	public void testUnknownPool() throws InterruptedException {
+		final FlowSystem system = new FlowSystem(new ThreadNameOperation("scored", "test-unknown"));
+		final Future<Void> future = FlowEvaluator.evaluate(system, system.newContext());
+		try {
+			future.get();
+			fail();
+		} catch (final ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+
+	@Test
+	public void testFullPoolDoesNotStarveOthers() throws InterruptedException, ExecutionException {
+		final Bulkhead bulkhead = FlowExecutors.newBulkhead("test-full", 1, 1);
+		final CountDownLatch release = new CountDownLatch(1);
+		try {
+			// Occupy the thread & the queue
+			for (int i = 0; i < 2; ++i) {
+				bulkhead.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							release.await();
+						} catch (final InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				});
+			}
+
+			final FlowSystem isolated = new FlowSystem(new ThreadNameOperation("scored", "test-full"));
+			try {
+				FlowEvaluator.evaluate(isolated, isolated.newContext()).get();
+				fail();
+			} catch (final ExecutionException e) {
+				assertTrue(e.getCause() instanceof RejectedExecutionException);
+			}
+			assertEquals(1, bulkhead.getRejectedCount());
+
+			final FlowSystem other = new FlowSystem(new ThreadNameOperation("cheap", null));
+			final FlowContext context = other.newContext();
+			FlowEvaluator.evaluate(other, context).get();
+			assertTrue(context.hasAttribute("cheap"));
+		} finally {
+			release.countDown();
+			FlowExecutors.removeBulkhead("test-full");
+		}
+	}
+}
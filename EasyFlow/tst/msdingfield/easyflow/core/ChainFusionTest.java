@@ -0,0 +1,145 @@
+package msdingfield.easyflow.core;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class ChainFusionTest {
+
+	/** Adds one to its input, optionally suspending once on a future first. */
+	private static class IncrementOperation extends FlowOperation {
+		private final String input;
+		private final String output;
+		private final SettableFuture<Void> pause;
+
+		public IncrementOperation(final String input, final String output, final SettableFuture<Void> pause) {
+			super(ImmutableMap.<String, Class<?>>of(input, Integer.class), ImmutableMap.<String, Class<?>>of(output, Integer.class));
+			this.input = input;
+			this.output = output;
+			this.pause = pause;
+		}
+
+		@Override
+		public void execute(final FlowContext context) {
+			if (pause != null && !pause.isDone()) {
+				FlowEvaluator.resumeOn(pause, this);
+				new Thread() {
+					@Override
+					public void run() {
+						try { Thread.sleep(50L); } catch (InterruptedException e) {}
+						pause.set(null);
+					}
+				}.start();
+				return;
+			}
+			context.putAttribute(output, (Integer) context.getAttribute(input) + 1);
+		}
+	}
+
+	/** Sets "c" to a future of "b" plus one which completes 50ms later. */
+	private static class AsyncIncrementOperation extends FlowOperation {
+		public AsyncIncrementOperation() {
+			super(new BuilderBase().addInput("b", Integer.class).addAsyncOutput("c", Integer.class));
+		}
+
+		@Override
+		public void execute(final FlowContext context) {
+			final int value = (Integer) context.getAttribute("b") + 1;
+			final SettableFuture<Integer> future = SettableFuture.create();
+			context.putAttribute("c", future);
+			new Thread() {
+				@Override
+				public void run() {
+					try { Thread.sleep(50L); } catch (InterruptedException e) {}
+					future.set(value);
+				}
+			}.start();
+		}
+	}
+
+	private static FlowOperation inc(final String input, final String output) {
+		return new IncrementOperation(input, output, null);
+	}
+
+	@Test
+	public void testFuseChain() throws InterruptedException, ExecutionException {
+		final FlowSystem system = new FlowSystem(
+				inc("input", "a"), inc("a", "b"), inc("b", "c"),
+				inc("c", "d.1"), inc("c", "d.2"));
+		final FlowSystem fused = ChainFusion.fuse(system, Sets.newHashSet("d.1", "d.2"));
+
+		// input -> a -> b -> c is fused, the fan out is left alone
+		assertEquals(3, fused.getAllOperations().size());
+		int chains = 0;
+		for (final FlowOperation op : fused.getAllOperations()) {
+			if (op instanceof FusedOperation) {
+				assertEquals(3, ((FusedOperation) op).getSteps().size());
+				++chains;
+			}
+		}
+		assertEquals(1, chains);
+
+		final FlowContext context = fused.newContext();
+		context.putAttribute("input", 0);
+		FlowEvaluator.evaluate(fused, context).get();
+
+		assertEquals(4, context.getAttribute("d.1"));
+		assertEquals(4, context.getAttribute("d.2"));
+		assertEquals(3, context.getAttribute("c"));
+		assertFalse(context.hasAttribute("a"));
+		assertFalse(context.hasAttribute("b"));
+	}
+
+	@Test
+	public void testNothingToFuse() {
+		final FlowSystem system = new FlowSystem(
+				inc("input", "a"), inc("a", "b.1"), inc("a", "b.2"));
+		assertSame(system, ChainFusion.fuse(system));
+	}
+
+	@Test
+	public void testAsyncOutputBreaksChain() throws InterruptedException, ExecutionException {
+		final FlowOperation async = new AsyncIncrementOperation();
+		final FlowSystem system = ChainFusion.fuse(new FlowSystem(
+				inc("input", "a"), inc("a", "b"), async, inc("c", "d"), inc("d", "e")),
+				Sets.newHashSet("e"));
+
+		// input -> a -> b and c -> d -> e are fused around the async operation
+		assertEquals(3, system.getAllOperations().size());
+		assertTrue(system.getAllOperations().contains(async));
+
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 0);
+		FlowEvaluator.evaluate(system, context).get();
+
+		assertEquals(3, context.getAttribute("c"));
+		assertEquals(5, context.getAttribute("e"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testAsyncStepRejected() {
+		new FusedOperation.Builder().addStep(new AsyncIncrementOperation());
+	}
+
+	@Test
+	public void testStepResumes() throws InterruptedException, ExecutionException {
+		final FlowSystem system = ChainFusion.fuse(new FlowSystem(
+				inc("input", "a"),
+				new IncrementOperation("a", "b", SettableFuture.<Void>create()),
+				inc("b", "c")), Sets.newHashSet("c"));
+		assertEquals(1, system.getAllOperations().size());
+
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 0);
+		FlowEvaluator.evaluate(system, context).get();
+
+		assertEquals(3, context.getAttribute("c"));
+		assertFalse(context.hasAttribute("b"));
+	}
+}
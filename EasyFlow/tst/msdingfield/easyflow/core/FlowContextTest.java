@@ -0,0 +1,65 @@
+package msdingfield.easyflow.core;
+
+import static org.junit.Assert.*;
+
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class FlowContextTest {
+
+	private final ContextLayout layout = new ContextLayout(Lists.newArrayList("a", "b", "a"));
+
+	@Test
+	public void testSlotsAndFallback() {
+		assertEquals(2, layout.size());
+		final FlowContext context = new FlowContext(layout);
+		final int a = layout.slotOf("a");
+		assertTrue(a >= 0);
+		assertEquals(-1, layout.slotOf("c"));
+
+		assertFalse(context.hasAttribute("a"));
+		context.putAttribute("a", 1);
+		assertTrue(context.hasSlot(a));
+		assertEquals(1, context.getSlot(a));
+
+		context.putSlot(layout.slotOf("b"), null);
+		assertTrue(context.hasAttribute("b"));
+		assertNull(context.getAttribute("b"));
+
+		context.putAttribute(String.class, "fallback");
+		assertEquals("fallback", context.getAttribute(String.class));
+		assertEquals(Sets.<Object>newHashSet("a", "b", String.class), Sets.newHashSet(context.getAttributeKeys()));
+	}
+
+	@Test
+	public void testConcurrentWrites() throws InterruptedException {
+		final int threads = 8;
+		final int perThread = 1000;
+		final Collection<String> names = Lists.newArrayList();
+		for (int i = 0; i < threads * perThread; ++i) {
+			names.add("n" + i);
+		}
+		final FlowContext context = new FlowContext(new ContextLayout(names));
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; ++t) {
+			final int offset = t * perThread;
+			new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < perThread; ++i) {
+						context.putAttribute("n" + (offset + i), i);
+						context.putAttribute("extra" + (offset + i), i);
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		done.await();
+		assertEquals(2 * threads * perThread, context.getAttributeKeys().size());
+	}
+}
@@ -0,0 +1,842 @@
+package msdingfield.easyflow.core;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import msdingfield.easyflow.support.EvaluationTimeoutException;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class FlowEvaluatorTest {
+
+	/** Operation which adds its integer inputs and a constant. */
+	private static class SumOperation extends FlowOperation {
+		private final int constant;
+		private final long sleepMs;
+
+		public SumOperation(final Map<String, Class<?>> inputs, final String output, final int constant, final long sleepMs) {
+			super(inputs, ImmutableMap.<String, Class<?>>of(output, Integer.class));
+			this.constant = constant;
+			this.sleepMs = sleepMs;
+		}
+
+		public SumOperation(final BuilderBase builder, final int constant) {
+			super(builder);
+			this.constant = constant;
+			this.sleepMs = 0L;
+		}
+
+		@Override
+		public void execute(final FlowContext context) {
+			int acc = constant;
+			for (final String input : getInputs().keySet()) {
+				acc += (Integer) context.getAttribute(input);
+			}
+			if (sleepMs > 0) {
+				try { Thread.sleep(sleepMs); } catch (InterruptedException e) {}
+			}
+			for (final String output : getOutputs().keySet()) {
+				context.putAttribute(output, acc);
+				context.putAttribute(output + ".thread", Thread.currentThread());
+			}
+		}
+	}
+
+	private static FlowOperation sum(final String output, final int constant, final String ...inputs) {
+		return sleepingSum(output, constant, 0L, inputs);
+	}
+
+	private static FlowOperation sleepingSum(final String output, final int constant, final long sleepMs, final String ...inputs) {
+		final ImmutableMap.Builder<String, Class<?>> builder = ImmutableMap.builder();
+		for (final String input : inputs) {
+			builder.put(input, Integer.class);
+		}
+		return new SumOperation(builder.build(), output, constant, sleepMs);
+	}
+
+	private static FlowSystem diamond() {
+		return new FlowSystem(
+				sum("a", 2, "input"),
+				sum("b.1", 4, "a"),
+				sum("b.2", 8, "a"),
+				sum("c", 16, "b.1", "b.2"));
+	}
+
+	@Test
+	public void testCustomExecutor() throws InterruptedException, ExecutionException {
+		final AtomicInteger executed = new AtomicInteger();
+		final Executor executor = new Executor() {
+			@Override
+			public void execute(final Runnable command) {
+				executed.incrementAndGet();
+				FlowExecutors.defaultExecutor().execute(command);
+			}
+		};
+
+		final FlowSystem system = diamond();
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+		FlowEvaluator.evaluate(system, context, executor).get();
+
+		assertEquals(34, context.getAttribute("c"));
+		assertEquals(4, executed.get());
+	}
+
+	@Test
+	public void testInlineSuccessors() throws InterruptedException, ExecutionException {
+		final FlowSystem system = new FlowSystem(
+				sum("a", 1, "input"),
+				sum("b", 1, "a"),
+				sum("c", 1, "b"),
+				sum("d", 1, "c"));
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 0);
+		FlowEvaluator.evaluate(system, context, EvaluationOptions.builder().setInlineSuccessors(true).newEvaluationOptions()).get();
+
+		assertEquals(4, context.getAttribute("d"));
+		assertSame(context.getAttribute("a.thread"), context.getAttribute("d.thread"));
+	}
+
+	@Test
+	public void testInlineOperation() throws InterruptedException, ExecutionException {
+		final FlowOperation cheap = new SumOperation(new FlowOperation.BuilderBase()
+				.addInput("a", Integer.class)
+				.addOutput("b", Integer.class)
+				.setInline(true), 1);
+		assertTrue(cheap.isInline());
+
+		final FlowSystem system = new FlowSystem(sum("a", 1, "input"), cheap);
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 0);
+		FlowEvaluator.evaluate(system, context).get();
+
+		assertEquals(2, context.getAttribute("b"));
+		assertSame(context.getAttribute("a.thread"), context.getAttribute("b.thread"));
+	}
+
+	@Test
+	public void testPriorityPoolOrder() throws InterruptedException {
+		final ExecutorService pool = FlowExecutors.newPriorityPool(1);
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(4);
+		final List<Long> order = Collections.synchronizedList(Lists.<Long>newArrayList());
+
+		pool.execute(new Runnable() {
+			@Override
+			public void run() {
+				try { blocked.await(); } catch (InterruptedException e) {}
+			}
+		});
+		for (final long priority : new long[] {1, 5, 3, 5}) {
+			pool.execute(new PrioritizedTask(priority, order, done));
+		}
+		blocked.countDown();
+		done.await();
+		pool.shutdown();
+
+		assertEquals(Lists.newArrayList(5L, 5L, 3L, 1L), order);
+	}
+
+	private static class PrioritizedTask implements Runnable, Prioritized {
+		private final long priority;
+		private final List<Long> order;
+		private final CountDownLatch done;
+
+		public PrioritizedTask(final long priority, final List<Long> order, final CountDownLatch done) {
+			this.priority = priority;
+			this.order = order;
+			this.done = done;
+		}
+
+		@Override
+		public long getPriority() {
+			return priority;
+		}
+
+		@Override
+		public void run() {
+			order.add(priority);
+			done.countDown();
+		}
+	}
+
+	@Test
+	public void testPriorityScheduling() throws InterruptedException, ExecutionException {
+		final FlowSystem system = diamond();
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+		FlowEvaluator.evaluate(system, context, EvaluationOptions.builder()
+				.setExecutor(FlowExecutors.priorityPool())
+				.setLatencyWeightedPriorities(true)
+				.newEvaluationOptions()).get();
+		assertEquals(34, context.getAttribute("c"));
+		assertTrue(system.getPlan().getMeanRunNanos(0) > 0);
+	}
+
+	@Test
+	public void testThreadPerOperationRunsBlockingOperationsConcurrently() throws InterruptedException, ExecutionException {
+		final List<FlowOperation> operations = Lists.newArrayList();
+		for (int i = 0; i < 200; ++i) {
+			operations.add(sleepingSum("out" + i, i, 200L, "input"));
+		}
+		final FlowSystem system = new FlowSystem(operations);
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+
+		final long start = System.currentTimeMillis();
+		FlowEvaluator.evaluate(system, context, FlowExecutors.threadPerOperation()).get();
+		final long elapsed = System.currentTimeMillis() - start;
+
+		assertEquals(200, context.getAttribute("out199"));
+		assertTrue(String.format("%d", elapsed), elapsed < 2000L);
+	}
+
+	/** Outputs the name of the thread it ran on. */
+	private static class ThreadNameOperation extends FlowOperation {
+		private final String output;
+
+		public ThreadNameOperation(final String input, final String output) {
+			super(ImmutableMap.<String, Class<?>>of(input, Integer.class), ImmutableMap.<String, Class<?>>of(output, String.class));
+			this.output = output;
+		}
+
+		@Override
+		public void execute(final FlowContext context) {
+			context.putAttribute(output, Thread.currentThread().getName());
+		}
+	}
+
+	@Test
+	public void testWorkStealingPool() throws InterruptedException, ExecutionException {
+		final List<FlowOperation> operations = Lists.newArrayList(sum("a", 2, "input"));
+		final String[] outputs = new String[100];
+		for (int i = 0; i < outputs.length; ++i) {
+			outputs[i] = "out" + i;
+			operations.add(sum(outputs[i], i, "a"));
+		}
+		operations.add(sum("join", 0, outputs));
+		final String[] threads = new String[10];
+		for (int i = 0; i < threads.length; ++i) {
+			threads[i] = "thread" + i;
+			operations.add(new ThreadNameOperation("a", threads[i]));
+		}
+		final FlowSystem system = new FlowSystem(operations);
+		final Executor executor = FlowExecutors.newWorkStealingPool(2);
+
+		for (final boolean inlineSuccessors : new boolean[] { false, true }) {
+			final FlowContext context = system.newContext();
+			context.putAttribute("input", 1);
+			FlowEvaluator.evaluate(system, context, EvaluationOptions.builder()
+					.setExecutor(executor)
+					.setInlineSuccessors(inlineSuccessors)
+					.newEvaluationOptions()).get();
+			assertEquals(100 * 3 + 4950, context.getAttribute("join"));
+			if (!inlineSuccessors) {
+				// Successors are forked to the pool's workers
+				for (final String name : threads) {
+					final String thread = (String) context.getAttribute(name);
+					assertTrue(thread, thread.startsWith("flow-fork-join-"));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testWorkStealingPoolReportsFailures() throws InterruptedException {
+		final Executor executor = FlowExecutors.newWorkStealingPool(2);
+		final RuntimeException failure = new RuntimeException();
+		final List<Throwable> reported = Collections.synchronizedList(Lists.<Throwable>newArrayList());
+		final CountDownLatch done = new CountDownLatch(1);
+		final Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+		Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+			@Override
+			public void uncaughtException(final Thread thread, final Throwable e) {
+				reported.add(e);
+				done.countDown();
+			}
+		});
+		try {
+			// Submitted from a worker, so the failing command is forked
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							throw failure;
+						}
+					});
+				}
+			});
+			assertTrue(done.await(5L, TimeUnit.SECONDS));
+			assertSame(failure, reported.get(0));
+		} finally {
+			Thread.setDefaultUncaughtExceptionHandler(previous);
+		}
+	}
+
+	/** Batch operation doubling "a" into "b.2" and counting its calls. */
+	private static class DoubleBatchOperation extends BatchFlowOperation {
+		private final AtomicInteger calls = new AtomicInteger();
+
+		public DoubleBatchOperation() {
+			super(ImmutableMap.<String, Class<?>>of("a", Integer.class), ImmutableMap.<String, Class<?>>of("b.2", Integer.class));
+		}
+
+		@Override
+		public void executeBatch(final List<FlowContext> contexts) {
+			calls.incrementAndGet();
+			final List<Object> column = getColumn(contexts, "a");
+			for (int i = 0; i < contexts.size(); ++i) {
+				contexts.get(i).putAttribute("b.2", (Integer) column.get(i) * 2);
+			}
+		}
+	}
+
+	@Test
+	public void testBatch() throws InterruptedException, ExecutionException {
+		final DoubleBatchOperation batchOperation = new DoubleBatchOperation();
+		final FlowSystem system = new FlowSystem(
+				sum("a", 2, "input"),
+				sum("b.1", 4, "a"),
+				batchOperation,
+				sum("c", 16, "b.1", "b.2"));
+		final List<FlowContext> contexts = Lists.newArrayList();
+		for (int i = 0; i < 100; ++i) {
+			final FlowContext context = system.newContext();
+			context.putAttribute("input", i);
+			contexts.add(context);
+		}
+		FlowEvaluator.evaluateBatch(system, contexts).get();
+
+		assertEquals(1, batchOperation.calls.get());
+		for (int i = 0; i < 100; ++i) {
+			// c = (i + 2 + 4) + (i + 2) * 2 + 16
+			assertEquals(3 * i + 26, contexts.get(i).getAttribute("c"));
+		}
+	}
+
+	@Test
+	public void testBatchResumesOnlySuspendedContexts() throws InterruptedException, ExecutionException {
+		final AtomicInteger executions = new AtomicInteger();
+		final FlowOperation pausing = new FlowOperation(
+				ImmutableMap.<String, Class<?>>of("input", Integer.class), ImmutableMap.<String, Class<?>>of("a", Integer.class)) {
+			@Override
+			public void execute(final FlowContext context) {
+				executions.incrementAndGet();
+				final int input = (Integer) context.getAttribute("input");
+				if (input % 2 == 1 && !context.hasAttribute("paused")) {
+					final SettableFuture<Void> pause = SettableFuture.create();
+					context.putAttribute("paused", pause);
+					FlowEvaluator.resumeOn(pause, this);
+					new Thread() {
+						@Override
+						public void run() {
+							try { Thread.sleep(20L); } catch (InterruptedException e) {}
+							pause.set(null);
+						}
+					}.start();
+					return;
+				}
+				context.putAttribute("a", input);
+			}
+		};
+		final FlowSystem system = new FlowSystem(pausing, sum("b", 1, "a"));
+		final List<FlowContext> contexts = Lists.newArrayList();
+		for (int i = 0; i < 10; ++i) {
+			final FlowContext context = system.newContext();
+			context.putAttribute("input", i);
+			contexts.add(context);
+		}
+		FlowEvaluator.evaluateBatch(system, contexts).get();
+
+		// Each odd context suspends once and is executed again alone
+		assertEquals(15, executions.get());
+		for (int i = 0; i < 10; ++i) {
+			assertEquals(i + 1, contexts.get(i).getAttribute("b"));
+		}
+	}
+
+	/** Applies a function to its single input & records its executions. */
+	private static class RecordingOperation extends FlowOperation {
+		private final List<String> log;
+		private final String output;
+		private final int modulus;
+
+		public RecordingOperation(final List<String> log, final String output, final int modulus, final String ...inputs) {
+			super(types(inputs), ImmutableMap.<String, Class<?>>of(output, Integer.class));
+			this.log = log;
+			this.output = output;
+			this.modulus = modulus;
+		}
+
+		private static Map<String, Class<?>> types(final String ...names) {
+			final ImmutableMap.Builder<String, Class<?>> builder = ImmutableMap.builder();
+			for (final String name : names) {
+				builder.put(name, Integer.class);
+			}
+			return builder.build();
+		}
+
+		@Override
+		public void execute(final FlowContext context) {
+			log.add(output);
+			int acc = 1;
+			for (final String input : getInputs().keySet()) {
+				acc += (Integer) context.getAttribute(input);
+			}
+			context.putAttribute(output, modulus > 0 ? acc % modulus : acc);
+		}
+	}
+
+	@Test
+	public void testReevaluate() throws InterruptedException, ExecutionException {
+		final List<String> log = Collections.synchronizedList(Lists.<String>newArrayList());
+		final FlowSystem system = new FlowSystem(
+				new RecordingOperation(log, "a", 0, "input"),
+				new RecordingOperation(log, "b.1", 0, "a"),
+				new RecordingOperation(log, "b.2", 0, "other"),
+				new RecordingOperation(log, "c", 0, "b.1", "b.2"));
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+		context.putAttribute("other", 10);
+		FlowEvaluator.evaluate(system, context).get();
+		assertEquals(4, log.size());
+		assertEquals(15, context.getAttribute("c"));
+
+		log.clear();
+		context.putAttribute("other", 20);
+		FlowEvaluator.reevaluate(system, context, Collections.singleton("other")).get();
+		assertEquals(Lists.newArrayList("b.2", "c"), log);
+		assertEquals(25, context.getAttribute("c"));
+
+		log.clear();
+		FlowEvaluator.reevaluate(system, context, Collections.singleton("unused")).get();
+		assertTrue(log.isEmpty());
+	}
+
+	@Test
+	public void testReevaluateEqualityCutoff() throws InterruptedException, ExecutionException {
+		final List<String> log = Collections.synchronizedList(Lists.<String>newArrayList());
+		final FlowSystem system = new FlowSystem(
+				new RecordingOperation(log, "parity", 2, "input"),
+				new RecordingOperation(log, "a", 0, "parity"),
+				new RecordingOperation(log, "b", 0, "a", "other"));
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+		context.putAttribute("other", 1);
+		FlowEvaluator.evaluate(system, context).get();
+		assertEquals(3, context.getAttribute("b"));
+
+		final EvaluationOptions cutoff = EvaluationOptions.builder().setEqualityCutoff(true).newEvaluationOptions();
+		log.clear();
+		context.putAttribute("input", 3);
+		FlowEvaluator.reevaluate(system, context, Collections.singleton("input"), cutoff).get();
+		assertEquals(Lists.newArrayList("parity"), log);
+
+		// b still runs when another of its inputs changed
+		log.clear();
+		context.putAttribute("input", 5);
+		context.putAttribute("other", 2);
+		FlowEvaluator.reevaluate(system, context, Sets.newHashSet("input", "other"), cutoff).get();
+		assertEquals(Sets.newHashSet("parity", "b"), Sets.newHashSet(log));
+		assertEquals(4, context.getAttribute("b"));
+
+		log.clear();
+		context.putAttribute("input", 2);
+		FlowEvaluator.reevaluate(system, context, Collections.singleton("input"), cutoff).get();
+		assertEquals(Lists.newArrayList("parity", "a", "b"), log);
+		assertEquals(5, context.getAttribute("b"));
+	}
+
+	/** Outputs a future of "input" + 1 which the test completes. */
+	private static class AsyncOperation extends FlowOperation {
+		private final SettableFuture<Integer> future = SettableFuture.create();
+
+		public AsyncOperation() {
+			super(new BuilderBase().addInput("input", Integer.class).addAsyncOutput("a", Integer.class));
+		}
+
+		@Override
+		public void execute(final FlowContext context) {
+			context.putAttribute("a", future);
+		}
+	}
+
+	@Test
+	public void testAsyncOutput() throws InterruptedException, ExecutionException {
+		final AsyncOperation async = new AsyncOperation();
+		final FlowSystem system = new FlowSystem(async, sum("b", 1, "a"));
+		assertEquals(Integer.class, async.getOutputs().get("a"));
+
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+		final Future<Void> done = FlowEvaluator.evaluate(system, context);
+		Thread.sleep(50L);
+		assertFalse(done.isDone());
+		assertFalse(context.hasAttribute("b"));
+
+		async.future.set(41);
+		done.get();
+		assertEquals(41, context.getAttribute("a"));
+		assertEquals(42, context.getAttribute("b"));
+	}
+
+	@Test
+	public void testAsyncOutputContinuationIsPrioritized() throws InterruptedException, ExecutionException {
+		final AsyncOperation async = new AsyncOperation();
+		final FlowSystem system = new FlowSystem(async, sum("b", 1, "a"));
+		final List<Long> priorities = Collections.synchronizedList(Lists.<Long>newArrayList());
+		final Executor executor = new Executor() {
+			@Override
+			public void execute(final Runnable command) {
+				priorities.add(command instanceof Prioritized ? ((Prioritized) command).getPriority() : null);
+				command.run();
+			}
+		};
+
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+		final Future<Void> done = FlowEvaluator.evaluate(system, context, EvaluationOptions.builder().setExecutor(executor).newEvaluationOptions());
+		async.future.set(41);
+		done.get();
+
+		// The async operation, the wait for its output & its successor
+		final long rank = system.getPlan().getRank(system.getPlan().indexOf(async));
+		assertEquals(Lists.newArrayList(rank, rank, rank - 1), priorities);
+	}
+
+	@Test
+	public void testStartOutputs() throws InterruptedException, ExecutionException {
+		final AsyncOperation async = new AsyncOperation();
+		final FlowSystem system = new FlowSystem(async, sum("b", 1, "a"), sum("c", 2, "input"));
+
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+		final FlowEvaluation evaluation = FlowEvaluator.start(system, context);
+		assertSame(context, evaluation.getContext());
+		assertEquals(1, evaluation.output("input").get());
+
+		// c is ready while a is still pending
+		assertEquals(Integer.valueOf(3), evaluation.output("c", Integer.class).get());
+		final ListenableFuture<Integer> b = evaluation.output("b", Integer.class);
+		assertFalse(b.isDone());
+		assertFalse(evaluation.getResult().isDone());
+
+		async.future.set(41);
+		assertEquals(Integer.valueOf(42), b.get());
+		assertSame(context, evaluation.getResult().get());
+	}
+
+	@Test
+	public void testStartFailure() throws InterruptedException {
+		final AsyncOperation async = new AsyncOperation();
+		final FlowSystem system = new FlowSystem(async, sum("b", 1, "a"));
+
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+		final FlowEvaluation evaluation = FlowEvaluator.start(system, context);
+		final ListenableFuture<Object> b = evaluation.output("b");
+		final IllegalStateException failure = new IllegalStateException();
+		async.future.setException(failure);
+
+		try {
+			b.get();
+			fail();
+		} catch (final ExecutionException e) {
+			assertSame(failure, e.getCause());
+		}
+		try {
+			evaluation.getResult().get();
+			fail();
+		} catch (final ExecutionException e) {
+			assertSame(failure, e.getCause());
+		}
+		assertFalse(context.hasAttribute("b"));
+	}
+
+	@Test
+	public void testOperationFailure() throws InterruptedException {
+		final IllegalStateException failure = new IllegalStateException();
+		final FlowOperation failing = new FlowOperation(ImmutableMap.<String, Class<?>>of("input", Integer.class), ImmutableMap.<String, Class<?>>of("a", Integer.class)) {
+			@Override
+			public void execute(final FlowContext context) {
+				throw failure;
+			}
+		};
+		final FlowSystem system = new FlowSystem(failing, sum("b", 1, "a"));
+
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+		try {
+			FlowEvaluator.evaluate(system, context).get();
+			fail();
+		} catch (final ExecutionException e) {
+			assertSame(failure, e.getCause());
+		}
+		assertFalse(context.hasAttribute("b"));
+	}
+
+	@Test
+	public void testOperationError() throws InterruptedException, ExecutionException, TimeoutException {
+		final AssertionError failure = new AssertionError();
+		final FlowOperation failing = new FlowOperation(ImmutableMap.<String, Class<?>>of("input", Integer.class), ImmutableMap.<String, Class<?>>of("a", Integer.class)) {
+			@Override
+			public void execute(final FlowContext context) {
+				throw failure;
+			}
+		};
+		final FlowSystem system = new FlowSystem(failing, sum("b", 1, "a"));
+		final FlowEvaluator evaluator = FlowEvaluator.newEvaluator(system);
+
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+		try {
+			evaluator.evaluate(context).get(5L, TimeUnit.SECONDS);
+			fail();
+		} catch (final ExecutionException e) {
+			assertSame(failure, e.getCause());
+		}
+		for (int i = 0; i < 100 && !evaluator.isIdle(); ++i) {
+			Thread.sleep(10L);
+		}
+		assertTrue(evaluator.isIdle());
+	}
+
+	/** Operation which waits on a future which never completes by itself. */
+	private static class SuspendingOperation extends FlowOperation {
+		private final SettableFuture<Void> future = SettableFuture.create();
+		private final CountDownLatch suspended = new CountDownLatch(1);
+
+		public SuspendingOperation() {
+			super(new BuilderBase().addInput("input", Integer.class).addOutput("a", Integer.class));
+		}
+
+		@Override
+		public void execute(final FlowContext context) {
+			if (!future.isDone()) {
+				FlowEvaluator.resumeOn(future, this);
+				suspended.countDown();
+				return;
+			}
+			context.putAttribute("a", context.getAttribute("input"));
+		}
+	}
+
+	@Test
+	public void testTimeout() throws InterruptedException {
+		final AsyncOperation async = new AsyncOperation();
+		final FlowSystem system = new FlowSystem(async, sum("b", 1, "a"));
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+		final EvaluationOptions options = EvaluationOptions.builder().setTimeout(50L, TimeUnit.MILLISECONDS).newEvaluationOptions();
+
+		try {
+			FlowEvaluator.evaluate(system, context, options).get();
+			fail();
+		} catch (final ExecutionException e) {
+			assertTrue(e.getCause() instanceof EvaluationTimeoutException);
+			assertTrue(e.getCause().getMessage().contains("(awaiting outputs)"));
+			assertTrue(e.getCause().getMessage().contains("(waiting)"));
+		}
+		async.future.set(41);
+		assertFalse(context.hasAttribute("b"));
+	}
+
+	@Test
+	public void testOperationTimeoutCancelsResume() throws InterruptedException {
+		final SuspendingOperation suspending = new SuspendingOperation();
+		final FlowSystem system = new FlowSystem(suspending, sum("b", 1, "a"));
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+		final EvaluationOptions options = EvaluationOptions.builder().setOperationTimeout(50L, TimeUnit.MILLISECONDS).newEvaluationOptions();
+
+		try {
+			FlowEvaluator.evaluate(system, context, options).get();
+			fail();
+		} catch (final ExecutionException e) {
+			assertTrue(e.getCause() instanceof EvaluationTimeoutException);
+			assertTrue(e.getCause().getMessage().contains("(suspended)"));
+		}
+		assertTrue(suspending.future.isCancelled());
+		assertFalse(context.hasAttribute("b"));
+	}
+
+	@Test
+	public void testCancel() throws InterruptedException {
+		final SuspendingOperation suspending = new SuspendingOperation();
+		final FlowSystem system = new FlowSystem(suspending, sum("b", 1, "a"));
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+		final FlowEvaluation evaluation = FlowEvaluator.start(system, context);
+		final ListenableFuture<Object> b = evaluation.output("b");
+		suspending.suspended.await();
+
+		assertTrue(evaluation.getResult().cancel(false));
+		assertTrue(b.isCancelled());
+		for (int i = 0; i < 100 && !suspending.future.isCancelled(); ++i) {
+			Thread.sleep(10L);
+		}
+		assertTrue(suspending.future.isCancelled());
+		assertFalse(context.hasAttribute("a"));
+		assertFalse(context.hasAttribute("b"));
+	}
+
+	@Test
+	public void testReusableEvaluator() throws InterruptedException, ExecutionException {
+		final FlowSystem system = diamond();
+		final FlowEvaluator evaluator = FlowEvaluator.newEvaluator(system);
+		assertTrue(evaluator.isIdle());
+		for (int input = 0; input < 3; ++input) {
+			final FlowContext context = system.newContext();
+			context.putAttribute("input", input);
+			evaluator.evaluate(context).get();
+			assertEquals(2 * input + 32, context.getAttribute("c"));
+		}
+		assertTrue(evaluator.isIdle());
+	}
+
+	@Test
+	public void testReusableEvaluatorAfterFailure() throws InterruptedException, ExecutionException {
+		final SuspendingOperation suspending = new SuspendingOperation();
+		final FlowSystem system = new FlowSystem(suspending, sum("b", 1, "a"));
+		final FlowEvaluator evaluator = FlowEvaluator.newEvaluator(system);
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+		final ListenableFuture<Void> first = evaluator.evaluate(context);
+		suspending.suspended.await();
+		try {
+			evaluator.evaluate(context);
+			fail();
+		} catch (final IllegalStateException e) {
+			// Still running
+		}
+
+		first.cancel(false);
+		for (int i = 0; i < 100 && !evaluator.isIdle(); ++i) {
+			Thread.sleep(10L);
+		}
+		assertTrue(evaluator.isIdle());
+		assertFalse(context.hasAttribute("b"));
+	}
+
+	/** Outputs a future which never completes for input 1, otherwise a done future of its input. */
+	private static class StuckOperation extends FlowOperation {
+		private final SettableFuture<Integer> stuck = SettableFuture.create();
+
+		public StuckOperation() {
+			super(new BuilderBase().addInput("input", Integer.class).addAsyncOutput("a", Integer.class));
+		}
+
+		@Override
+		public void execute(final FlowContext context) {
+			final Integer input = (Integer) context.getAttribute("input");
+			context.putAttribute("a", input == 1 ? stuck : Futures.immediateFuture(input));
+		}
+	}
+
+	@Test
+	public void testReusableEvaluatorAfterTimeout() throws InterruptedException, ExecutionException {
+		final StuckOperation stuck = new StuckOperation();
+		final FlowSystem system = new FlowSystem(stuck, sum("b", 1, "a"));
+		final FlowEvaluator evaluator = FlowEvaluator.newEvaluator(system, EvaluationOptions.builder()
+				.setTimeout(100L, TimeUnit.MILLISECONDS)
+				.newEvaluationOptions());
+		final FlowContext first = system.newContext();
+		first.putAttribute("input", 1);
+		try {
+			evaluator.evaluate(first).get();
+			fail();
+		} catch (final ExecutionException e) {
+			assertTrue(e.getCause() instanceof EvaluationTimeoutException);
+		}
+
+		// The operation waiting on its output is detached without cancelling it
+		for (int i = 0; i < 100 && !evaluator.isIdle(); ++i) {
+			Thread.sleep(10L);
+		}
+		assertTrue(evaluator.isIdle());
+		assertFalse(stuck.stuck.isDone());
+
+		final FlowContext second = system.newContext();
+		second.putAttribute("input", 2);
+		evaluator.evaluate(second).get();
+		assertEquals(3, second.getAttribute("b"));
+
+		// A late output neither affects the finished evaluations nor fails the evaluator
+		stuck.stuck.set(5);
+		assertFalse(first.hasAttribute("b"));
+		assertTrue(evaluator.isIdle());
+	}
+
+	/** Copies its input to its output without allocating. */
+	private static class CopyOperation extends FlowOperation {
+		private final String input;
+		private final String output;
+
+		public CopyOperation(final String input, final String output) {
+			super(new BuilderBase().addInput(input, Object.class).addOutput(output, Object.class));
+			this.input = input;
+			this.output = output;
+		}
+
+		@Override
+		public void execute(final FlowContext context) {
+			context.putAttribute(output, context.getAttribute(input));
+		}
+	}
+
+	@Test
+	public void testReusableEvaluatorAllocation() throws InterruptedException, ExecutionException {
+		final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		// A chain of 50 operations, evaluated on this thread
+		final List<FlowOperation> operations = Lists.newArrayList();
+		for (int i = 0; i < 50; ++i) {
+			operations.add(new CopyOperation("v" + i, "v" + (i + 1)));
+		}
+		final FlowSystem system = new FlowSystem(operations);
+		final EvaluationOptions options = EvaluationOptions.builder().setExecutor(MoreExecutors.directExecutor()).newEvaluationOptions();
+		final FlowEvaluator evaluator = FlowEvaluator.newEvaluator(system, options);
+		final FlowContext context = system.newContext();
+		context.putAttribute("v0", "value");
+
+		final int evaluations = 10000;
+		for (int i = 0; i < evaluations; ++i) {
+			evaluator.evaluate(context).get();
+		}
+		final long threadId = Thread.currentThread().getId();
+		final long before = threads.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < evaluations; ++i) {
+			evaluator.evaluate(context).get();
+		}
+		final long bytesPerEvaluation = (threads.getThreadAllocatedBytes(threadId) - before) / evaluations;
+
+		// Only the evaluation's future & its listener, never per operation
+		assertEquals("value", context.getAttribute("v50"));
+		assertTrue("Allocated " + bytesPerEvaluation + " bytes per evaluation", bytesPerEvaluation < 128);
+	}
+}
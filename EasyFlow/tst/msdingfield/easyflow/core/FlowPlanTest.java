@@ -0,0 +1,63 @@
+package msdingfield.easyflow.core;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+public class FlowPlanTest {
+
+	private static FlowOperation op(final Map<String, Class<?>> inputs, final Map<String, Class<?>> outputs) {
+		return new FlowOperation(inputs, outputs) {
+			@Override
+			public void execute(final FlowContext context) {
+				/* empty */
+			}
+		};
+	}
+
+	final FlowOperation a = op(ImmutableMap.<String, Class<?>>of("input", Integer.class), ImmutableMap.<String, Class<?>>of("a", Integer.class));
+	final FlowOperation b1 = op(ImmutableMap.<String, Class<?>>of("a", Integer.class), ImmutableMap.<String, Class<?>>of("b.1", Integer.class));
+	final FlowOperation b2 = op(ImmutableMap.<String, Class<?>>of("a", Integer.class), ImmutableMap.<String, Class<?>>of("b.2", Integer.class));
+	final FlowOperation c = op(ImmutableMap.<String, Class<?>>of("b.1", Integer.class, "b.2", Integer.class), ImmutableMap.<String, Class<?>>of("c", Integer.class));
+
+	@Test
+	public void testDiamond() {
+		final FlowPlan plan = new FlowSystem(c, b2, b1, a).getPlan();
+		assertEquals(4, plan.size());
+
+		// Numbering is topological
+		for (int i = 0; i < plan.size(); ++i) {
+			for (int p = plan.getSuccessorStart(i); p < plan.getSuccessorEnd(i); ++p) {
+				assertTrue(i < plan.getSuccessor(p));
+			}
+		}
+
+		final int ia = plan.indexOf(a);
+		final int ic = plan.indexOf(c);
+		assertSame(a, plan.getOperation(ia));
+		assertEquals(0, plan.getPredecessorCount(ia));
+		assertEquals(2, plan.getSuccessorEnd(ia) - plan.getSuccessorStart(ia));
+		assertEquals(2, plan.getPredecessorCount(ic));
+		assertEquals(0, plan.getSuccessorEnd(ic) - plan.getSuccessorStart(ic));
+		assertEquals(-1, plan.indexOf(op(ImmutableMap.<String, Class<?>>of(), ImmutableMap.<String, Class<?>>of())));
+	}
+
+	@Test
+	public void testRanks() {
+		final FlowOperation d = op(ImmutableMap.<String, Class<?>>of("b.1", Integer.class), ImmutableMap.<String, Class<?>>of("d", Integer.class));
+		final FlowOperation e = op(ImmutableMap.<String, Class<?>>of("d", Integer.class), ImmutableMap.<String, Class<?>>of("e", Integer.class));
+		final FlowPlan plan = new FlowSystem(a, b1, b2, c, d, e).getPlan();
+
+		// a -> b.1 -> d -> e is the critical path
+		assertEquals(4, plan.getRank(plan.indexOf(a)));
+		assertEquals(3, plan.getRank(plan.indexOf(b1)));
+		assertEquals(2, plan.getRank(plan.indexOf(b2)));
+		assertEquals(1, plan.getRank(plan.indexOf(c)));
+		assertEquals(1, plan.getRank(plan.indexOf(e)));
+	}
+
+}
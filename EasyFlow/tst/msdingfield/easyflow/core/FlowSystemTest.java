@@ -3,22 +3,28 @@ package msdingfield.easyflow.core;
 import static org.junit.Assert.*;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
 import msdingfield.easyflow.core.FlowContext;
 import msdingfield.easyflow.core.FlowEvaluator;
 import msdingfield.easyflow.core.FlowOperation;
 import msdingfield.easyflow.core.FlowSystem;
+import msdingfield.easyflow.support.DuplicateOutputsFoundException;
+import msdingfield.easyflow.support.FlowCyclicDependencyException;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 
 public class FlowSystemTest {
@@ -70,6 +76,89 @@ public class FlowSystemTest {
 		assertFalse(context.hasAttribute("c"));
 	}
 	
+	@Test
+	public void testSubGraphIsCached() {
+		final FlowSystem original = new FlowSystem(a, b1, b2, c);
+		assertSame(original.getSystemForOutputs(Sets.newHashSet("b.1", "a")), original.getSystemForOutputs(Sets.newHashSet("a", "b.1")));
+	}
+	
+	@Test
+	public void testEvaluateOutputs() throws InterruptedException, ExecutionException {
+		final FlowSystem system = new FlowSystem(a, b1, b2, c);
+		for (int i = 0; i < 2; ++i) {
+			final FlowContext context = system.newContext();
+			context.putAttribute("input", (Integer)1);
+			
+			FlowEvaluator.evaluate(system, context, Sets.newHashSet("b.1")).get();
+			
+			assertEquals((Integer)3, context.getAttribute("a"));
+			assertEquals((Integer)7, context.getAttribute("b.1"));
+			assertFalse(context.hasAttribute("b.2"));
+			assertFalse(context.hasAttribute("c"));
+		}
+	}
+	
+	/** Copies its input to its output. */
+	private static FlowOperation link(final String input, final String output) {
+		return new FlowOperation(new FlowOperation.BuilderBase().addInput(input, Object.class).addOutput(output, Object.class)) {
+			@Override
+			public void execute(final FlowContext context) {
+				context.putAttribute(output, context.getAttribute(input));
+			}
+		};
+	}
+	
+	@Test(expected = FlowCyclicDependencyException.class)
+	public void testCycle() {
+		new FlowSystem(link("input", "x"), link("z", "y"), link("y", "z"), link("x", "w"));
+	}
+	
+	@Test(expected = DuplicateOutputsFoundException.class)
+	public void testSameOperationTwice() {
+		final FlowOperation op = link("input", "x");
+		new FlowSystem(op, link("x", "y"), op);
+	}
+	
+	@Test
+	public void testLongChainOnSmallStack() throws InterruptedException {
+		// Given last to first, so the sort can't just keep the order
+		final int size = 100000;
+		final List<FlowOperation> operations = Lists.newArrayListWithCapacity(size);
+		for (int i = size; i > 0; --i) {
+			operations.add(link("v" + (i - 1), "v" + i));
+		}
+		
+		// Building & evaluating must not recurse once per link
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final FlowContext[] context = new FlowContext[1];
+		final Thread thread = new Thread(null, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					final FlowSystem system = new FlowSystem(operations);
+					final FlowPlan plan = system.getPlan();
+					assertEquals(size, plan.size());
+					assertEquals(0, plan.indexOf(operations.get(size - 1)));
+					assertEquals(size, plan.getRank(0));
+					assertEquals(1, system.getDirectPredecessors(operations.get(0)).size());
+					
+					context[0] = system.newContext();
+					context[0].putAttribute("v0", "value");
+					FlowEvaluator.evaluate(system, context[0], EvaluationOptions.builder()
+							.setExecutor(MoreExecutors.directExecutor())
+							.setInlineSuccessors(true)
+							.newEvaluationOptions()).get();
+				} catch (final Throwable e) {
+					failure.set(e);
+				}
+			}
+		}, "small-stack", 256 * 1024);
+		thread.start();
+		thread.join();
+		assertNull(failure.get());
+		assertEquals("value", context[0].getAttribute("v" + size));
+	}
+	
 	@Test
 	public void testDiamondWithResume() throws InterruptedException, ExecutionException {
 		
@@ -0,0 +1,213 @@
+package msdingfield.easyflow.core;
+
+import static org.junit.Assert.*;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class ForEachOperationTest {
+
+	/** Multiplies "element" by "factor" after waiting 100ms without blocking a thread. */
+	private static class SlowMultiplyOperation extends FlowOperation {
+		public SlowMultiplyOperation() {
+			super(ImmutableMap.<String, Class<?>>of("element", Integer.class, "factor", Integer.class),
+					ImmutableMap.<String, Class<?>>of("product", Integer.class));
+		}
+
+		@Override
+		public void execute(final FlowContext context) {
+			@SuppressWarnings("unchecked")
+			final SettableFuture<Void> delay = (SettableFuture<Void>) context.getAttribute("delay");
+			if (delay == null) {
+				final SettableFuture<Void> future = SettableFuture.create();
+				context.putAttribute("delay", future);
+				FlowEvaluator.resumeOn(future, this);
+				new Thread() {
+					@Override
+					public void run() {
+						try { Thread.sleep(100L); } catch (InterruptedException e) {}
+						future.set(null);
+					}
+				}.start();
+				return;
+			}
+			context.putAttribute("product", (Integer) context.getAttribute("element") * (Integer) context.getAttribute("factor"));
+		}
+	}
+
+	/** Fails for element 3, otherwise copies "element" to "product". */
+	private static class FailingOperation extends FlowOperation {
+		public FailingOperation() {
+			super(ImmutableMap.<String, Class<?>>of("element", Integer.class),
+					ImmutableMap.<String, Class<?>>of("product", Integer.class));
+		}
+
+		@Override
+		public void execute(final FlowContext context) {
+			final Integer element = (Integer) context.getAttribute("element");
+			if (element == 3) {
+				throw new IllegalArgumentException("bad element");
+			}
+			context.putAttribute("product", element);
+		}
+	}
+
+	/** Waits 200ms then outputs "numbers". */
+	private static class SlowNumbersOperation extends FlowOperation {
+		public SlowNumbersOperation() {
+			super(ImmutableMap.<String, Class<?>>of(),
+					ImmutableMap.<String, Class<?>>of("numbers", Collection.class));
+		}
+
+		@Override
+		public void execute(final FlowContext context) {
+			try { Thread.sleep(200L); } catch (InterruptedException e) {}
+			context.putAttribute("numbers", Lists.newArrayList(1, 2));
+		}
+	}
+
+	/** Outputs the timeout a further nested evaluation would get as "product". */
+	private static class NestedTimeoutOperation extends FlowOperation {
+		public NestedTimeoutOperation() {
+			super(ImmutableMap.<String, Class<?>>of("element", Integer.class),
+					ImmutableMap.<String, Class<?>>of("product", Long.class));
+		}
+
+		@Override
+		public void execute(final FlowContext context) {
+			context.putAttribute("product", FlowEvaluator.nestedOptions().getTimeoutNanos());
+		}
+	}
+
+	private static FlowOperation multiplyEach() {
+		return ForEachOperation.builder(new FlowSystem(new SlowMultiplyOperation()))
+				.setElements("numbers", "element")
+				.setResults("products", "product")
+				.addSharedInput("factor", Integer.class)
+				.newForEachOperation();
+	}
+
+	@Test
+	public void testForEach() throws InterruptedException, ExecutionException {
+		final FlowSystem system = new FlowSystem(multiplyEach());
+		final FlowContext context = system.newContext();
+		final List<Integer> numbers = Lists.newArrayList();
+		for (int i = 0; i < 20; ++i) {
+			numbers.add(i);
+		}
+		context.putAttribute("numbers", numbers);
+		context.putAttribute("factor", 3);
+
+		final long start = System.nanoTime();
+		FlowEvaluator.evaluate(system, context).get();
+		final long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		final List<Object> expected = Lists.newArrayList();
+		for (final int i : numbers) {
+			expected.add(i * 3);
+		}
+		assertEquals(expected, context.getAttribute("products"));
+		// 20 elements of 100ms each overlap
+		assertTrue(String.format("%d", elapsedMs), elapsedMs < 1000L);
+	}
+
+	@Test
+	public void testSubEvaluationFailure() throws InterruptedException {
+		final FlowOperation forEach = ForEachOperation.builder(new FlowSystem(new FailingOperation()))
+				.setElements("numbers", "element")
+				.setResults("products", "product")
+				.newForEachOperation();
+		final FlowSystem system = new FlowSystem(forEach);
+		final FlowContext context = system.newContext();
+		context.putAttribute("numbers", Lists.newArrayList(1, 2, 3, 4));
+		try {
+			FlowEvaluator.evaluate(system, context).get();
+			fail("Expected the failed element to fail the evaluation.");
+		} catch (final ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+		assertNull(context.getAttribute("products"));
+	}
+
+	@Test
+	public void testSubEvaluationTimeoutIsRemainingTime() throws InterruptedException, ExecutionException {
+		final FlowOperation forEach = ForEachOperation.builder(new FlowSystem(new NestedTimeoutOperation()))
+				.setElements("numbers", "element")
+				.setResults("timeouts", "product")
+				.newForEachOperation();
+		final FlowSystem system = new FlowSystem(new SlowNumbersOperation(), forEach);
+		final FlowContext context = system.newContext();
+		final EvaluationOptions options = EvaluationOptions.builder()
+				.setTimeout(1000L, TimeUnit.MILLISECONDS)
+				.newEvaluationOptions();
+		FlowEvaluator.evaluate(system, context, options).get();
+
+		// 200ms of the second were used before the sub-evaluations started
+		@SuppressWarnings("unchecked")
+		final List<Long> timeouts = (List<Long>) context.getAttribute("timeouts");
+		assertEquals(2, timeouts.size());
+		for (final long timeout : timeouts) {
+			assertTrue(String.format("%d", timeout), timeout > 0L && timeout <= TimeUnit.MILLISECONDS.toNanos(800L));
+		}
+	}
+
+	@Test
+	public void testUnknownElementName() {
+		try {
+			ForEachOperation.builder(new FlowSystem(new FailingOperation()))
+					.setElements("numbers", "number")
+					.setResults("products", "product")
+					.newForEachOperation();
+			fail("Expected an element name the sub-system doesn't consume to be rejected.");
+		} catch (final IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("number"));
+		}
+	}
+
+	@Test
+	public void testUnknownResultName() {
+		try {
+			ForEachOperation.builder(new FlowSystem(new FailingOperation()))
+					.setElements("numbers", "element")
+					.setResults("products", "element")
+					.newForEachOperation();
+			fail("Expected a result name the sub-system doesn't produce to be rejected.");
+		} catch (final IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("element"));
+		}
+	}
+
+	@Test
+	public void testNullCollection() throws InterruptedException {
+		final FlowSystem system = new FlowSystem(multiplyEach());
+		final FlowContext context = system.newContext();
+		context.putAttribute("factor", 3);
+		try {
+			FlowEvaluator.evaluate(system, context).get();
+			fail("Expected a missing collection to fail the evaluation.");
+		} catch (final ExecutionException e) {
+			assertTrue(e.getCause() instanceof NullPointerException);
+			assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("numbers"));
+		}
+	}
+
+	@Test
+	public void testEmptyCollection() throws InterruptedException, ExecutionException {
+		final FlowSystem system = new FlowSystem(multiplyEach());
+		final FlowContext context = system.newContext();
+		context.putAttribute("numbers", Sets.newHashSet());
+		context.putAttribute("factor", 3);
+		FlowEvaluator.evaluate(system, context).get();
+		assertEquals(Collections.emptyList(), context.getAttribute("products"));
+	}
+}
@@ -0,0 +1,115 @@
+package msdingfield.easyflow.core;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import msdingfield.easyflow.support.EvaluationTimeoutException;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class HedgingPolicyTest {
+
+	/** Outputs "input" through a future.  Only the first few attempts complete by themselves. */
+	private static class LookupOperation extends FlowOperation {
+		private final int fastAttempts;
+		private final List<SettableFuture<Integer>> slowAttempts = Lists.newCopyOnWriteArrayList();
+		private int attempts = 0;
+
+		public LookupOperation(final HedgingPolicy policy, final int fastAttempts) {
+			super(new BuilderBase().addInput("input", Integer.class).addAsyncOutput("output", Integer.class).setHedgingPolicy(policy));
+			this.fastAttempts = fastAttempts;
+		}
+
+		@Override
+		public synchronized void execute(final FlowContext context) {
+			final Integer input = (Integer) context.getAttribute("input");
+			final ListenableFuture<Integer> output;
+			if (attempts++ < fastAttempts) {
+				output = Futures.immediateFuture(input);
+			} else {
+				final SettableFuture<Integer> slow = SettableFuture.create();
+				slowAttempts.add(slow);
+				output = slow;
+			}
+			context.putAttribute("output", output);
+		}
+	}
+
+	private static Object evaluate(final FlowSystem system, final int input, final EvaluationOptions options) throws InterruptedException, ExecutionException {
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", input);
+		FlowEvaluator.evaluate(system, context, options).get();
+		return context.getAttribute("output");
+	}
+
+	@Test
+	public void testSlowAttemptIsHedged() throws InterruptedException, ExecutionException {
+		final HedgingPolicy policy = HedgingPolicy.builder()
+				.setMinSamples(5)
+				.setMinDelay(10L, TimeUnit.MILLISECONDS)
+				.setMaxExtraLoad(0.5)
+				.newHedgingPolicy();
+		final LookupOperation operation = new LookupOperation(policy, 5);
+		final FlowSystem system = new FlowSystem(operation);
+		for (int i = 0; i < 5; ++i) {
+			assertEquals(i, evaluate(system, i, EvaluationOptions.DEFAULT));
+		}
+		assertEquals(0, policy.getHedgeCount());
+
+		// The first attempt never completes, the hedge completes the output
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 7);
+		final FlowEvaluation evaluation = FlowEvaluator.start(system, context);
+		while (operation.slowAttempts.size() < 2) {
+			Thread.sleep(5L);
+		}
+		operation.slowAttempts.get(1).set(7);
+		evaluation.getResult().get();
+
+		assertEquals(7, context.getAttribute("output"));
+		assertEquals(1, policy.getHedgeCount());
+		assertEquals(6, policy.getAttemptCount());
+		assertTrue(operation.slowAttempts.get(0).isCancelled());
+	}
+
+	@Test
+	public void testBudgetLimitsHedges() throws InterruptedException, ExecutionException {
+		final HedgingPolicy policy = HedgingPolicy.builder()
+				.setMinSamples(5)
+				.setMinDelay(10L, TimeUnit.MILLISECONDS)
+				.setMaxExtraLoad(0.0)
+				.newHedgingPolicy();
+		final LookupOperation operation = new LookupOperation(policy, 5);
+		final FlowSystem system = new FlowSystem(operation);
+		for (int i = 0; i < 5; ++i) {
+			evaluate(system, i, EvaluationOptions.DEFAULT);
+		}
+
+		try {
+			evaluate(system, 7, EvaluationOptions.builder().setTimeout(100L, TimeUnit.MILLISECONDS).newEvaluationOptions());
+			fail();
+		} catch (final ExecutionException e) {
+			assertTrue(e.getCause() instanceof EvaluationTimeoutException);
+		}
+		assertEquals(0, policy.getHedgeCount());
+		assertEquals(1, operation.slowAttempts.size());
+	}
+
+	@Test
+	public void testNoHedgeWithoutSamples() {
+		final HedgingPolicy policy = HedgingPolicy.builder().setMinSamples(2).newHedgingPolicy();
+		assertEquals(-1L, policy.getDelayNanos());
+		policy.recordLatency(100L);
+		assertEquals(-1L, policy.getDelayNanos());
+		policy.recordLatency(100L);
+		assertTrue(policy.getDelayNanos() >= 100L);
+	}
+}
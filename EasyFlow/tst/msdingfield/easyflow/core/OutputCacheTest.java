@@ -0,0 +1,212 @@
+package msdingfield.easyflow.core;
+
+import static org.junit.Assert.*;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+public class OutputCacheTest {
+
+	/** Doubles "input" into "output", or outputs a shared future, counting executions. */
+	private static class CountingOperation extends FlowOperation {
+		private final AtomicInteger executions = new AtomicInteger();
+		private final SettableFuture<Integer> future;
+
+		public CountingOperation(final OutputCache cache, final SettableFuture<Integer> future) {
+			super(future == null
+					? new BuilderBase().addInput("input", Integer.class).addOutput("output", Integer.class).setCache(cache)
+					: new BuilderBase().addInput("input", Integer.class).addAsyncOutput("output", Integer.class).setCache(cache));
+			this.future = future;
+		}
+
+		@Override
+		public void execute(final FlowContext context) {
+			executions.incrementAndGet();
+			context.putAttribute("output", future == null ? (Object) ((Integer) context.getAttribute("input") * 2) : future);
+		}
+	}
+
+	/** Executor which counts the operations passed to it. */
+	private static class CountingExecutor implements Executor {
+		private final AtomicInteger executed = new AtomicInteger();
+
+		@Override
+		public void execute(final Runnable command) {
+			executed.incrementAndGet();
+			FlowExecutors.defaultExecutor().execute(command);
+		}
+	}
+
+	/** Executor which queues operations until the test runs them. */
+	private static class QueueingExecutor implements Executor {
+		private final Queue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>();
+
+		@Override
+		public void execute(final Runnable command) {
+			queue.add(command);
+		}
+
+		/** Run queued operations, and those they queue, on this thread.
+		 *
+		 * @return The number of operations run.
+		 */
+		public int runAll() {
+			int count = 0;
+			for (Runnable command = queue.poll(); command != null; command = queue.poll()) {
+				command.run();
+				++count;
+			}
+			return count;
+		}
+	}
+
+	private static FlowContext evaluate(final FlowSystem system, final int input, final Executor executor) throws InterruptedException, ExecutionException {
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", input);
+		FlowEvaluator.evaluate(system, context, executor).get();
+		return context;
+	}
+
+	/** Wait for an evaluation running in the background to fill or empty the cache. */
+	private static void awaitSize(final OutputCache cache, final long size) throws InterruptedException {
+		for (int i = 0; i < 100 && cache.size() != size; ++i) {
+			Thread.sleep(10L);
+		}
+		assertEquals(size, cache.size());
+	}
+
+	@Test
+	public void testHitSkipsExecutor() throws InterruptedException, ExecutionException {
+		final OutputCache cache = OutputCache.builder().setMaximumSize(10).newOutputCache();
+		final CountingOperation operation = new CountingOperation(cache, null);
+		final FlowSystem system = new FlowSystem(operation);
+		final CountingExecutor executor = new CountingExecutor();
+
+		assertEquals(6, evaluate(system, 3, executor).getAttribute("output"));
+		assertEquals(1, executor.executed.get());
+		assertEquals(6, evaluate(system, 3, executor).getAttribute("output"));
+		assertEquals(10, evaluate(system, 5, executor).getAttribute("output"));
+
+		assertEquals(2, operation.executions.get());
+		assertEquals(2, executor.executed.get());
+		assertEquals(1, cache.getStats().hitCount());
+		assertEquals(2, cache.getStats().missCount());
+	}
+
+	/** Copies one attribute to another, emptying a cache first once armed. */
+	private static class CopyOperation extends FlowOperation {
+		private final String input;
+		private final String output;
+		private final OutputCache evict;
+		private volatile boolean armed = false;
+
+		public CopyOperation(final BuilderBase builder, final String input, final String output, final OutputCache evict) {
+			super(builder.addInput(input, Integer.class).addOutput(output, Integer.class));
+			this.input = input;
+			this.output = output;
+			this.evict = evict;
+		}
+
+		@Override
+		public void execute(final FlowContext context) {
+			if (armed) {
+				evict.invalidateAll();
+			}
+			context.putAttribute(output, context.getAttribute(input));
+		}
+	}
+
+	@Test
+	public void testEvictedAfterReadyUsesExecutor() throws InterruptedException, ExecutionException {
+		final OutputCache cache = OutputCache.builder().setMaximumSize(10).newOutputCache();
+		final CountingOperation cached = new CountingOperation(cache, null);
+		final CopyOperation evicting = new CopyOperation(new FlowOperation.BuilderBase().setInline(true), "input", "copy", cache);
+		final FlowSystem system = new FlowSystem(
+				new CopyOperation(new FlowOperation.BuilderBase(), "seed", "input", null),
+				cached,
+				evicting);
+		final QueueingExecutor executor = new QueueingExecutor();
+		final FlowContext first = system.newContext();
+		first.putAttribute("seed", 3);
+		final Future<Void> firstResult = FlowEvaluator.evaluate(system, first, executor);
+		assertEquals(2, executor.runAll());
+		firstResult.get();
+		assertEquals(1, cache.size());
+
+		// The inline operation runs after the cached one was found ready & 
+		// before it runs, so the cached one must be passed to the executor
+		evicting.armed = true;
+		final FlowContext second = system.newContext();
+		second.putAttribute("seed", 3);
+		final Future<Void> secondResult = FlowEvaluator.evaluate(system, second, executor);
+		assertEquals(2, executor.runAll());
+		secondResult.get();
+		assertEquals(6, second.getAttribute("output"));
+		assertEquals(2, cached.executions.get());
+	}
+
+	@Test
+	public void testSizeEviction() throws InterruptedException, ExecutionException {
+		final OutputCache cache = OutputCache.builder().setMaximumSize(2).newOutputCache();
+		final CountingOperation operation = new CountingOperation(cache, null);
+		final FlowSystem system = new FlowSystem(operation);
+		for (int i = 0; i < 10; ++i) {
+			evaluate(system, i, FlowExecutors.defaultExecutor());
+		}
+		assertTrue(cache.size() <= 2);
+		assertTrue(cache.getStats().evictionCount() >= 8);
+	}
+
+	@Test
+	public void testInFlightFutureIsShared() throws InterruptedException, ExecutionException {
+		final SettableFuture<Integer> quote = SettableFuture.create();
+		final OutputCache cache = OutputCache.builder().newOutputCache();
+		final CountingOperation operation = new CountingOperation(cache, quote);
+		final FlowSystem system = new FlowSystem(operation);
+
+		final FlowContext first = system.newContext();
+		first.putAttribute("input", 1);
+		final Future<Void> firstDone = FlowEvaluator.evaluate(system, first);
+		awaitSize(cache, 1);
+		final FlowContext second = system.newContext();
+		second.putAttribute("input", 1);
+		final Future<Void> secondDone = FlowEvaluator.evaluate(system, second);
+
+		quote.set(42);
+		firstDone.get();
+		secondDone.get();
+		assertEquals(1, operation.executions.get());
+		assertEquals(1, cache.getStats().hitCount());
+		assertEquals(42, first.getAttribute("output"));
+		assertEquals(42, second.getAttribute("output"));
+	}
+
+	@Test
+	public void testFailedFutureIsDiscarded() throws InterruptedException, ExecutionException {
+		final SettableFuture<Integer> quote = SettableFuture.create();
+		final OutputCache cache = OutputCache.builder().newOutputCache();
+		final FlowSystem system = new FlowSystem(new CountingOperation(cache, quote));
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+		final Future<Void> done = FlowEvaluator.evaluate(system, context);
+		awaitSize(cache, 1);
+
+		final IllegalStateException failure = new IllegalStateException();
+		quote.setException(failure);
+		try {
+			done.get();
+			fail();
+		} catch (final ExecutionException e) {
+			assertSame(failure, e.getCause());
+		}
+		awaitSize(cache, 0);
+	}
+}
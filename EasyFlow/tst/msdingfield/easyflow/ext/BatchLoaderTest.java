@@ -0,0 +1,126 @@
+package msdingfield.easyflow.ext;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import msdingfield.easyflow.core.FlowContext;
+import msdingfield.easyflow.core.FlowEvaluator;
+import msdingfield.easyflow.core.FlowOperation;
+import msdingfield.easyflow.core.FlowSystem;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class BatchLoaderTest {
+
+	/** Bulk loader returning the length of each key and counting calls. */
+	private static class LengthLoader implements BatchLoader.BulkLoader<String, Integer> {
+		private final AtomicInteger calls = new AtomicInteger();
+		private final AtomicInteger keys = new AtomicInteger();
+
+		@Override
+		public ListenableFuture<Map<String, Integer>> loadAll(final Set<String> batch) {
+			calls.incrementAndGet();
+			keys.addAndGet(batch.size());
+			final Map<String, Integer> result = Maps.newHashMap();
+			for (final String key : batch) {
+				result.put(key, key.length());
+			}
+			return Futures.immediateFuture(result);
+		}
+	}
+
+	@Test
+	public void testCoalescesAcrossEvaluations() throws InterruptedException, ExecutionException {
+		final LengthLoader bulk = new LengthLoader();
+		final BatchLoader<String, Integer> loader = BatchLoader.builder(bulk)
+				.setMaxBatchSize(1000).setDelay(20L, TimeUnit.MILLISECONDS).newBatchLoader();
+		final FlowOperation lookup = new FlowOperation(
+				ImmutableMap.<String, Class<?>>of("key", String.class), ImmutableMap.<String, Class<?>>of("length", Integer.class)) {
+			@Override
+			public void execute(final FlowContext context) {
+				if (!context.hasAttribute("pending")) {
+					final ListenableFuture<Integer> length = loader.load((String) context.getAttribute("key"));
+					context.putAttribute("pending", length);
+					FlowEvaluator.resumeOn(length, this);
+					return;
+				}
+				context.putAttribute("length", Futures.getUnchecked((ListenableFuture<?>) context.getAttribute("pending")));
+			}
+		};
+		final FlowSystem system = new FlowSystem(lookup);
+
+		final List<FlowContext> contexts = Lists.newArrayList();
+		final List<Future<Void>> evaluations = Lists.newArrayList();
+		for (int i = 0; i < 200; ++i) {
+			final FlowContext context = system.newContext();
+			context.putAttribute("key", "k" + (i % 50));
+			contexts.add(context);
+			evaluations.add(FlowEvaluator.evaluate(system, context));
+		}
+		for (final Future<Void> evaluation : evaluations) {
+			evaluation.get();
+		}
+
+		for (int i = 0; i < 200; ++i) {
+			assertEquals(("k" + (i % 50)).length(), contexts.get(i).getAttribute("length"));
+		}
+		// Duplicate keys are looked up once per batch
+		assertTrue(bulk.calls.get() < 10);
+		assertTrue(bulk.keys.get() < 200);
+	}
+
+	@Test
+	public void testFullBatchDispatchesImmediately() throws InterruptedException, ExecutionException {
+		final LengthLoader bulk = new LengthLoader();
+		final BatchLoader<String, Integer> loader = BatchLoader.builder(bulk)
+				.setMaxBatchSize(3).setDelay(1L, TimeUnit.HOURS).newBatchLoader();
+		final ListenableFuture<Integer> a = loader.load("a");
+		final ListenableFuture<Integer> bb = loader.load("bb");
+		assertSame(a, loader.load("a"));
+		assertFalse(a.isDone());
+		final ListenableFuture<Integer> ccc = loader.load("ccc");
+
+		assertEquals(1, bulk.calls.get());
+		assertEquals(Integer.valueOf(1), a.get());
+		assertEquals(Integer.valueOf(2), bb.get());
+		assertEquals(Integer.valueOf(3), ccc.get());
+
+		final ListenableFuture<Integer> dddd = loader.load("dddd");
+		loader.flush();
+		assertEquals(Integer.valueOf(4), dddd.get());
+		assertEquals(2, bulk.calls.get());
+	}
+
+	@Test
+	public void testFailurePropagatesToBatch() throws InterruptedException {
+		final BatchLoader<String, Integer> loader = BatchLoader.builder(new BatchLoader.BulkLoader<String, Integer>() {
+			@Override
+			public ListenableFuture<Map<String, Integer>> loadAll(final Set<String> keys) {
+				return Futures.immediateFailedFuture(new IllegalStateException("backend down"));
+			}
+		}).setMaxBatchSize(2).newBatchLoader();
+		final ListenableFuture<Integer> a = loader.load("a");
+		final ListenableFuture<Integer> b = loader.load("b");
+		for (final ListenableFuture<Integer> future : Lists.newArrayList(a, b)) {
+			try {
+				future.get();
+				fail();
+			} catch (final ExecutionException e) {
+				assertTrue(e.getCause() instanceof IllegalStateException);
+			}
+		}
+	}
+}
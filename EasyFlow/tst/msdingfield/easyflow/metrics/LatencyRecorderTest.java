@@ -0,0 +1,131 @@
+package msdingfield.easyflow.metrics;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ExecutionException;
+
+import msdingfield.easyflow.core.EvaluationOptions;
+import msdingfield.easyflow.core.FlowContext;
+import msdingfield.easyflow.core.FlowEvaluator;
+import msdingfield.easyflow.core.FlowOperation;
+import msdingfield.easyflow.core.FlowSystem;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class LatencyRecorderTest {
+
+	/** Suspends once on a future completed 20ms later, then copies its input. */
+	private static class PausingOperation extends FlowOperation {
+		private final SettableFuture<Void> pause = SettableFuture.create();
+
+		public PausingOperation() {
+			super(ImmutableMap.<String, Class<?>>of("input", Integer.class), ImmutableMap.<String, Class<?>>of("a", Integer.class));
+		}
+
+		@Override
+		public void execute(final FlowContext context) {
+			if (!pause.isDone()) {
+				FlowEvaluator.resumeOn(pause, this);
+				new Thread() {
+					@Override
+					public void run() {
+						try { Thread.sleep(20L); } catch (InterruptedException e) {}
+						pause.set(null);
+					}
+				}.start();
+				return;
+			}
+			context.putAttribute("a", context.getAttribute("input"));
+		}
+	}
+
+	/** Sets "b" to a future of "input" which completes 20ms later. */
+	private static class AsyncCopyOperation extends FlowOperation {
+		public AsyncCopyOperation() {
+			super(new BuilderBase() {}.addInput("input", Integer.class).addAsyncOutput("b", Integer.class));
+		}
+
+		@Override
+		public void execute(final FlowContext context) {
+			final Object value = context.getAttribute("input");
+			final SettableFuture<Object> future = SettableFuture.create();
+			context.putAttribute("b", future);
+			new Thread() {
+				@Override
+				public void run() {
+					try { Thread.sleep(20L); } catch (InterruptedException e) {}
+					future.set(value);
+				}
+			}.start();
+		}
+	}
+
+	@Test
+	public void testRecordsAsyncOutputWait() throws InterruptedException, ExecutionException {
+		final FlowOperation async = new AsyncCopyOperation();
+		final FlowSystem system = new FlowSystem(async);
+		final LatencyRecorder recorder = new LatencyRecorder();
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+		FlowEvaluator.evaluate(system, context, EvaluationOptions.builder().setListener(recorder).newEvaluationOptions()).get();
+
+		assertEquals(1, context.getAttribute("b"));
+		final LatencyRecorder.OperationStats stats = recorder.getStats(async);
+		assertEquals(1, stats.getRunTime().getCount());
+		assertEquals(1, stats.getAsyncWait().getCount());
+		assertTrue(stats.getAsyncWait().getMax() >= 15000000L);
+	}
+
+	@Test
+	public void testRecordsPhases() throws InterruptedException, ExecutionException {
+		final FlowOperation pausing = new PausingOperation();
+		final FlowOperation copy = new FlowOperation(
+				ImmutableMap.<String, Class<?>>of("a", Integer.class), ImmutableMap.<String, Class<?>>of("b", Integer.class)) {
+			@Override
+			public void execute(final FlowContext context) {
+				context.putAttribute("b", context.getAttribute("a"));
+			}
+		};
+		final FlowSystem system = new FlowSystem(pausing, copy);
+		final LatencyRecorder recorder = new LatencyRecorder();
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+		FlowEvaluator.evaluate(system, context, EvaluationOptions.builder().setListener(recorder).newEvaluationOptions()).get();
+
+		assertEquals(1, context.getAttribute("b"));
+		assertEquals(1, recorder.getEvaluations().getCount());
+
+		final LatencyRecorder.OperationStats pausingStats = recorder.getStats(pausing);
+		assertEquals(2, pausingStats.getQueueWait().getCount());
+		assertEquals(2, pausingStats.getRunTime().getCount());
+		assertEquals(1, pausingStats.getAsyncWait().getCount());
+		assertTrue(pausingStats.getAsyncWait().getMax() >= 15000000L);
+
+		final LatencyRecorder.OperationStats copyStats = recorder.getStats(copy);
+		assertEquals(1, copyStats.getRunTime().getCount());
+		assertEquals(0, copyStats.getAsyncWait().getCount());
+	}
+
+	@Test
+	public void testHistogramBuckets() {
+		for (long v = 0; v < 100000; v += 7) {
+			final int bucket = Histogram.bucketOf(v);
+			assertTrue(Histogram.lowerBoundOf(bucket) <= v);
+			assertTrue(v <= Histogram.upperBoundOf(bucket));
+		}
+		assertTrue(Histogram.upperBoundOf(Histogram.bucketOf(Long.MAX_VALUE)) == Long.MAX_VALUE);
+
+		final Histogram histogram = new Histogram();
+		for (int i = 1; i <= 100; ++i) {
+			histogram.record(i * 1000L);
+		}
+		assertEquals(100, histogram.getCount());
+		assertEquals(50500.0, histogram.getMean(), 0.001);
+		final long p50 = histogram.getPercentile(50);
+		assertTrue(p50 >= 50000L && p50 < 50000L * 9 / 8);
+		assertEquals(100000L, histogram.getPercentile(100));
+	}
+}
@@ -0,0 +1,98 @@
+package msdingfield.easyflowbenchmark;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import msdingfield.easyflow.annotations.SystemBuilder;
+import msdingfield.easyflow.core.FlowContext;
+import msdingfield.easyflow.core.FlowEvaluator;
+import msdingfield.easyflow.core.FlowOperation;
+import msdingfield.easyflow.core.FlowSystem;
+import msdingfield.easyflowbenchmark.tasks.JoinTask;
+import msdingfield.easyflowbenchmark.tasks.LeftTask;
+import msdingfield.easyflowbenchmark.tasks.RightTask;
+import msdingfield.easyflowbenchmark.tasks.SourceTask;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Evaluation of a diamond of @Task classes, through generated adapters or
+ * the MethodHandle based AnnotatedOperationWrapper.
+ *
+ * executeOperation measures a single task invocation against a fresh
+ * context without the evaluator.  executeReflectively is the baseline for
+ * it: the Constructor.newInstance, Field.set & Method.invoke path the
+ * wrapper used before it cached MethodHandles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnnotatedBenchmark {
+
+	@Param({"true", "false"})
+	public boolean useGeneratedAdapters;
+
+	private FlowSystem system;
+	private FlowOperation source;
+	private Constructor<?> sourceConstructor;
+	private Method sourceMethod;
+
+	@Setup
+	public void setUp() {
+		SystemBuilder.setUseGeneratedAdapters(useGeneratedAdapters);
+		system = SystemBuilder.from(SourceTask.class, LeftTask.class, RightTask.class, JoinTask.class);
+		for (final FlowOperation operation : system.getAllOperations()) {
+			if (operation.getOutputs().containsKey("source")) {
+				source = operation;
+			}
+		}
+		try {
+			sourceConstructor = SourceTask.class.getConstructor();
+			sourceMethod = SourceTask.class.getMethod("execute");
+		} catch (final NoSuchMethodException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Benchmark
+	public Object evaluate() throws InterruptedException, ExecutionException {
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+		FlowEvaluator.evaluate(system, context).get();
+		return context.getAttribute("joined");
+	}
+
+	@Benchmark
+	public Object executeOperation() {
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+		source.execute(context);
+		return context.getAttribute("source");
+	}
+
+	@Benchmark
+	public Object executeReflectively() throws Exception {
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+		final Object task = sourceConstructor.newInstance();
+		context.putAttribute(SourceTask.class, task);
+		SourceTask.class.getField("input").set(task, context.getAttribute("input"));
+		sourceMethod.invoke(task);
+		context.putAttribute("source", SourceTask.class.getField("source").get(task));
+		return context.getAttribute("source");
+	}
+}
@@ -0,0 +1,27 @@
+package msdingfield.easyflowbenchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** Runs the benchmarks with the GC profiler so allocation rates are reported.
+ *
+ * Arguments are regular expressions selecting benchmarks, all benchmarks run
+ * when none are given.  For example "EvaluatorBenchmark.evaluate".  Results
+ * are printed in JMH's usual format so runs can be compared to a baseline.
+ */
+public class BenchmarkMain {
+
+	public static void main(final String[] args) throws RunnerException {
+		final ChainedOptionsBuilder options = new OptionsBuilder().addProfiler(GCProfiler.class);
+		if (args.length == 0) {
+			options.include("msdingfield.easyflowbenchmark.");
+		}
+		for (final String pattern : args) {
+			options.include(pattern);
+		}
+		new Runner(options.build()).run();
+	}
+}
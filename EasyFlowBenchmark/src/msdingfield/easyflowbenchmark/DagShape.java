@@ -0,0 +1,139 @@
+package msdingfield.easyflowbenchmark;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import msdingfield.easyflow.core.FlowOperation;
+import msdingfield.easyflow.core.FlowSystem;
+
+import com.google.common.collect.Lists;
+
+/** Shapes of synthetic DAGs built from SumOperations.
+ *
+ * Node i outputs "n<i>".  Nodes without predecessors read "input" and the
+ * last node is always the single sink of the graph.
+ */
+public enum DagShape {
+
+	/** One source, size - 2 parallel nodes and a sink joining them all. */
+	WIDE {
+		@Override
+		List<List<Integer>> predecessors(final int size, final Random random) {
+			final List<List<Integer>> result = Lists.newArrayList();
+			result.add(Collections.<Integer>emptyList());
+			final List<Integer> middle = Lists.newArrayList();
+			for (int i = 1; i < size - 1; ++i) {
+				result.add(Collections.singletonList(0));
+				middle.add(i);
+			}
+			result.add(middle);
+			return result;
+		}
+	},
+
+	/** A single chain of size nodes. */
+	DEEP {
+		@Override
+		List<List<Integer>> predecessors(final int size, final Random random) {
+			final List<List<Integer>> result = Lists.newArrayList();
+			result.add(Collections.<Integer>emptyList());
+			for (int i = 1; i < size; ++i) {
+				result.add(Collections.singletonList(i - 1));
+			}
+			return result;
+		}
+	},
+
+	/** A chain of diamonds: each join splits into two nodes which join again. */
+	DIAMOND {
+		@Override
+		List<List<Integer>> predecessors(final int size, final Random random) {
+			final List<List<Integer>> result = Lists.newArrayList();
+			result.add(Collections.<Integer>emptyList());
+			int join = 0;
+			while (result.size() + 3 <= size) {
+				result.add(Collections.singletonList(join));
+				result.add(Collections.singletonList(join));
+				join = result.size();
+				result.add(Lists.newArrayList(join - 2, join - 1));
+			}
+			while (result.size() < size) {
+				result.add(Collections.singletonList(result.size() - 1));
+			}
+			return result;
+		}
+	},
+
+	/** Layers about sqrt(size) wide, each node reading 1 to 3 random nodes of
+	 * the previous layer.
+	 */
+	LAYERED {
+		@Override
+		List<List<Integer>> predecessors(final int size, final Random random) {
+			final int width = Math.max(1, (int) Math.sqrt(size));
+			final List<List<Integer>> result = Lists.newArrayList();
+			int previousStart = 0;
+			int previousEnd = 0;
+			while (result.size() < size - 1) {
+				final int start = result.size();
+				final int end = Math.min(size - 1, start + width);
+				for (int i = start; i < end; ++i) {
+					final List<Integer> inputs = Lists.newArrayList();
+					if (previousEnd > previousStart) {
+						final int fanIn = 1 + random.nextInt(Math.min(3, previousEnd - previousStart));
+						while (inputs.size() < fanIn) {
+							final int candidate = previousStart + random.nextInt(previousEnd - previousStart);
+							if (!inputs.contains(candidate)) {
+								inputs.add(candidate);
+							}
+						}
+					}
+					result.add(inputs);
+				}
+				previousStart = start;
+				previousEnd = end;
+			}
+			final List<Integer> sink = Lists.newArrayList();
+			for (int i = previousStart; i < previousEnd; ++i) {
+				sink.add(i);
+			}
+			result.add(sink);
+			return result;
+		}
+	};
+
+	/** Get the predecessor numbers of every node. */
+	abstract List<List<Integer>> predecessors(int size, Random random);
+
+	/** Build the operations of a DAG of this shape.
+	 *
+	 * @param size Number of operations, at least 3.
+	 * @param seed Seed for randomized shapes.
+	 */
+	public List<FlowOperation> operations(final int size, final long seed) {
+		final List<List<Integer>> predecessors = predecessors(size, new Random(seed));
+		final List<FlowOperation> result = Lists.newArrayListWithCapacity(size);
+		for (int i = 0; i < predecessors.size(); ++i) {
+			final List<String> inputs = Lists.newArrayList();
+			for (final int predecessor : predecessors.get(i)) {
+				inputs.add(outputOf(predecessor));
+			}
+			if (inputs.isEmpty()) {
+				inputs.add("input");
+			}
+			result.add(new SumOperation(inputs, outputOf(i)));
+		}
+		return result;
+	}
+
+	/** Build a system of this shape. */
+	public FlowSystem system(final int size, final long seed) {
+		return new FlowSystem(operations(size, seed));
+	}
+
+	/** Get the output name of node i. */
+	public static String outputOf(final int i) {
+		return "n" + i;
+	}
+}
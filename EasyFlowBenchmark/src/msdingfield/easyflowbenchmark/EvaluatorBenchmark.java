@@ -0,0 +1,100 @@
+package msdingfield.easyflowbenchmark;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import msdingfield.easyflow.core.EvaluationOptions;
+import msdingfield.easyflow.core.FlowContext;
+import msdingfield.easyflow.core.FlowEvaluator;
+import msdingfield.easyflow.core.FlowExecutors;
+import msdingfield.easyflow.core.FlowOperation;
+import msdingfield.easyflow.core.FlowSystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Evaluation, system construction and sub-system extraction over synthetic
+ * DAGs built from raw FlowOperations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluatorBenchmark {
+
+	@Param({"WIDE", "DEEP", "DIAMOND", "LAYERED"})
+	public DagShape shape;
+
+	@Param({"10", "1000", "100000"})
+	public int size;
+
+	@Param({"false", "true"})
+	public boolean inlineSuccessors;
+
+	@Param({"false", "true"})
+	public boolean workStealing;
+
+	private List<FlowOperation> operations;
+	private FlowSystem system;
+	private EvaluationOptions options;
+	private FlowEvaluator evaluator;
+
+	@Setup
+	public void setUp() {
+		operations = shape.operations(size, 42L);
+		system = new FlowSystem(operations);
+		options = EvaluationOptions.builder()
+				.setExecutor(workStealing ? FlowExecutors.workStealingPool() : FlowExecutors.defaultExecutor())
+				.setInlineSuccessors(inlineSuccessors)
+				.newEvaluationOptions();
+		evaluator = FlowEvaluator.newEvaluator(system, options);
+	}
+
+	@Benchmark
+	public Object evaluate() throws InterruptedException, ExecutionException {
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+		FlowEvaluator.evaluate(system, context, options).get();
+		return context.getAttribute(DagShape.outputOf(size - 1));
+	}
+
+	@Benchmark
+	public Object evaluateReused() throws InterruptedException, ExecutionException {
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+		evaluator.evaluate(context).get();
+		return context.getAttribute(DagShape.outputOf(size - 1));
+	}
+
+	@Benchmark
+	public Object evaluateOutputs() throws InterruptedException, ExecutionException {
+		final String output = DagShape.outputOf(size / 2);
+		final FlowContext context = system.newContext();
+		context.putAttribute("input", 1);
+		FlowEvaluator.evaluate(system, context, Collections.singleton(output), options).get();
+		return context.getAttribute(output);
+	}
+
+	@Benchmark
+	public FlowSystem buildSystem() {
+		return new FlowSystem(operations);
+	}
+
+	@Benchmark
+	public FlowSystem systemForOutputs() {
+		return system.getSystemForOutputs(Collections.singleton(DagShape.outputOf(size / 2)));
+	}
+}
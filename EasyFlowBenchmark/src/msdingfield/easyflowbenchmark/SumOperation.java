@@ -0,0 +1,40 @@
+package msdingfield.easyflowbenchmark;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import msdingfield.easyflow.core.FlowContext;
+import msdingfield.easyflow.core.FlowOperation;
+
+import com.google.common.collect.Maps;
+
+/** Synthetic operation which outputs the sum of its integer inputs. */
+public class SumOperation extends FlowOperation {
+
+	private final String[] inputs;
+	private final String output;
+
+	public SumOperation(final List<String> inputs, final String output) {
+		super(types(inputs), types(Collections.singletonList(output)));
+		this.inputs = inputs.toArray(new String[inputs.size()]);
+		this.output = output;
+	}
+
+	@Override
+	public void execute(final FlowContext context) {
+		int sum = 0;
+		for (final String input : inputs) {
+			sum += (Integer) context.getAttribute(input);
+		}
+		context.putAttribute(output, sum);
+	}
+
+	private static Map<String, Class<?>> types(final List<String> names) {
+		final Map<String, Class<?>> result = Maps.newHashMap();
+		for (final String name : names) {
+			result.put(name, Integer.class);
+		}
+		return result;
+	}
+}
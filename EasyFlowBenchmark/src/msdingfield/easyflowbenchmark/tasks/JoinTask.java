@@ -0,0 +1,24 @@
+package msdingfield.easyflowbenchmark.tasks;
+
+import msdingfield.easyflow.annotations.Input;
+import msdingfield.easyflow.annotations.Operation;
+import msdingfield.easyflow.annotations.Output;
+import msdingfield.easyflow.annotations.Task;
+
+@Task
+public class JoinTask {
+
+	@Input
+	public int left;
+
+	@Input
+	public int right;
+
+	@Output
+	public int joined;
+
+	@Operation
+	public void execute() {
+		joined = left + right;
+	}
+}
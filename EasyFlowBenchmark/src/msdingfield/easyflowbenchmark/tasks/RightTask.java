@@ -0,0 +1,21 @@
+package msdingfield.easyflowbenchmark.tasks;
+
+import msdingfield.easyflow.annotations.Input;
+import msdingfield.easyflow.annotations.Operation;
+import msdingfield.easyflow.annotations.Output;
+import msdingfield.easyflow.annotations.Task;
+
+@Task
+public class RightTask {
+
+	@Input
+	public int source;
+
+	@Output
+	public int right;
+
+	@Operation
+	public void execute() {
+		right = source * 3;
+	}
+}
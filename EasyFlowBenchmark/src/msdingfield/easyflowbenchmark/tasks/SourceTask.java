@@ -0,0 +1,21 @@
+package msdingfield.easyflowbenchmark.tasks;
+
+import msdingfield.easyflow.annotations.Input;
+import msdingfield.easyflow.annotations.Operation;
+import msdingfield.easyflow.annotations.Output;
+import msdingfield.easyflow.annotations.Task;
+
+@Task
+public class SourceTask {
+
+	@Input
+	public int input;
+
+	@Output
+	public int source;
+
+	@Operation
+	public void execute() {
+		source = input + 1;
+	}
+}
@@ -38,10 +38,25 @@ public class Main {
 		}
 	}
 
+	/** Receives the portfolio's value once the lookup completes, not the future. */
+	public static class CountSymbols {
+		
+		@Input
+		public Set<String> portfolioSymbols;
+		
+		@Output
+		public Integer symbolCount;
+		
+		@Operation
+		public void count() {
+			symbolCount = portfolioSymbols.size();
+		}
+	}
+
 	public static void main(String[] args) {
 		try {
-			final FlowSystem system = SystemBuilder.from(GetPortfolio.class);
-			final FlowContext context = new FlowContext();
+			final FlowSystem system = SystemBuilder.from(GetPortfolio.class, CountSymbols.class);
+			final FlowContext context = system.newContext();
 			context.putAttribute("clientId", "123");
 			FlowEvaluator.evaluate(system, context).get();
 			System.out.println(context.toString());
@@ -1,7 +1,9 @@
 package msdingfield.easyflowexample.dal;
 
+import java.util.Map;
 import java.util.Set;
 
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
@@ -17,13 +19,28 @@ public class PortfolioDao {
 	
 	public ListenableFuture<Integer> getQuantity(final String clientId, final String symbol) {
 		final SettableFuture<Integer> future = SettableFuture.create();
+		LatencySimulator.setWithLatency(future, quantityOf(clientId, symbol), 100L);
+		return future;
+	}
+	
+	/** Bulk form of getQuantity, one round trip for all symbols of a client. */
+	public ListenableFuture<Map<String, Integer>> getQuantities(final String clientId, final Set<String> symbols) {
+		final Map<String, Integer> quantities = Maps.newHashMap();
+		for (final String symbol : symbols) {
+			quantities.put(symbol, quantityOf(clientId, symbol));
+		}
+		final SettableFuture<Map<String, Integer>> future = SettableFuture.create();
+		LatencySimulator.setWithLatency(future, quantities, 100L);
+		return future;
+	}
+	
+	private static Integer quantityOf(final String clientId, final String symbol) {
 		Integer quantity = 0;
 		switch(symbol) {
 		case "MSFT": quantity = 100; break;
 		case "GOOG": quantity = 5; break;
 		case "AAPL": quantity = 15; break;
 		}
-		LatencySimulator.setWithLatency(future, quantity, 100L);
-		return future;
+		return quantity;
 	}
 }
@@ -1,5 +1,9 @@
 package msdingfield.easyflowexample.dal;
 
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 
@@ -7,6 +11,22 @@ public class StockQuoteDao {
 
 	public ListenableFuture<Double> getCurrentQuote(final String symbol) {
 		final SettableFuture<Double> future = SettableFuture.create();
+		LatencySimulator.setWithLatency(future, quoteOf(symbol), 250L);
+		return future;
+	}
+
+	/** Bulk form of getCurrentQuote, one round trip for all symbols. */
+	public ListenableFuture<Map<String, Double>> getCurrentQuotes(final Set<String> symbols) {
+		final Map<String, Double> quotes = Maps.newHashMap();
+		for (final String symbol : symbols) {
+			quotes.put(symbol, quoteOf(symbol));
+		}
+		final SettableFuture<Map<String, Double>> future = SettableFuture.create();
+		LatencySimulator.setWithLatency(future, quotes, 250L);
+		return future;
+	}
+
+	private static Double quoteOf(final String symbol) {
 		Double quote = 0.0;
 		switch(symbol) {
 		case "MSFT": quote = 35.0; break;
@@ -15,7 +35,6 @@ public class StockQuoteDao {
 		case "T": quote = 36.0; break;
 		case "MMM": quote = 137.0; break;
 		}
-		LatencySimulator.setWithLatency(future, quote, 250L);
-		return future;
+		return quote;
 	}
 }